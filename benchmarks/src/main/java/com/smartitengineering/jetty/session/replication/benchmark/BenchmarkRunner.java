@@ -0,0 +1,53 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks writing the results as JSON, by default to jmh-result.json in the working directory, so that
+ * runs can be compared automatically. Any standard JMH command line option is accepted, e.g.
+ * <code>java -jar target/benchmarks.jar SessionDataId -rff result.json</code>.
+ *
+ * @author imyousuf
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    OptionsBuilder builder = new OptionsBuilder();
+    builder.parent(commandLine);
+    if (!commandLine.getResultFormat().hasValue()) {
+      builder.resultFormat(ResultFormatType.JSON);
+    }
+    if (!commandLine.getResult().hasValue()) {
+      builder.result("jmh-result.json");
+    }
+    if (commandLine.getIncludes().isEmpty()) {
+      builder.include("com\\.smartitengineering\\.jetty\\.session\\.replication\\..*Benchmark");
+    }
+    Options options = builder.build();
+    new Runner(options).run();
+  }
+}
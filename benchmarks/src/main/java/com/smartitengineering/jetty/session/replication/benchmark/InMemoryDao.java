@@ -0,0 +1,135 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.benchmark;
+
+import com.smartitengineering.dao.common.CommonDao;
+import com.smartitengineering.dao.common.queryparam.QueryParameter;
+import com.smartitengineering.domain.PersistentDTO;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In memory stand in for the HBase DAO so that manager code paths can be measured without a cluster. Only id based
+ * operations are supported.
+ *
+ * @author imyousuf
+ */
+public abstract class InMemoryDao<Template extends PersistentDTO, IdType extends Serializable> implements
+    CommonDao<Template, IdType> {
+
+  private final ConcurrentMap<IdType, Template> store = new ConcurrentHashMap<IdType, Template>();
+
+  protected abstract IdType getIdOf(Template template);
+
+  protected void beforeWrite(Template template) {
+  }
+
+  @Override
+  public Set<Template> getAll() {
+    return new LinkedHashSet<Template>(store.values());
+  }
+
+  @Override
+  public List<Template> getByIds(List<IdType> ids) {
+    final List<Template> result = new ArrayList<Template>(ids.size());
+    for (IdType id : ids) {
+      final Template template = store.get(id);
+      if (template != null) {
+        result.add(template);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Template getById(IdType id) {
+    return store.get(id);
+  }
+
+  @Override
+  public Template getSingle(List<QueryParameter> query) {
+    throw new UnsupportedOperationException("Not supported");
+  }
+
+  @Override
+  public Template getSingle(QueryParameter... query) {
+    return getSingle(Arrays.asList(query));
+  }
+
+  @Override
+  public List<Template> getList(List<QueryParameter> query) {
+    throw new UnsupportedOperationException("Not supported");
+  }
+
+  @Override
+  public List<Template> getList(QueryParameter... query) {
+    return getList(Arrays.asList(query));
+  }
+
+  @Override
+  public <OtherTemplate> OtherTemplate getOther(List<QueryParameter> query) {
+    throw new UnsupportedOperationException("Not supported");
+  }
+
+  @Override
+  public <OtherTemplate> OtherTemplate getOther(QueryParameter... query) {
+    return this.<OtherTemplate>getOther(Arrays.asList(query));
+  }
+
+  @Override
+  public <OtherTemplate> List<OtherTemplate> getOtherList(List<QueryParameter> query) {
+    throw new UnsupportedOperationException("Not supported");
+  }
+
+  @Override
+  public <OtherTemplate> List<OtherTemplate> getOtherList(QueryParameter... query) {
+    return this.<OtherTemplate>getOtherList(Arrays.asList(query));
+  }
+
+  @Override
+  public void save(Template... states) {
+    for (Template state : states) {
+      beforeWrite(state);
+      store.put(getIdOf(state), state);
+    }
+  }
+
+  @Override
+  public void update(Template... states) {
+    save(states);
+  }
+
+  @Override
+  public void delete(Template... states) {
+    for (Template state : states) {
+      store.remove(getIdOf(state));
+    }
+  }
+
+  public void clear() {
+    store.clear();
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.benchmark;
+
+import com.smartitengineering.util.bean.guice.GuiceUtil;
+import java.util.Properties;
+
+/**
+ * Replication API initializer registering the in memory module; set it as the initializer system property before
+ * the API is first used.
+ *
+ * @author imyousuf
+ */
+public class InMemoryReplicationInitializer {
+
+  public InMemoryReplicationInitializer() {
+    Properties properties = new Properties();
+    properties.setProperty(GuiceUtil.CONTEXT_NAME_PROP, "com.smartitengineering.jetty.session.replication");
+    properties.setProperty(GuiceUtil.IGNORE_MISSING_DEP_PROP, Boolean.TRUE.toString());
+    properties.setProperty(GuiceUtil.MODULES_LIST_PROP, InMemoryReplicationModule.class.getName());
+    GuiceUtil.getInstance(properties).register();
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.benchmark;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Names;
+import com.smartitengineering.dao.common.CommonReadDao;
+import com.smartitengineering.dao.common.CommonWriteDao;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.SessionId;
+import java.util.Properties;
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+
+/**
+ * Binds in memory DAOs and caches under the bean names expected by the replication API.
+ *
+ * @author imyousuf
+ */
+public class InMemoryReplicationModule extends AbstractModule {
+
+  public static final InMemoryDao<SessionData, SessionDataId> DATA_DAO = new InMemoryDao<SessionData, SessionDataId>() {
+
+    @Override
+    protected SessionDataId getIdOf(SessionData template) {
+      return template.getId();
+    }
+
+    @Override
+    protected void beforeWrite(SessionData template) {
+      //Mimic the row converter
+      template.setLastSaved(System.currentTimeMillis());
+    }
+  };
+  public static final InMemoryDao<SessionId, String> ID_DAO = new InMemoryDao<SessionId, String>() {
+
+    @Override
+    protected String getIdOf(SessionId template) {
+      return template.getId();
+    }
+  };
+
+  public InMemoryReplicationModule() {
+  }
+
+  public InMemoryReplicationModule(Properties properties) {
+  }
+
+  @Override
+  protected void configure() {
+    bind(CommonReadDao.class).annotatedWith(Names.named("dataReader")).toInstance(DATA_DAO);
+    bind(CommonWriteDao.class).annotatedWith(Names.named("dataWriter")).toInstance(DATA_DAO);
+    bind(CommonReadDao.class).annotatedWith(Names.named("idReader")).toInstance(ID_DAO);
+    bind(CommonWriteDao.class).annotatedWith(Names.named("idWriter")).toInstance(ID_DAO);
+    bind(new TypeLiteral<CommonReadDao<SessionData, SessionDataId>>() {
+    }).toInstance(DATA_DAO);
+    CacheManager cacheManager = CacheManager.create();
+    bind(Cache.class).annotatedWith(Names.named("sessionCache")).toInstance(getCache(cacheManager,
+                                                                                     "benchmarkSessionCache"));
+    bind(Cache.class).annotatedWith(Names.named("sessionIdCache")).toInstance(getCache(cacheManager,
+                                                                                       "benchmarkSessionIdCache"));
+  }
+
+  protected Cache getCache(CacheManager cacheManager, String name) {
+    if (!cacheManager.cacheExists(name)) {
+      cacheManager.addCache(new Cache(name, 100000, false, false, 600, 300));
+    }
+    return cacheManager.getCache(name);
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.benchmark;
+
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionDataIdBenchmark {
+
+  private SessionDataId id;
+  private SessionDataId other;
+  private byte[] serialized;
+
+  @Setup
+  public void setup() throws IOException {
+    id = new SessionDataId("1x2y3z4a5b6c7d8e", "_shop", "0.0.0.0");
+    other = new SessionDataId("1x2y3z4a5b6c7d8f", "_shop", "0.0.0.0");
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    id.writeExternal(out);
+    out.flush();
+    serialized = baos.toByteArray();
+  }
+
+  @Benchmark
+  public String toStringId() {
+    return id.toString();
+  }
+
+  @Benchmark
+  public byte[] writeExternal() throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(baos);
+    id.writeExternal(out);
+    out.flush();
+    return baos.toByteArray();
+  }
+
+  @Benchmark
+  public SessionDataId readExternal() throws Exception {
+    SessionDataId read = new SessionDataId();
+    read.readExternal(new DataInputStream(new ByteArrayInputStream(serialized)));
+    return read;
+  }
+
+  @Benchmark
+  public int compareTo() {
+    return id.compareTo(other);
+  }
+}
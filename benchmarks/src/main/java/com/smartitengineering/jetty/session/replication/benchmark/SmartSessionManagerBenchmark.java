@@ -0,0 +1,93 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.benchmark;
+
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.SessionReplicationAPI;
+import com.smartitengineering.jetty.session.replication.SessionScanCriteria;
+import com.smartitengineering.jetty.session.replication.SmartSessionIdManager;
+import com.smartitengineering.jetty.session.replication.SmartSessionManager;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.server.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures SmartSessionManager.getSession against the in memory DAO, once served from the session cache and once
+ * with the cache entry dropped before every call so the session is reloaded from the DAO.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {
+  "-Dcom.smartitengineering.jetty.session.replication.init="
+  + "com.smartitengineering.jetty.session.replication.benchmark.InMemoryReplicationInitializer"})
+@State(Scope.Benchmark)
+public class SmartSessionManagerBenchmark {
+
+  private static final String CLUSTER_ID = "benchmarksession1";
+  private SmartSessionManager manager;
+
+  @Setup
+  public void setup() throws Exception {
+    SmartSessionIdManager idManager = new SmartSessionIdManager(new Server());
+    idManager.setWorkerName("benchmark");
+    manager = new SmartSessionManager();
+    manager.setIdManager(idManager);
+    manager.start();
+    SessionScanCriteria context = manager.newScanCriteria();
+    SessionData data = new SessionData(new SessionDataId(CLUSTER_ID, context.getCanonicalContextPath(), context.
+        getVirtualHost()), "benchmark");
+    data.setExpiryTime(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+    data.setAttribute("userId", "benchmark-user");
+    SessionReplicationAPI.getInstance().getDataWriter().save(data);
+    //Pretend it has never been saved so that the first load saves and caches it
+    data.setLastSaved(0);
+    manager.getSession(CLUSTER_ID);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    manager.stop();
+    InMemoryReplicationModule.DATA_DAO.clear();
+  }
+
+  @Benchmark
+  public Object getSessionCacheHit() {
+    return manager.getSession(CLUSTER_ID);
+  }
+
+  @Benchmark
+  public Object getSessionCacheMiss() {
+    SessionReplicationAPI.getInstance().getSessionCache().remove(CLUSTER_ID);
+    return manager.getSession(CLUSTER_ID);
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.codec;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures attribute encoding and decoding by codec and payload size, for a string attribute and for a list
+ * attribute which the compact codec hands over to Java serialization.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AttributeSerializationBenchmark {
+
+  @Param({"java", "compact", "compact-deflate"})
+  private String codecName;
+  @Param({"64", "1024", "16384", "262144"})
+  private int payloadSize;
+  private AttributeCodec codec;
+  private String stringValue;
+  private ArrayList<String> listValue;
+  private byte[] encodedString;
+  private byte[] encodedList;
+
+  @Setup
+  public void setup() {
+    if ("java".equals(codecName)) {
+      codec = new JavaSerializationAttributeCodec();
+    }
+    else if ("compact".equals(codecName)) {
+      codec = new CompactAttributeCodec();
+    }
+    else {
+      codec = new CompressingAttributeCodec(new CompactAttributeCodec(), CompressingAttributeCodec.Compression.DEFLATE,
+                                            CompressingAttributeCodec.DEFAULT_THRESHOLD, Deflater.DEFAULT_COMPRESSION);
+    }
+    stringValue = BenchmarkPayloads.string(payloadSize);
+    listValue = new ArrayList<String>();
+    for (int i = 0; i < Math.max(1, payloadSize / 64); ++i) {
+      listValue.add(BenchmarkPayloads.string(64));
+    }
+    encodedString = codec.encode(stringValue);
+    encodedList = codec.encode(listValue);
+  }
+
+  @Benchmark
+  public byte[] encodeString() {
+    return codec.encode(stringValue);
+  }
+
+  @Benchmark
+  public Object decodeString() {
+    return codec.decode(encodedString);
+  }
+
+  @Benchmark
+  public byte[] encodeList() {
+    return codec.encode(listValue);
+  }
+
+  @Benchmark
+  public Object decodeList() {
+    return codec.decode(encodedList);
+  }
+}
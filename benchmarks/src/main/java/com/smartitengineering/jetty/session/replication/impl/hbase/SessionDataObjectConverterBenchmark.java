@@ -0,0 +1,116 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.hbase;
+
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.codec.CompactAttributeCodec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building puts from session data and converting a fetched row back, for sessions of varying attribute
+ * count and size. Lives in the converter package to reach its protected conversion methods.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionDataObjectConverterBenchmark {
+
+  @Param({"1", "10", "100"})
+  private int attributeCount;
+  @Param({"64", "4096"})
+  private int attributeSize;
+  private SessionDataObjectConverter converter;
+  private SessionData data;
+  private SessionDataId id;
+  private byte[] rowId;
+  private Result row;
+  private String changedValue;
+
+  @Setup
+  public void setup() {
+    converter = new SessionDataObjectConverter();
+    converter.setCodec(new CompactAttributeCodec());
+    id = new SessionDataId("1x2y3z4a5b6c7d8e", "_shop", "0.0.0.0");
+    rowId = id.getBytes();
+    data = new SessionData(id, "node1");
+    data.setExpiryTime(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+    final String value = BenchmarkPayloads.string(attributeSize);
+    for (int i = 0; i < attributeCount; ++i) {
+      data.setAttribute("attribute" + i, value);
+    }
+    changedValue = BenchmarkPayloads.string(attributeSize);
+    row = toResult(buildFullPut());
+  }
+
+  @Benchmark
+  public Put fullPut() {
+    return buildFullPut();
+  }
+
+  @Benchmark
+  public Put singleAttributeDeltaPut() {
+    data.setAttribute("attribute0", changedValue);
+    Put put = new Put(rowId);
+    converter.fillPut(data, data.drainAttributeChanges(), put);
+    return put;
+  }
+
+  @Benchmark
+  public SessionData rowToObject() {
+    return converter.rowToObject(id, row);
+  }
+
+  private Put buildFullPut() {
+    data.markAllAttributesChanged();
+    Put put = new Put(rowId);
+    converter.fillPut(data, data.drainAttributeChanges(), put);
+    return put;
+  }
+
+  private static Result toResult(Put put) {
+    List<KeyValue> keyValues = new ArrayList<KeyValue>();
+    for (List<KeyValue> familyValues : put.getFamilyMap().values()) {
+      keyValues.addAll(familyValues);
+    }
+    Collections.sort(keyValues, KeyValue.COMPARATOR);
+    return new Result(keyValues.toArray(new KeyValue[keyValues.size()]));
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.hbase;
+
+import com.google.inject.Inject;
+import com.smartitengineering.dao.impl.hbase.spi.ObjectRowConverter;
+import com.smartitengineering.dao.impl.hbase.spi.SchemaInfoProvider;
+import com.smartitengineering.jetty.session.replication.ExpiredSessionDeleter;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Reads the rows of a scavenger batch with a single multi-get and deletes each expired session row with a check and
+ * delete on its expiry time, so that a session touched by another node after the scavenger read it survives. Check
+ * and delete can not be batched with this HBase client, hence deletes stay one per row.
+ *
+ * @author imyousuf
+ */
+public class HBaseExpiredSessionDeleter implements ExpiredSessionDeleter {
+
+  @Inject
+  private HTablePool tablePool;
+  @Inject
+  private SchemaInfoProvider<SessionData, SessionDataId> infoProvider;
+  @Inject
+  private ObjectRowConverter<SessionData> converter;
+
+  @Override
+  public List<SessionData> getByIds(List<SessionDataId> ids) {
+    final List<SessionData> found = new ArrayList<SessionData>(ids.size());
+    if (ids.isEmpty()) {
+      return found;
+    }
+    final List<Get> gets = new ArrayList<Get>(ids.size());
+    for (SessionDataId id : ids) {
+      gets.add(new Get(infoProvider.getRowIdFromId(id)));
+    }
+    final HTableInterface table = tablePool.getTable(infoProvider.getMainTableName());
+    try {
+      for (Result result : table.get(gets)) {
+        if (result != null && !result.isEmpty()) {
+          found.add(converter.rowsToObject(result, null));
+        }
+      }
+      return found;
+    }
+    catch (IOException ex) {
+      throw new IllegalStateException("Could not read " + ids.size() + " expired sessions", ex);
+    }
+    finally {
+      tablePool.putTable(table);
+    }
+  }
+
+  @Override
+  public boolean deleteIfExpired(SessionData data) {
+    final HTableInterface table = tablePool.getTable(infoProvider.getMainTableName());
+    try {
+      final byte[] row = infoProvider.getRowIdFromId(data.getId());
+      return table.checkAndDelete(row, SessionDataObjectConverter.FAMILY_SELF,
+                                  SessionDataObjectConverter.CELL_EXPIRY_TIME, Bytes.toBytes(data.getExpiryTime()),
+                                  new Delete(row));
+    }
+    catch (IOException ex) {
+      throw new IllegalStateException("Could not delete expired session " + data.getId(), ex);
+    }
+    finally {
+      tablePool.putTable(table);
+    }
+  }
+}
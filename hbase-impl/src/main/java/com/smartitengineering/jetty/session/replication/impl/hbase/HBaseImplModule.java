@@ -20,13 +20,16 @@
 package com.smartitengineering.jetty.session.replication.impl.hbase;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
 import com.google.inject.Scopes;
 import com.google.inject.Singleton;
 import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
 import com.google.inject.name.Names;
 import com.smartitengineering.dao.common.CommonReadDao;
 import com.smartitengineering.dao.common.CommonWriteDao;
 import com.smartitengineering.dao.impl.hbase.CommonDao;
+import com.smartitengineering.dao.impl.hbase.HBaseConfigurationFactory;
 import com.smartitengineering.dao.impl.hbase.spi.AsyncExecutorService;
 import com.smartitengineering.dao.impl.hbase.spi.DomainIdInstanceProvider;
 import com.smartitengineering.dao.impl.hbase.spi.FilterConfigs;
@@ -42,9 +45,25 @@ import com.smartitengineering.dao.impl.hbase.spi.impl.SchemaInfoProviderBaseConf
 import com.smartitengineering.dao.impl.hbase.spi.impl.SchemaInfoProviderImpl;
 import com.smartitengineering.dao.impl.hbase.spi.impl.guice.GenericBaseConfigProvider;
 import com.smartitengineering.dao.impl.hbase.spi.impl.guice.GenericFilterConfigsProvider;
+import com.smartitengineering.jetty.session.replication.ExpiredSessionDeleter;
+import com.smartitengineering.jetty.session.replication.InstrumentedThreadPoolExecutor;
 import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataCreator;
 import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.SessionDataSerializer;
+import com.smartitengineering.jetty.session.replication.SessionDataScanner;
+import com.smartitengineering.jetty.session.replication.SessionExpiryIndex;
 import com.smartitengineering.jetty.session.replication.SessionId;
+import com.smartitengineering.jetty.session.replication.SessionIdScanner;
+import com.smartitengineering.jetty.session.replication.SessionInvalidationBus;
+import com.smartitengineering.jetty.session.replication.SessionLeaseService;
+import com.smartitengineering.jetty.session.replication.SessionTouchWriter;
+import com.smartitengineering.jetty.session.replication.codec.AttributeCodec;
+import com.smartitengineering.jetty.session.replication.codec.AttributeCodecConfig;
+import com.smartitengineering.jetty.session.replication.codec.CodecSessionDataSerializer;
+import com.smartitengineering.jetty.session.replication.codec.CompressingAttributeCodec;
+import com.smartitengineering.jetty.session.replication.metrics.MetricRegistry;
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
 import java.io.InputStream;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
@@ -52,6 +71,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
+import org.apache.hadoop.hbase.client.HTablePool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,7 +81,47 @@ import org.slf4j.LoggerFactory;
  */
 public class HBaseImplModule extends AbstractModule {
 
+  public static final String ATTRIBUTE_CODEC_PROP = AttributeCodecConfig.ATTRIBUTE_CODEC_PROP;
+  public static final String COMPRESSION_PROP = AttributeCodecConfig.COMPRESSION_PROP;
+  public static final String COMPRESSION_THRESHOLD_PROP = AttributeCodecConfig.COMPRESSION_THRESHOLD_PROP;
+  public static final String COMPRESSION_LEVEL_PROP = AttributeCodecConfig.COMPRESSION_LEVEL_PROP;
+  public static final String EXPIRY_INDEX_BUCKET_PROP =
+      "com.smartitengineering.jetty.session.replication.expiryIndex.bucketSeconds";
+  public static final String LOCK_TYPE_PROP = "com.smartitengineering.jetty.session.replication.lockType";
+  public static final String MERGE_ENABLED_PROP = "com.smartitengineering.jetty.session.replication.mergeEnabled";
+  public static final String CONFLICT_POLICY_PROP = "com.smartitengineering.jetty.session.replication.conflictPolicy";
+  public static final String CONFLICT_RETRIES_PROP = "com.smartitengineering.jetty.session.replication.conflictRetries";
+  public static final String INVALIDATION_POLL_PROP =
+      "com.smartitengineering.jetty.session.replication.invalidation.pollMillis";
+  public static final String EXECUTOR_TYPE_PROP = "com.smartitengineering.jetty.session.replication.executor.type";
+  public static final String EXECUTOR_CORE_SIZE_PROP =
+      "com.smartitengineering.jetty.session.replication.executor.coreSize";
+  public static final String EXECUTOR_MAX_SIZE_PROP =
+      "com.smartitengineering.jetty.session.replication.executor.maxSize";
+  public static final String EXECUTOR_QUEUE_PROP =
+      "com.smartitengineering.jetty.session.replication.executor.queueCapacity";
+  public static final String EXECUTOR_KEEP_ALIVE_PROP =
+      "com.smartitengineering.jetty.session.replication.executor.keepAliveSeconds";
+  public static final String EXECUTOR_REJECTION_PROP =
+      "com.smartitengineering.jetty.session.replication.executor.rejectionPolicy";
+  public static final String EXECUTOR_NAME_PROP = "com.smartitengineering.jetty.session.replication.executor.name";
+  public static final String TOUCH_WAL_PROP = "com.smartitengineering.jetty.session.replication.touch.writeToWal";
+  public static final String TABLE_POOL_SIZE_PROP = "com.smartitengineering.jetty.session.replication.tablePoolSize";
+  public static final String OPTIMISTIC = "OPTIMISTIC";
   private final String cacheConfigRsrc, sessionCacheName, sessionIdCacheName;
+  private final AttributeCodecConfig codecConfig;
+  private final int expiryIndexBucketSeconds;
+  private final LockType lockType;
+  private final boolean optimistic, mergeEnabled;
+  private final OptimisticSessionDataWriter.ConflictPolicy conflictPolicy;
+  private final int conflictRetries;
+  private final int invalidationPollMillis;
+  private final ExecutorType executorType;
+  private final int executorCoreSize, executorMaxSize, executorQueueCapacity, executorKeepAliveSeconds;
+  private final InstrumentedThreadPoolExecutor.RejectionPolicy executorRejectionPolicy;
+  private final String executorName;
+  private final boolean touchWriteToWal;
+  private final int tablePoolSize;
   protected final transient Logger logger = LoggerFactory.getLogger(getClass());
 
   public HBaseImplModule(Properties properties) {
@@ -74,32 +134,139 @@ public class HBaseImplModule extends AbstractModule {
                                               "sessionCache");
     sessionIdCacheName = properties.getProperty("com.smartitengineering.jetty.session.replication.sessionIdCache.name",
                                                 "sessionIdCache");
+    codecConfig = new AttributeCodecConfig(properties);
+    expiryIndexBucketSeconds = Integer.parseInt(properties.getProperty(EXPIRY_INDEX_BUCKET_PROP, "60").trim());
+    final String lockTypeName = properties.getProperty(LOCK_TYPE_PROP, LockType.PESSIMISTIC.name()).trim().toUpperCase();
+    optimistic = OPTIMISTIC.equals(lockTypeName);
+    lockType = toLockType(lockTypeName);
+    mergeEnabled = Boolean.parseBoolean(properties.getProperty(MERGE_ENABLED_PROP, "true").trim());
+    conflictPolicy = OptimisticSessionDataWriter.ConflictPolicy.valueOf(properties.getProperty(CONFLICT_POLICY_PROP,
+                                                                                             "MERGE").trim().
+        toUpperCase());
+    conflictRetries = Integer.parseInt(properties.getProperty(CONFLICT_RETRIES_PROP, "3").trim());
+    invalidationPollMillis = Integer.parseInt(properties.getProperty(INVALIDATION_POLL_PROP, "0").trim());
+    executorType = ExecutorType.valueOf(properties.getProperty(EXECUTOR_TYPE_PROP, ExecutorType.POOL.name()).trim().
+        toUpperCase());
+    executorCoreSize = Integer.parseInt(properties.getProperty(EXECUTOR_CORE_SIZE_PROP, "8").trim());
+    executorMaxSize = Math.max(executorCoreSize, Integer.parseInt(properties.getProperty(EXECUTOR_MAX_SIZE_PROP, "64").
+        trim()));
+    executorQueueCapacity = Integer.parseInt(properties.getProperty(EXECUTOR_QUEUE_PROP, "0").trim());
+    executorKeepAliveSeconds = Integer.parseInt(properties.getProperty(EXECUTOR_KEEP_ALIVE_PROP, "60").trim());
+    executorRejectionPolicy = InstrumentedThreadPoolExecutor.RejectionPolicy.valueOf(properties.getProperty(
+        EXECUTOR_REJECTION_PROP, InstrumentedThreadPoolExecutor.RejectionPolicy.CALLER_RUNS.name()).trim().
+        toUpperCase());
+    executorName = properties.getProperty(EXECUTOR_NAME_PROP, "session-dao").trim();
+    touchWriteToWal = Boolean.parseBoolean(properties.getProperty(TOUCH_WAL_PROP, "true").trim());
+    tablePoolSize = Integer.parseInt(properties.getProperty(TABLE_POOL_SIZE_PROP, "16").trim());
+  }
+
+  /**
+   * Table handles shared by the HBase implementations of the session replication services, so that they do not each
+   * keep their own handles and connections
+   */
+  @Provides
+  @Singleton
+  protected HTablePool provideTablePool() {
+    return new HTablePool(HBaseConfigurationFactory.getConfigurationInstance(), tablePoolSize);
+  }
+
+  /**
+   * Threads used for the asynchronous DAO work.
+   */
+  public enum ExecutorType {
+
+    /**
+     * Bounded, instrumented thread pool
+     */
+    POOL,
+    /**
+     * A virtual thread per task, needs JDK 21 or later and falls back to the pool otherwise
+     */
+    VIRTUAL,
+    /**
+     * The unbounded cached thread pool used before the executor became configurable
+     */
+    CACHED
+  }
+
+  protected ExecutorService createExecutor() {
+    if (ExecutorType.VIRTUAL.equals(executorType)) {
+      try {
+        //Looked up reflectively as the module is built for older JDKs
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }
+      catch (Exception ex) {
+        logger.warn("Virtual threads are not available in this JVM, using a thread pool instead");
+      }
+    }
+    else if (ExecutorType.CACHED.equals(executorType)) {
+      return Executors.newCachedThreadPool(new InstrumentedThreadPoolExecutor.NamedThreadFactory(executorName));
+    }
+    return new InstrumentedThreadPoolExecutor(executorName, executorCoreSize, executorMaxSize, executorQueueCapacity,
+                                              executorKeepAliveSeconds, executorRejectionPolicy);
+  }
+
+  protected LockType toLockType(String name) {
+    try {
+      return LockType.valueOf(name);
+    }
+    catch (IllegalArgumentException ex) {
+      //Session data is still written optimistically by our own writer
+      logger.warn("Lock type " + name + " not supported by the DAO, using pessimistic locks for other tables");
+      return LockType.PESSIMISTIC;
+    }
+  }
+
+  @Provides
+  @Singleton
+  protected CompressingAttributeCodec provideCompressingAttributeCodec(
+      @Named("delegateAttributeCodec") AttributeCodec delegate) {
+    return codecConfig.newCompressingCodec(delegate);
+  }
+
+  @Provides
+  @Singleton
+  @Named("sessionDataSerializer")
+  protected SessionDataSerializer provideSessionDataSerializer(AttributeCodec codec) {
+    return new CodecSessionDataSerializer(codec);
   }
 
   @Override
   protected void configure() {
     bind(AsyncExecutorService.class).to(MixedExecutorServiceImpl.class).in(Singleton.class);
-    bind(ExecutorService.class).toInstance(Executors.newCachedThreadPool());
+    bind(ExecutorService.class).toInstance(createExecutor());
     bind(Integer.class).annotatedWith(Names.named("maxRows")).toInstance(new Integer(100));
     bind(Long.class).annotatedWith(Names.named("waitTime")).toInstance(5l);
     bind(TimeUnit.class).annotatedWith(Names.named("unit")).toInstance(TimeUnit.SECONDS);
-    bind(Boolean.class).annotatedWith(Names.named("mergeEnabled")).toInstance(Boolean.TRUE);
+    bind(Boolean.class).annotatedWith(Names.named("mergeEnabled")).toInstance(Boolean.valueOf(mergeEnabled));
     bind(DomainIdInstanceProvider.class).to(SessionDataIdInstanceProvider.class).in(Singleton.class);
-    bind(LockType.class).toInstance(LockType.PESSIMISTIC);
+    bind(LockType.class).toInstance(lockType);
     bind(new TypeLiteral<Class<SessionDataId>>() {
     }).toInstance(SessionDataId.class);
     bind(new TypeLiteral<Class<String>>() {
     }).toInstance(String.class);
 
 
+    bind(AttributeCodec.class).annotatedWith(Names.named("delegateAttributeCodec")).to(codecConfig.getCodecClass()).
+        in(Singleton.class);
+    bind(AttributeCodec.class).to(CompressingAttributeCodec.class);
     bind(new TypeLiteral<ObjectRowConverter<SessionData>>() {
     }).to(SessionDataObjectConverter.class).in(Singleton.class);
     bind(CommonReadDao.class).annotatedWith(Names.named("dataReader")).to(new TypeLiteral<CommonReadDao<SessionData, SessionDataId>>() {
     });
     bind(CommonReadDao.class).annotatedWith(Names.named("idReader")).to(new TypeLiteral<CommonReadDao<SessionId, String>>() {
     });
-    bind(CommonWriteDao.class).annotatedWith(Names.named("dataWriter")).to(new TypeLiteral<CommonWriteDao<SessionData>>() {
-    });
+    if (optimistic) {
+      bind(OptimisticSessionDataWriter.ConflictPolicy.class).annotatedWith(Names.named("conflictPolicy")).toInstance(
+          conflictPolicy);
+      bind(Integer.class).annotatedWith(Names.named("conflictRetries")).toInstance(conflictRetries);
+      bind(OptimisticSessionDataWriter.class).in(Singleton.class);
+      bind(CommonWriteDao.class).annotatedWith(Names.named("dataWriter")).to(OptimisticSessionDataWriter.class);
+    }
+    else {
+      bind(HBaseSessionDataWriter.class).in(Singleton.class);
+      bind(CommonWriteDao.class).annotatedWith(Names.named("dataWriter")).to(HBaseSessionDataWriter.class);
+    }
     bind(CommonWriteDao.class).annotatedWith(Names.named("idWriter")).to(new TypeLiteral<CommonWriteDao<SessionId>>() {
     });
     bind(new TypeLiteral<CommonReadDao<SessionData, SessionDataId>>() {
@@ -129,6 +296,26 @@ public class HBaseImplModule extends AbstractModule {
     }).toProvider(new GenericBaseConfigProvider<SessionData>(
         "com/smartitengineering/jetty/session/replication/impl/hbase/SessionDataSchemaBaseConfig.json")).in(
         Scopes.SINGLETON);
+    bind(SessionDataScanner.class).annotatedWith(Names.named("dataScanner")).to(HBaseSessionDataScanner.class).in(
+        Singleton.class);
+    bind(Integer.class).annotatedWith(Names.named("expiryIndexBucketSeconds")).toInstance(expiryIndexBucketSeconds);
+    bind(SessionExpiryIndex.class).annotatedWith(Names.named("expiryIndex")).to(HBaseSessionExpiryIndex.class).in(
+        Singleton.class);
+    bind(SessionIdScanner.class).annotatedWith(Names.named("idScanner")).to(HBaseSessionIdScanner.class).in(
+        Singleton.class);
+    bind(SessionLeaseService.class).annotatedWith(Names.named("leaseService")).to(HBaseSessionLeaseService.class).in(
+        Singleton.class);
+    bind(Integer.class).annotatedWith(Names.named("invalidationPollMillis")).toInstance(invalidationPollMillis);
+    bind(SessionInvalidationBus.class).annotatedWith(Names.named("invalidationBus")).to(
+        HBaseSessionInvalidationBus.class).in(Singleton.class);
+    bind(Boolean.class).annotatedWith(Names.named("touchWriteToWal")).toInstance(Boolean.valueOf(touchWriteToWal));
+    bind(SessionTouchWriter.class).annotatedWith(Names.named("touchWriter")).to(HBaseSessionTouchWriter.class).in(
+        Singleton.class);
+    bind(ExpiredSessionDeleter.class).annotatedWith(Names.named("expiredSessionDeleter")).to(
+        HBaseExpiredSessionDeleter.class).in(Singleton.class);
+    bind(SessionDataCreator.class).annotatedWith(Names.named("dataCreator")).to(HBaseSessionDataCreator.class).in(
+        Singleton.class);
+    bind(MetricRegistry.class).annotatedWith(Names.named("metricRegistry")).toInstance(Metrics.getRegistry());
 
     bind(new TypeLiteral<ObjectRowConverter<SessionId>>() {
     }).to(SessionIdObjectConverter.class).in(Singleton.class);
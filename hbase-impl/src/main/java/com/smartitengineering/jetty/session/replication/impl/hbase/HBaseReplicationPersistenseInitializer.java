@@ -23,6 +23,9 @@ import com.smartitengineering.dao.hbase.ddl.HBaseTableGenerator;
 import com.smartitengineering.dao.hbase.ddl.config.json.ConfigurationJsonParser;
 import com.smartitengineering.dao.impl.hbase.HBaseConfigurationFactory;
 import com.smartitengineering.util.bean.guice.GuiceUtil;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.MasterNotRunningException;
 import org.slf4j.Logger;
@@ -34,6 +37,8 @@ import org.slf4j.LoggerFactory;
  */
 public class HBaseReplicationPersistenseInitializer {
 
+  public static final String SCHEMA_TUNING_RSRC =
+      "com/smartitengineering/jetty/session/replication/impl/hbase/schema-tuning.properties";
   protected final Logger logger = LoggerFactory.getLogger(getClass());
 
   public HBaseReplicationPersistenseInitializer() {
@@ -46,7 +51,12 @@ public class HBaseReplicationPersistenseInitializer {
     logger.info("Guice injection done!");
     Configuration config = HBaseConfigurationFactory.getConfigurationInstance();
     logger.info("HBase configuration retrieved!");
+    final HBaseSchemaTuner tuner = getSchemaTuner(config);
     try {
+      if (tuner != null) {
+        logger.info("Trying to create pre-split tables!");
+        tuner.createTables();
+      }
       logger.info("Trying to create tables!");
       new HBaseTableGenerator(ConfigurationJsonParser.getConfigurations(getClass().getClassLoader().
           getResourceAsStream("com/smartitengineering/jetty/session/replication/impl/hbase/schema.json")), config,
@@ -58,5 +68,37 @@ public class HBaseReplicationPersistenseInitializer {
     catch (Exception ex) {
       logger.error("Could not create table!", ex);
     }
+    if (tuner != null) {
+      try {
+        tuner.verifyTables();
+      }
+      catch (Exception ex) {
+        logger.error("Could not verify table schema!", ex);
+      }
+    }
+  }
+
+  protected HBaseSchemaTuner getSchemaTuner(Configuration config) {
+    final InputStream stream = getClass().getClassLoader().getResourceAsStream(SCHEMA_TUNING_RSRC);
+    if (stream == null) {
+      return null;
+    }
+    final Properties properties = new Properties();
+    try {
+      properties.load(stream);
+    }
+    catch (IOException ex) {
+      logger.error("Could not read schema tuning configuration!", ex);
+      return null;
+    }
+    finally {
+      try {
+        stream.close();
+      }
+      catch (IOException ex) {
+        logger.debug("Could not close schema tuning configuration", ex);
+      }
+    }
+    return new HBaseSchemaTuner(config, properties);
   }
 }
@@ -0,0 +1,349 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the tuned tables pre-split and with their column family settings, and reports how existing tables differ
+ * from the tuning configuration. Tables not mentioned in the configuration are left to the table generator.
+ * <p>
+ * Configuration keys are prefixed with the table name, e.g. <tt>sessiondata.regions</tt>,
+ * <tt>sessiondata.families</tt> and per family <tt>sessiondata.attrs.compression</tt>.
+ *
+ * @author imyousuf
+ */
+public class HBaseSchemaTuner {
+
+  public static final String TABLES_PROP = "tables";
+  public static final String APPLY_CHANGES_PROP = "applyChanges";
+  public static final String DEFAULT_CHARSET = "0123456789abcdefghijklmnopqrstuvwxyz";
+  public static final String REGIONS = "regions";
+  public static final String FAMILIES = "families";
+  public static final String SPLIT = "split";
+  public static final String SPLIT_PREFIX = "split.prefix";
+  public static final String SPLIT_CHARSET = "split.charset";
+  public static final String SPLIT_BYTE_RANGE = "split.byteRange";
+  public static final String SPLIT_SAMPLES = "split.samples";
+  /**
+   * Leading bytes of a sampled key kept in a split key, enough to tell apart the quantiles of a few thousand regions
+   */
+  public static final int SPLIT_KEY_LENGTH = 4;
+  public static final String BLOOM_FILTER = "bloomFilter";
+  public static final String COMPRESSION = "compression";
+  public static final String BLOCK_SIZE = "blockSize";
+  public static final String IN_MEMORY = "inMemory";
+  public static final String TTL = "ttl";
+  public static final String MAX_VERSIONS = "maxVersions";
+  protected final Logger logger = LoggerFactory.getLogger(getClass());
+  private final Configuration config;
+  private final Properties properties;
+
+  /**
+   * How the split keys of a table are chosen.
+   */
+  public enum SplitStrategy {
+
+    /**
+     * Quantiles of sampled session ids generated the way Jetty's session id manager does, a random positive long in
+     * base 36. About half of those ids are 13 characters long and start with '1', so the leading characters are far
+     * from uniform.
+     */
+    SAMPLED,
+    /**
+     * Two character prefixes spread evenly over a charset, only for keys whose leading characters are uniformly
+     * distributed over it
+     */
+    CHARSET,
+    /**
+     * Leading byte values spread evenly over a range, e.g. the shards of the expiry index
+     */
+    BYTE
+  }
+
+  public HBaseSchemaTuner(Configuration config, Properties properties) {
+    this.config = config;
+    this.properties = properties;
+  }
+
+  public String[] getTableNames() {
+    return StringUtils.split(properties.getProperty(TABLES_PROP, ""), ", ");
+  }
+
+  public boolean isApplyChanges() {
+    return Boolean.parseBoolean(properties.getProperty(APPLY_CHANGES_PROP, "false").trim());
+  }
+
+  /**
+   * Create the configured tables that do not exist yet, pre-split into the configured number of regions
+   */
+  public void createTables() throws IOException {
+    final HBaseAdmin admin = new HBaseAdmin(config);
+    for (String tableName : getTableNames()) {
+      if (admin.tableExists(tableName)) {
+        continue;
+      }
+      final HTableDescriptor descriptor = new HTableDescriptor(tableName);
+      for (String family : getFamilies(tableName)) {
+        descriptor.addFamily(getColumnDescriptor(tableName, family));
+      }
+      final byte[][] splitKeys = getSplitKeys(tableName);
+      logger.info("Creating table " + tableName + " with " + (splitKeys.length + 1) + " regions");
+      if (splitKeys.length > 0) {
+        admin.createTable(descriptor, splitKeys);
+      }
+      else {
+        admin.createTable(descriptor);
+      }
+    }
+  }
+
+  /**
+   * Compare the configured tables with what exists in HBase, log and return the differences. When changes are to be
+   * applied, differing and missing column families are altered, which takes the table offline for a moment.
+   */
+  public List<String> verifyTables() throws IOException {
+    final HBaseAdmin admin = new HBaseAdmin(config);
+    final List<String> differences = new ArrayList<String>();
+    for (String tableName : getTableNames()) {
+      if (!admin.tableExists(tableName)) {
+        differences.add(tableName + ": table does not exist");
+        continue;
+      }
+      final HTableDescriptor existing = admin.getTableDescriptor(Bytes.toBytes(tableName));
+      final List<HColumnDescriptor> changed = new ArrayList<HColumnDescriptor>();
+      final List<HColumnDescriptor> missing = new ArrayList<HColumnDescriptor>();
+      for (String family : getFamilies(tableName)) {
+        final HColumnDescriptor expected = getColumnDescriptor(tableName, family);
+        final HColumnDescriptor actual = existing.getFamily(Bytes.toBytes(family));
+        if (actual == null) {
+          differences.add(tableName + ':' + family + ": column family does not exist");
+          missing.add(expected);
+          continue;
+        }
+        if (compare(tableName + ':' + family, expected, actual, differences)) {
+          changed.add(expected);
+        }
+      }
+      final int regions = getRegions(tableName);
+      final int actualRegions = admin.getTableRegions(Bytes.toBytes(tableName)).size();
+      if (actualRegions < regions) {
+        differences.add(tableName + ": " + actualRegions + " regions, configured to be pre-split into " + regions);
+      }
+      if (isApplyChanges() && (!changed.isEmpty() || !missing.isEmpty())) {
+        applyChanges(admin, tableName, changed, missing);
+      }
+    }
+    for (String difference : differences) {
+      logger.warn("Schema differs from tuning configuration - " + difference);
+    }
+    return differences;
+  }
+
+  protected void applyChanges(HBaseAdmin admin, String tableName, List<HColumnDescriptor> changed,
+                              List<HColumnDescriptor> missing) throws IOException {
+    logger.info("Altering column families of " + tableName);
+    admin.disableTable(tableName);
+    try {
+      for (HColumnDescriptor descriptor : missing) {
+        admin.addColumn(tableName, descriptor);
+      }
+      for (HColumnDescriptor descriptor : changed) {
+        admin.modifyColumn(tableName, descriptor);
+      }
+    }
+    finally {
+      admin.enableTable(tableName);
+    }
+  }
+
+  protected boolean compare(String name, HColumnDescriptor expected, HColumnDescriptor actual,
+                            List<String> differences) {
+    final int before = differences.size();
+    compare(name, BLOOM_FILTER, expected.getBloomFilterType(), actual.getBloomFilterType(), differences);
+    compare(name, COMPRESSION, expected.getCompressionType(), actual.getCompressionType(), differences);
+    compare(name, BLOCK_SIZE, expected.getBlocksize(), actual.getBlocksize(), differences);
+    compare(name, IN_MEMORY, expected.isInMemory(), actual.isInMemory(), differences);
+    compare(name, TTL, expected.getTimeToLive(), actual.getTimeToLive(), differences);
+    compare(name, MAX_VERSIONS, expected.getMaxVersions(), actual.getMaxVersions(), differences);
+    return differences.size() > before;
+  }
+
+  private void compare(String name, String setting, Object expected, Object actual, List<String> differences) {
+    if (!expected.equals(actual)) {
+      differences.add(name + ": " + setting + " is " + actual + ", configured " + expected);
+    }
+  }
+
+  public String[] getFamilies(String tableName) {
+    return StringUtils.split(getProperty(tableName, FAMILIES, "self"), ", ");
+  }
+
+  public int getRegions(String tableName) {
+    return Integer.parseInt(getProperty(tableName, REGIONS, "1"));
+  }
+
+  /**
+   * The column descriptor of a family, HBase defaults apply to whatever is not configured
+   */
+  public HColumnDescriptor getColumnDescriptor(String tableName, String family) {
+    final HColumnDescriptor descriptor = new HColumnDescriptor(family);
+    final String prefix = tableName + '.' + family;
+    final String bloomFilter = getProperty(prefix, BLOOM_FILTER, null);
+    if (bloomFilter != null) {
+      descriptor.setBloomFilterType(StoreFile.BloomType.valueOf(bloomFilter.toUpperCase()));
+    }
+    final String compression = getProperty(prefix, COMPRESSION, null);
+    if (compression != null) {
+      descriptor.setCompressionType(Compression.getCompressionAlgorithmByName(compression.toLowerCase()));
+    }
+    final String blockSize = getProperty(prefix, BLOCK_SIZE, null);
+    if (blockSize != null) {
+      descriptor.setBlocksize(Integer.parseInt(blockSize));
+    }
+    final String inMemory = getProperty(prefix, IN_MEMORY, null);
+    if (inMemory != null) {
+      descriptor.setInMemory(Boolean.parseBoolean(inMemory));
+    }
+    final String ttl = getProperty(prefix, TTL, null);
+    if (ttl != null) {
+      descriptor.setTimeToLive(Integer.parseInt(ttl));
+    }
+    final String maxVersions = getProperty(prefix, MAX_VERSIONS, null);
+    if (maxVersions != null) {
+      descriptor.setMaxVersions(Integer.parseInt(maxVersions));
+    }
+    return descriptor;
+  }
+
+  public byte[][] getSplitKeys(String tableName) {
+    final int regions = getRegions(tableName);
+    if (regions <= 1) {
+      return new byte[0][];
+    }
+    final byte[] prefix = Bytes.toBytesBinary(getProperty(tableName, SPLIT_PREFIX, ""));
+    final SplitStrategy strategy = SplitStrategy.valueOf(getProperty(tableName, SPLIT, SplitStrategy.SAMPLED.name()).
+        toUpperCase());
+    switch (strategy) {
+      case BYTE:
+        return byteSplitKeys(prefix, Integer.parseInt(getProperty(tableName, SPLIT_BYTE_RANGE, "256")), regions);
+      case CHARSET:
+        return charsetSplitKeys(prefix, getProperty(tableName, SPLIT_CHARSET, DEFAULT_CHARSET), regions);
+      case SAMPLED:
+      default:
+        return sampledSplitKeys(prefix, sampleSessionIds(Integer.parseInt(getProperty(tableName, SPLIT_SAMPLES,
+                                                                                        "10000"))), regions);
+    }
+  }
+
+  /**
+   * Split keys made of the prefix and two characters of the charset, so that up to charset length squared regions
+   * each get an equal share of uniformly random ids.
+   */
+  public static byte[][] charsetSplitKeys(byte[] prefix, String charset, int regions) {
+    final char[] chars = charset.toCharArray();
+    Arrays.sort(chars);
+    final int space = chars.length * chars.length;
+    final List<byte[]> keys = new ArrayList<byte[]>(regions);
+    int last = 0;
+    for (int i = 1; i < regions; i++) {
+      final int position = (int) ((long) i * space / regions);
+      if (position <= last) {
+        continue;
+      }
+      last = position;
+      keys.add(Bytes.add(prefix, Bytes.toBytes(new String(new char[]{chars[position / chars.length],
+                                                                    chars[position % chars.length]}))));
+    }
+    return keys.toArray(new byte[keys.size()][]);
+  }
+
+  /**
+   * Split keys made of the prefix and the leading bytes of the samples at evenly spaced quantiles, so that each region
+   * gets an equal share of keys distributed like the samples.
+   */
+  public static byte[][] sampledSplitKeys(byte[] prefix, List<byte[]> samples, int regions) {
+    final List<byte[]> sorted = new ArrayList<byte[]>(samples);
+    Collections.sort(sorted, Bytes.BYTES_COMPARATOR);
+    final List<byte[]> keys = new ArrayList<byte[]>(regions);
+    byte[] last = null;
+    for (int i = 1; i < regions && !sorted.isEmpty(); i++) {
+      final byte[] sample = sorted.get((int) ((long) i * sorted.size() / regions));
+      final byte[] key = Bytes.add(prefix, Arrays.copyOf(sample, Math.min(sample.length, SPLIT_KEY_LENGTH)));
+      if (last != null && Bytes.compareTo(key, last) <= 0) {
+        continue;
+      }
+      last = key;
+      keys.add(key);
+    }
+    return keys.toArray(new byte[keys.size()][]);
+  }
+
+  /**
+   * Session ids generated like Jetty's session id manager generates them, from a fixed seed so that the same
+   * configuration always yields the same split keys
+   */
+  public static List<byte[]> sampleSessionIds(int count) {
+    final Random random = new Random(count);
+    final List<byte[]> ids = new ArrayList<byte[]>(count);
+    for (int i = 0; i < count; i++) {
+      ids.add(Bytes.toBytes(Long.toString(random.nextLong() & Long.MAX_VALUE, 36)));
+    }
+    return ids;
+  }
+
+  /**
+   * Split keys made of the prefix and a single byte spread evenly over [0, range)
+   */
+  public static byte[][] byteSplitKeys(byte[] prefix, int range, int regions) {
+    final List<byte[]> keys = new ArrayList<byte[]>(regions);
+    int last = 0;
+    for (int i = 1; i < regions; i++) {
+      final int position = (int) ((long) i * range / regions);
+      if (position <= last) {
+        continue;
+      }
+      last = position;
+      keys.add(Bytes.add(prefix, new byte[]{(byte) position}));
+    }
+    return keys.toArray(new byte[keys.size()][]);
+  }
+
+  private String getProperty(String prefix, String key, String defaultValue) {
+    final String value = properties.getProperty(prefix + '.' + key);
+    return value == null || value.trim().length() == 0 ? defaultValue : value.trim();
+  }
+}
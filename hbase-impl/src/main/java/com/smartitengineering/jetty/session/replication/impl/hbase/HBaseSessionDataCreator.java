@@ -0,0 +1,71 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.hbase;
+
+import com.google.inject.Inject;
+import com.smartitengineering.dao.impl.hbase.spi.ObjectRowConverter;
+import com.smartitengineering.dao.impl.hbase.spi.SchemaInfoProvider;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataCreator;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+
+/**
+ * Puts a new session data row with a check and put on the absence of its created cell, which every session row has,
+ * so that the first write claims the id.
+ *
+ * @author imyousuf
+ */
+public class HBaseSessionDataCreator implements SessionDataCreator {
+
+  @Inject
+  private HTablePool tablePool;
+  @Inject
+  private SchemaInfoProvider<SessionData, SessionDataId> infoProvider;
+  @Inject
+  private ObjectRowConverter<SessionData> converter;
+
+  @Override
+  public boolean create(SessionData data) {
+    final SessionData.AttributeChanges changes = data.drainAttributeChanges();
+    final HTableInterface table = tablePool.getTable(infoProvider.getMainTableName());
+    boolean created = false;
+    try {
+      final Put put = ((SessionDataObjectConverter) converter).toPut(data, changes);
+      created = table.checkAndPut(put.getRow(), SessionDataObjectConverter.FAMILY_SELF,
+                                  SessionDataObjectConverter.CELL_CREATED, null, put);
+      if (created) {
+        data.setStoredLastNode(((SessionDataObjectConverter) converter).getLastNode(put));
+      }
+      return created;
+    }
+    catch (Exception ex) {
+      throw new IllegalStateException("Could not create session " + data.getId(), ex);
+    }
+    finally {
+      if (!created) {
+        data.restoreAttributeChanges(changes);
+      }
+      tablePool.putTable(table);
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.hbase;
+
+import com.google.inject.Inject;
+import com.smartitengineering.dao.impl.hbase.HBaseConfigurationFactory;
+import com.smartitengineering.dao.impl.hbase.spi.ObjectRowConverter;
+import com.smartitengineering.dao.impl.hbase.spi.SchemaInfoProvider;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.SessionDataScanner;
+import com.smartitengineering.jetty.session.replication.SessionDataStream;
+import com.smartitengineering.jetty.session.replication.SessionScanCriteria;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans the session data table with an HBase scanner so that rows are fetched lazily in batches of the configured
+ * caching size. Context and virtual host restrictions are pushed to the region servers as column value filters and
+ * re-checked on the client for rows written before those columns existed.
+ *
+ * @author imyousuf
+ */
+public class HBaseSessionDataScanner implements SessionDataScanner {
+
+  protected final Logger logger = LoggerFactory.getLogger(getClass());
+  @Inject
+  private SchemaInfoProvider<SessionData, SessionDataId> infoProvider;
+  @Inject
+  private ObjectRowConverter<SessionData> converter;
+
+  @Override
+  public SessionDataStream scan(SessionScanCriteria criteria) {
+    final SessionScanCriteria scanCriteria = criteria == null ? new SessionScanCriteria() : criteria;
+    if (logger.isInfoEnabled()) {
+      logger.info("Scanning session data with " + scanCriteria);
+    }
+    try {
+      final HTable table = new HTable(HBaseConfigurationFactory.getConfigurationInstance(),
+                                      infoProvider.getMainTableName());
+      try {
+        return new ScannerStream(table, table.getScanner(toScan(scanCriteria)), scanCriteria);
+      }
+      catch (IOException ex) {
+        table.close();
+        throw ex;
+      }
+    }
+    catch (Exception ex) {
+      logger.error("Could not open session data scanner!", ex);
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  protected Scan toScan(SessionScanCriteria criteria) throws Exception {
+    final Scan scan = new Scan();
+    if (criteria.getCaching() > 0) {
+      scan.setCaching(criteria.getCaching());
+    }
+    if (criteria.getInClusterId() != null) {
+      //Binary row keys start with the cluster id, so its rows are a contiguous range
+      final byte[] prefix = Bytes.add(new byte[]{SessionDataId.BINARY_MARKER}, Bytes.toBytes(criteria.
+          getInClusterId()));
+      scan.setStartRow(prefix);
+      scan.setStopRow(stopRowForPrefix(prefix));
+    }
+    if (criteria.getStartAfter() != null) {
+      scan.setStartRow(Bytes.add(infoProvider.getRowIdFromId(criteria.getStartAfter()), new byte[]{0}));
+    }
+    final FilterList filters = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+    if (criteria.getCanonicalContextPath() != null) {
+      filters.addFilter(equalsFilter(SessionDataObjectConverter.CELL_CANNONICAL_CONTEXT, Bytes.toBytes(criteria.
+          getCanonicalContextPath())));
+    }
+    if (criteria.getVirtualHost() != null) {
+      filters.addFilter(equalsFilter(SessionDataObjectConverter.CELL_VIRTUAL_HOST, Bytes.toBytes(criteria.
+          getVirtualHost())));
+    }
+    if (criteria.getLastNode() != null) {
+      filters.addFilter(equalsFilter(SessionDataObjectConverter.CELL_LAST_NODE, Bytes.toBytes(criteria.getLastNode())));
+    }
+    if (criteria.getExpiresAfter() > 0) {
+      //Expiry times are positive, so their big endian bytes sort like the numbers
+      final SingleColumnValueFilter filter = new SingleColumnValueFilter(SessionDataObjectConverter.FAMILY_SELF,
+                                                                        SessionDataObjectConverter.CELL_EXPIRY_TIME,
+                                                                        CompareOp.GREATER, Bytes.toBytes(criteria.
+          getExpiresAfter()));
+      filter.setFilterIfMissing(true);
+      filters.addFilter(filter);
+    }
+    if (!filters.getFilters().isEmpty()) {
+      scan.setFilter(filters);
+    }
+    return scan;
+  }
+
+  protected static byte[] stopRowForPrefix(byte[] prefix) {
+    final byte[] stop = Arrays.copyOf(prefix, prefix.length);
+    for (int i = stop.length - 1; i >= 0; --i) {
+      if (stop[i] != (byte) 0xFF) {
+        ++stop[i];
+        return Arrays.copyOf(stop, i + 1);
+      }
+    }
+    //All bytes are 0xFF, scan to the end of the table
+    return new byte[0];
+  }
+
+  protected SingleColumnValueFilter equalsFilter(byte[] qualifier, byte[] value) {
+    final SingleColumnValueFilter filter = new SingleColumnValueFilter(SessionDataObjectConverter.FAMILY_SELF,
+                                                                      qualifier, CompareOp.EQUAL, value);
+    //Rows written before the column existed are checked on the client
+    filter.setFilterIfMissing(false);
+    return filter;
+  }
+
+  protected class ScannerStream implements SessionDataStream {
+
+    private final HTable table;
+    private final ResultScanner scanner;
+    private final SessionScanCriteria criteria;
+    private SessionData next;
+    private int returned;
+    private boolean closed;
+
+    public ScannerStream(HTable table, ResultScanner scanner, SessionScanCriteria criteria) {
+      this.table = table;
+      this.scanner = scanner;
+      this.criteria = criteria;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next != null) {
+        return true;
+      }
+      if (closed) {
+        return false;
+      }
+      if (criteria.getPageSize() > 0 && returned >= criteria.getPageSize()) {
+        closeQuietly();
+        return false;
+      }
+      try {
+        Result result;
+        while ((result = scanner.next()) != null) {
+          final SessionData data = converter.rowsToObject(result, null);
+          if (criteria.matches(data)) {
+            next = data;
+            return true;
+          }
+        }
+      }
+      catch (IOException ex) {
+        closeQuietly();
+        throw new IllegalStateException(ex);
+      }
+      closeQuietly();
+      return false;
+    }
+
+    @Override
+    public SessionData next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final SessionData current = next;
+      next = null;
+      ++returned;
+      return current;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        scanner.close();
+      }
+      finally {
+        table.close();
+      }
+    }
+
+    protected void closeQuietly() {
+      try {
+        close();
+      }
+      catch (IOException ex) {
+        logger.warn("Could not close scanner", ex);
+      }
+    }
+  }
+}
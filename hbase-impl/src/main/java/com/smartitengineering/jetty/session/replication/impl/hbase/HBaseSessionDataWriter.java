@@ -0,0 +1,138 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.hbase;
+
+import com.google.inject.Inject;
+import com.smartitengineering.dao.common.CommonWriteDao;
+import com.smartitengineering.dao.impl.hbase.spi.ObjectRowConverter;
+import com.smartitengineering.dao.impl.hbase.spi.SchemaInfoProvider;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes session data with plain puts carrying the attributes changed since the last write and tombstones for the
+ * removed ones. The attribute changes are drained here, right before the put, and put back if it fails. Tombstones are
+ * purged once the put is written, unless the attribute has been set again in the meantime.
+ *
+ * @author imyousuf
+ */
+public class HBaseSessionDataWriter implements CommonWriteDao<SessionData> {
+
+  protected final Logger logger = LoggerFactory.getLogger(getClass());
+  @Inject
+  protected HTablePool tablePool;
+  @Inject
+  protected SchemaInfoProvider<SessionData, SessionDataId> infoProvider;
+  @Inject
+  protected ObjectRowConverter<SessionData> converter;
+
+  @Override
+  public void save(SessionData... states) {
+    update(states);
+  }
+
+  @Override
+  public void update(SessionData... states) {
+    if (states == null) {
+      return;
+    }
+    final HTableInterface table = tablePool.getTable(infoProvider.getMainTableName());
+    try {
+      final List<Put> puts = new ArrayList<Put>(states.length);
+      final List<SessionData.AttributeChanges> drained = new ArrayList<SessionData.AttributeChanges>(states.length);
+      try {
+        for (SessionData data : states) {
+          final SessionData.AttributeChanges changes = data.drainAttributeChanges();
+          drained.add(changes);
+          puts.add(getConverter().toPut(data, changes));
+        }
+        table.put(new ArrayList<Put>(puts));
+      }
+      catch (Exception ex) {
+        for (int i = 0; i < drained.size(); ++i) {
+          states[i].restoreAttributeChanges(drained.get(i));
+        }
+        throw new IllegalStateException("Could not write session data", ex);
+      }
+      for (int i = 0; i < puts.size(); ++i) {
+        states[i].setStoredLastNode(getConverter().getLastNode(puts.get(i)));
+        purgeTombstones(table, puts.get(i));
+      }
+    }
+    finally {
+      tablePool.putTable(table);
+    }
+  }
+
+  @Override
+  public void delete(SessionData... states) {
+    if (states == null) {
+      return;
+    }
+    final HTableInterface table = tablePool.getTable(infoProvider.getMainTableName());
+    try {
+      final List<Delete> deletes = new ArrayList<Delete>(states.length);
+      for (SessionData data : states) {
+        deletes.add(new Delete(infoProvider.getRowIdFromId(data.getId())));
+      }
+      table.delete(deletes);
+    }
+    catch (Exception ex) {
+      throw new IllegalStateException("Could not delete session data", ex);
+    }
+    finally {
+      tablePool.putTable(table);
+    }
+  }
+
+  protected SessionDataObjectConverter getConverter() {
+    return (SessionDataObjectConverter) converter;
+  }
+
+  /**
+   * Delete the tombstones a written put left behind. They are read back first so that only cells still holding a
+   * tombstone are deleted, with the timestamp they were written at; a failure only leaves them for the next removal.
+   */
+  protected void purgeTombstones(HTableInterface table, Put put) {
+    final Get get = getConverter().toTombstoneGet(put);
+    if (get == null) {
+      return;
+    }
+    try {
+      final Delete delete = getConverter().toTombstoneDelete(table.get(get));
+      if (delete != null) {
+        table.delete(delete);
+      }
+    }
+    catch (Exception ex) {
+      logger.warn("Could not purge removed attributes of session row " + Bytes.toStringBinary(put.getRow()), ex);
+    }
+  }
+}
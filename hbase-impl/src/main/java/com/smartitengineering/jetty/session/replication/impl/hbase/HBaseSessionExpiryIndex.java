@@ -0,0 +1,165 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.hbase;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.smartitengineering.dao.impl.hbase.spi.SchemaInfoProvider;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.SessionExpiryIndex;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Expiry index kept in its own table. Row keys are the shard byte, the expiry bucket as a long and the session data
+ * row id, so that the expired entries of a shard are one contiguous key range starting at the beginning of the shard.
+ *
+ * @author imyousuf
+ */
+public class HBaseSessionExpiryIndex implements SessionExpiryIndex {
+
+  public static final String TABLE_NAME = "sessionexpiry";
+  public static final byte[] FAMILY_SELF = Bytes.toBytes("self");
+  public static final byte[] CELL_EXPIRY_TIME = Bytes.toBytes("expiryTime");
+  public static final int SHARD_COUNT = 16;
+  private static final int PREFIX_LENGTH = 1 + Bytes.SIZEOF_LONG;
+  protected final Logger logger = LoggerFactory.getLogger(getClass());
+  @Inject
+  private HTablePool tablePool;
+  private final long bucketMillis;
+  @Inject
+  private SchemaInfoProvider<SessionData, SessionDataId> infoProvider;
+
+  @Inject
+  public HBaseSessionExpiryIndex(@Named("expiryIndexBucketSeconds") Integer bucketSeconds) {
+    this.bucketMillis = (bucketSeconds == null || bucketSeconds.intValue() <= 0 ? 60 : bucketSeconds.intValue()) *
+        1000l;
+  }
+
+  @Override
+  public int getShardCount() {
+    return SHARD_COUNT;
+  }
+
+  @Override
+  public void record(SessionData data) {
+    final long expiryTime = data.getExpiryTime();
+    if (expiryTime <= 0) {
+      return;
+    }
+    final long bucket = expiryTime / bucketMillis;
+    final long indexed = data.getIndexedExpiryTime();
+    if (indexed > 0 && indexed / bucketMillis == bucket) {
+      return;
+    }
+    final HTableInterface table = tablePool.getTable(TABLE_NAME);
+    try {
+      final SessionDataId id = data.getId();
+      final Put put = new Put(toRow(shardOf(id), bucket, infoProvider.getRowIdFromId(id)));
+      put.add(FAMILY_SELF, CELL_EXPIRY_TIME, Bytes.toBytes(expiryTime));
+      table.put(put);
+      data.setIndexedExpiryTime(expiryTime);
+    }
+    catch (Exception ex) {
+      throw new IllegalStateException("Could not index expiry of " + data.getId(), ex);
+    }
+    finally {
+      tablePool.putTable(table);
+    }
+  }
+
+  @Override
+  public List<Entry> findExpired(int shard, long expiredBefore, int limit) {
+    final Scan scan = new Scan(toRow(shard, 0, new byte[0]), toRow(shard, expiredBefore / bucketMillis, new byte[0]));
+    scan.setCaching(limit);
+    scan.setFilter(new FirstKeyOnlyFilter());
+    final HTableInterface table = tablePool.getTable(TABLE_NAME);
+    try {
+      final ResultScanner scanner = table.getScanner(scan);
+      try {
+        final List<Entry> entries = new ArrayList<Entry>(limit);
+        Result result;
+        while (entries.size() < limit && (result = scanner.next()) != null) {
+          final byte[] row = result.getRow();
+          final SessionDataId id = infoProvider.getIdFromRowId(Arrays.copyOfRange(row, PREFIX_LENGTH, row.length));
+          entries.add(new Entry(shard, Bytes.toLong(row, 1), id));
+        }
+        return entries;
+      }
+      finally {
+        scanner.close();
+      }
+    }
+    catch (Exception ex) {
+      logger.error("Could not scan expiry index shard " + shard, ex);
+      return Collections.emptyList();
+    }
+    finally {
+      tablePool.putTable(table);
+    }
+  }
+
+  @Override
+  public void remove(List<Entry> entries) {
+    if (entries == null || entries.isEmpty()) {
+      return;
+    }
+    final HTableInterface table = tablePool.getTable(TABLE_NAME);
+    try {
+      final List<Delete> deletes = new ArrayList<Delete>(entries.size());
+      for (Entry entry : entries) {
+        deletes.add(new Delete(toRow(entry.getShard(), entry.getBucket(), infoProvider.getRowIdFromId(entry.getId()))));
+      }
+      table.delete(deletes);
+    }
+    catch (Exception ex) {
+      throw new IllegalStateException("Could not remove expiry index entries", ex);
+    }
+    finally {
+      tablePool.putTable(table);
+    }
+  }
+
+  protected int shardOf(SessionDataId id) {
+    return (id.hashCode() & Integer.MAX_VALUE) % SHARD_COUNT;
+  }
+
+  protected byte[] toRow(int shard, long bucket, byte[] rowId) {
+    final byte[] row = new byte[PREFIX_LENGTH + rowId.length];
+    row[0] = (byte) shard;
+    Bytes.putLong(row, 1, bucket);
+    System.arraycopy(rowId, 0, row, PREFIX_LENGTH, rowId.length);
+    return row;
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.hbase;
+
+import com.google.inject.Inject;
+import com.smartitengineering.dao.impl.hbase.HBaseConfigurationFactory;
+import com.smartitengineering.dao.impl.hbase.spi.SchemaInfoProvider;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.SessionId;
+import com.smartitengineering.jetty.session.replication.SessionIdScanner;
+import com.smartitengineering.jetty.session.replication.SessionIdStream;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lists cluster ids from the row keys of the session id or session data table. Only the first cell of every row is
+ * returned by the region servers.
+ *
+ * @author imyousuf
+ */
+public class HBaseSessionIdScanner implements SessionIdScanner {
+
+  protected final Logger logger = LoggerFactory.getLogger(getClass());
+  @Inject
+  private SchemaInfoProvider<SessionId, String> idInfoProvider;
+  @Inject
+  private SchemaInfoProvider<SessionData, SessionDataId> dataInfoProvider;
+
+  @Override
+  public SessionIdStream scanSessionIds(int caching) {
+    return open(idInfoProvider.getMainTableName(), caching, false);
+  }
+
+  @Override
+  public SessionIdStream scanSessionDataIds(int caching) {
+    return open(dataInfoProvider.getMainTableName(), caching, true);
+  }
+
+  protected SessionIdStream open(String tableName, int caching, boolean dataTable) {
+    final Scan scan = new Scan();
+    if (caching > 0) {
+      scan.setCaching(caching);
+    }
+    scan.setFilter(new FirstKeyOnlyFilter());
+    try {
+      final HTable table = new HTable(HBaseConfigurationFactory.getConfigurationInstance(), tableName);
+      try {
+        return new KeyStream(table, table.getScanner(scan), dataTable);
+      }
+      catch (IOException ex) {
+        table.close();
+        throw ex;
+      }
+    }
+    catch (Exception ex) {
+      logger.error("Could not open session id scanner on " + tableName, ex);
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  protected String toClusterId(byte[] row, boolean dataTable) throws Exception {
+    if (dataTable) {
+      return dataInfoProvider.getIdFromRowId(row).getInClusterId();
+    }
+    return idInfoProvider.getIdFromRowId(row);
+  }
+
+  protected class KeyStream implements SessionIdStream {
+
+    private final HTable table;
+    private final ResultScanner scanner;
+    private final boolean dataTable;
+    private String next;
+    private boolean closed;
+
+    public KeyStream(HTable table, ResultScanner scanner, boolean dataTable) {
+      this.table = table;
+      this.scanner = scanner;
+      this.dataTable = dataTable;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next != null) {
+        return true;
+      }
+      if (closed) {
+        return false;
+      }
+      try {
+        Result result;
+        while ((result = scanner.next()) != null) {
+          try {
+            next = toClusterId(result.getRow(), dataTable);
+          }
+          catch (Exception ex) {
+            logger.warn("Skipping unparseable row key", ex);
+          }
+          if (next != null) {
+            return true;
+          }
+        }
+      }
+      catch (IOException ex) {
+        closeQuietly();
+        throw new IllegalStateException(ex);
+      }
+      closeQuietly();
+      return false;
+    }
+
+    @Override
+    public String next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final String current = next;
+      next = null;
+      return current;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        scanner.close();
+      }
+      finally {
+        table.close();
+      }
+    }
+
+    protected void closeQuietly() {
+      try {
+        close();
+      }
+      catch (IOException ex) {
+        logger.warn("Could not close scanner", ex);
+      }
+    }
+  }
+}
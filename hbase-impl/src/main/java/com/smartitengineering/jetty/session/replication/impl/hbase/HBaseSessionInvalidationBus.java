@@ -0,0 +1,289 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.hbase;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.smartitengineering.dao.impl.hbase.spi.SchemaInfoProvider;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.SessionInvalidationBus;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Invalidation bus over a change marker table that every node polls. Published ids are collected and written once
+ * per poll interval as one row per node, keyed by a rotating shard byte, the write time, the node and a per node
+ * sequence number, with the session data row ids as qualifiers. The shard byte spreads consecutive flushes over the
+ * table's regions instead of always appending to the last one, and the sequence number keeps two flushes within the
+ * same millisecond apart. Every poll scans the rows written to each shard since the previous poll, looking back a few
+ * intervals to tolerate clock skew. Old rows expire with the time to live of the table's column family, so that no
+ * node has to remember and delete the rows it wrote, which it would forget on restart. A poll interval of zero
+ * disables the bus.
+ *
+ * @author imyousuf
+ */
+public class HBaseSessionInvalidationBus implements SessionInvalidationBus {
+
+  public static final String TABLE_NAME = "sessioninvalidation";
+  public static final byte[] FAMILY_SELF = Bytes.toBytes("self");
+  public static final int SHARD_COUNT = 8;
+  private static final int PREFIX_LENGTH = 1 + Bytes.SIZEOF_LONG;
+  private static final byte[] EMPTY = new byte[0];
+  private static final long MIN_LOOKBACK = 5000;
+  protected final Logger logger = LoggerFactory.getLogger(getClass());
+  private final long pollMillis;
+  private final long lookbackMillis;
+  @Inject
+  private HTablePool tablePool;
+  private final ConcurrentMap<SessionDataId, String> pending = new ConcurrentHashMap<SessionDataId, String>();
+  private final ConcurrentMap<Listener, String> listeners = new ConcurrentHashMap<Listener, String>();
+  private final AtomicInteger sequence = new AtomicInteger();
+  private final Object pollLock = new Object();
+  private final Map<String, Long> seenRows = new HashMap<String, Long>();
+  private ScheduledExecutorService service;
+  private long cursor;
+  @Inject
+  private SchemaInfoProvider<SessionData, SessionDataId> infoProvider;
+
+  @Inject
+  public HBaseSessionInvalidationBus(@Named("invalidationPollMillis") Integer pollMillis) {
+    this.pollMillis = pollMillis == null || pollMillis.intValue() < 0 ? 0 : pollMillis.intValue();
+    this.lookbackMillis = Math.max(MIN_LOOKBACK, this.pollMillis * 3);
+  }
+
+  @Override
+  public boolean isActive() {
+    return pollMillis > 0;
+  }
+
+  @Override
+  public void publish(String originNode, SessionDataId id) {
+    if (isActive() && originNode != null && id != null) {
+      pending.put(id, originNode);
+    }
+  }
+
+  @Override
+  public synchronized void subscribe(String node, Listener listener) {
+    if (!isActive()) {
+      return;
+    }
+    listeners.put(listener, node == null ? "" : node);
+    if (service == null) {
+      synchronized (pollLock) {
+        cursor = System.currentTimeMillis();
+      }
+      service = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "session-invalidation");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      service.scheduleWithFixedDelay(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            cycle();
+          }
+          catch (Exception ex) {
+            logger.warn("Session invalidation cycle failed", ex);
+          }
+        }
+      }, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public synchronized void unsubscribe(Listener listener) {
+    listeners.remove(listener);
+    if (listeners.isEmpty() && service != null) {
+      service.shutdown();
+      service = null;
+      //Do not lose changes published before the last listener left
+      flush();
+    }
+  }
+
+  protected void cycle() {
+    flush();
+    poll();
+  }
+
+  protected void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    final Map<String, Put> puts = new HashMap<String, Put>();
+    final Map<SessionDataId, String> flushed = new HashMap<SessionDataId, String>();
+    final long now = System.currentTimeMillis();
+    for (Map.Entry<SessionDataId, String> entry : pending.entrySet()) {
+      final SessionDataId id = entry.getKey();
+      final String origin = entry.getValue();
+      final byte[] rowId;
+      try {
+        rowId = infoProvider.getRowIdFromId(id);
+      }
+      catch (Exception ex) {
+        //Retrying would not help, drop only this id
+        pending.remove(id, origin);
+        logger.warn("Could not encode session id " + id + " to invalidate", ex);
+        continue;
+      }
+      if (!pending.remove(id, origin)) {
+        //Published again in the mean time, left for the next flush
+        continue;
+      }
+      flushed.put(id, origin);
+      Put put = puts.get(origin);
+      if (put == null) {
+        put = new Put(toRow(now, origin, sequence.getAndIncrement()));
+        puts.put(origin, put);
+      }
+      put.add(FAMILY_SELF, rowId, EMPTY);
+    }
+    if (puts.isEmpty()) {
+      return;
+    }
+    final HTableInterface table = tablePool.getTable(TABLE_NAME);
+    try {
+      table.put(new ArrayList<Put>(puts.values()));
+    }
+    catch (Exception ex) {
+      //Other nodes would keep serving stale copies, so publish them again with the next flush
+      for (Map.Entry<SessionDataId, String> entry : flushed.entrySet()) {
+        pending.putIfAbsent(entry.getKey(), entry.getValue());
+      }
+      logger.warn("Could not publish session invalidations, retrying " + flushed.size() + " with the next flush", ex);
+    }
+    finally {
+      tablePool.putTable(table);
+    }
+  }
+
+  protected void poll() {
+    final Map<Listener, List<SessionDataId>> deliveries = new HashMap<Listener, List<SessionDataId>>();
+    synchronized (pollLock) {
+      final long now = System.currentTimeMillis();
+      final long from = Math.max(0, cursor - lookbackMillis);
+      final HTableInterface table = tablePool.getTable(TABLE_NAME);
+      try {
+        for (int shard = 0; shard < SHARD_COUNT; ++shard) {
+          final Scan scan = new Scan(toPrefix(shard, from), toPrefix(shard + 1, 0));
+          scan.setCaching(100);
+          final ResultScanner scanner = table.getScanner(scan);
+          try {
+            Result result;
+            while ((result = scanner.next()) != null) {
+              collect(result, deliveries);
+            }
+          }
+          finally {
+            scanner.close();
+          }
+        }
+        cursor = now;
+      }
+      catch (Exception ex) {
+        logger.warn("Could not poll session invalidations", ex);
+      }
+      finally {
+        tablePool.putTable(table);
+      }
+      final Iterator<Long> seen = seenRows.values().iterator();
+      while (seen.hasNext()) {
+        if (seen.next().longValue() < cursor - lookbackMillis) {
+          seen.remove();
+        }
+      }
+    }
+    for (Map.Entry<Listener, List<SessionDataId>> delivery : deliveries.entrySet()) {
+      try {
+        delivery.getKey().invalidate(delivery.getValue());
+      }
+      catch (Exception ex) {
+        logger.warn("Session invalidation listener failed", ex);
+      }
+    }
+  }
+
+  private void collect(Result result, Map<Listener, List<SessionDataId>> deliveries) {
+    final byte[] row = result.getRow();
+    final String rowKey = Bytes.toStringBinary(row);
+    if (seenRows.containsKey(rowKey)) {
+      return;
+    }
+    seenRows.put(rowKey, Bytes.toLong(row, 1));
+    final String origin = Bytes.toString(row, PREFIX_LENGTH, row.length - PREFIX_LENGTH - Bytes.SIZEOF_INT);
+    final NavigableMap<byte[], byte[]> cells = result.getFamilyMap(FAMILY_SELF);
+    if (cells == null) {
+      return;
+    }
+    for (Map.Entry<Listener, String> listener : listeners.entrySet()) {
+      if (listener.getValue().equals(origin)) {
+        continue;
+      }
+      List<SessionDataId> ids = deliveries.get(listener.getKey());
+      if (ids == null) {
+        ids = new ArrayList<SessionDataId>();
+        deliveries.put(listener.getKey(), ids);
+      }
+      for (byte[] qualifier : cells.keySet()) {
+        ids.add(infoProvider.getIdFromRowId(qualifier));
+      }
+    }
+  }
+
+  protected byte[] toPrefix(int shard, long time) {
+    final byte[] prefix = new byte[PREFIX_LENGTH];
+    prefix[0] = (byte) shard;
+    Bytes.putLong(prefix, 1, time);
+    return prefix;
+  }
+
+  protected byte[] toRow(long time, String node, int flush) {
+    return Bytes.add(toPrefix((flush & Integer.MAX_VALUE) % SHARD_COUNT, time), Bytes.toBytes(node), Bytes.toBytes(
+        flush));
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.hbase;
+
+import com.google.inject.Inject;
+import com.smartitengineering.dao.impl.hbase.spi.SchemaInfoProvider;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.SessionLeaseService;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Takes session leases over with a check and put on the lease expiry cell of the session data row, writing the new
+ * owner and lease expiry only if the cell still holds the value the caller loaded. Leases are renewed with a check and
+ * put on the last node cell, so only the owner can extend its lease.
+ *
+ * @author imyousuf
+ */
+public class HBaseSessionLeaseService implements SessionLeaseService {
+
+  protected final Logger logger = LoggerFactory.getLogger(getClass());
+  @Inject
+  private HTablePool tablePool;
+  @Inject
+  private SchemaInfoProvider<SessionData, SessionDataId> infoProvider;
+
+  @Override
+  public boolean takeOver(SessionData data, String node, long leaseExpiry) {
+    if (data.getLeaseExpiry() > System.currentTimeMillis() && !node.equals(data.getLastNode())) {
+      //Still leased to another node
+      return false;
+    }
+    final HTableInterface table = tablePool.getTable(infoProvider.getMainTableName());
+    try {
+      final byte[] row = infoProvider.getRowIdFromId(data.getId());
+      //Rows never leased do not have the cell at all
+      final byte[] expected = data.getLeaseExpiry() > 0 ? Bytes.toBytes(data.getLeaseExpiry()) : null;
+      final Put put = new Put(row);
+      put.add(SessionDataObjectConverter.FAMILY_SELF, SessionDataObjectConverter.CELL_LAST_NODE, Bytes.toBytes(node));
+      put.add(SessionDataObjectConverter.FAMILY_SELF, SessionDataObjectConverter.CELL_LEASE_EXPIRY, Bytes.toBytes(
+          leaseExpiry));
+      final boolean acquired = table.checkAndPut(row, SessionDataObjectConverter.FAMILY_SELF,
+                                                 SessionDataObjectConverter.CELL_LEASE_EXPIRY, expected, put);
+      if (logger.isDebugEnabled()) {
+        logger.debug("Lease take over of " + data.getId() + " by " + node + " succeeded " + acquired);
+      }
+      return acquired;
+    }
+    catch (Exception ex) {
+      throw new IllegalStateException("Could not take lease of " + data.getId() + " over", ex);
+    }
+    finally {
+      tablePool.putTable(table);
+    }
+  }
+
+  @Override
+  public boolean renew(SessionData data, String node, long leaseExpiry) {
+    final HTableInterface table = tablePool.getTable(infoProvider.getMainTableName());
+    try {
+      final byte[] row = infoProvider.getRowIdFromId(data.getId());
+      final Put put = new Put(row);
+      put.add(SessionDataObjectConverter.FAMILY_SELF, SessionDataObjectConverter.CELL_LEASE_EXPIRY, Bytes.toBytes(
+          leaseExpiry));
+      return table.checkAndPut(row, SessionDataObjectConverter.FAMILY_SELF, SessionDataObjectConverter.CELL_LAST_NODE,
+                               Bytes.toBytes(node), put);
+    }
+    catch (Exception ex) {
+      throw new IllegalStateException("Could not renew lease of " + data.getId(), ex);
+    }
+    finally {
+      tablePool.putTable(table);
+    }
+  }
+}
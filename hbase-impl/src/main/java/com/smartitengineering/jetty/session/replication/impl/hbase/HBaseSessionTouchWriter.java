@@ -0,0 +1,98 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.hbase;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.smartitengineering.dao.impl.hbase.spi.SchemaInfoProvider;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.SessionTouchWriter;
+import java.io.IOException;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Puts only the access cells of a session data row. The put is checked against the last node the row held when the
+ * session was loaded or last written, not the node that has taken it over in memory since, so that a touch never
+ * overwrites the row of a session another node has taken over in the mean time while a session that failed over to
+ * this node still gets touched. The last saved time is only recorded once the touch is written.
+ *
+ * @author imyousuf
+ */
+public class HBaseSessionTouchWriter implements SessionTouchWriter {
+
+  protected final Logger logger = LoggerFactory.getLogger(getClass());
+  @Inject
+  private HTablePool tablePool;
+  private final boolean writeToWal;
+  @Inject
+  private SchemaInfoProvider<SessionData, SessionDataId> infoProvider;
+
+  @Inject
+  public HBaseSessionTouchWriter(@Named("touchWriteToWal") Boolean writeToWal) {
+    this.writeToWal = writeToWal == null || writeToWal.booleanValue();
+  }
+
+  @Override
+  public boolean touch(SessionData data) {
+    final HTableInterface table = tablePool.getTable(infoProvider.getMainTableName());
+    try {
+      final long now = System.currentTimeMillis();
+      final SessionData.State state = data.getState();
+      final byte[] row = infoProvider.getRowIdFromId(data.getId());
+      final byte[] node = Bytes.toBytes(state.getLastNode());
+      final String storedNode = data.getStoredLastNode();
+      final Put put = new Put(row);
+      put.add(SessionDataObjectConverter.FAMILY_SELF, SessionDataObjectConverter.CELL_ACCESSED, Bytes.toBytes(state.
+          getAccessed()));
+      put.add(SessionDataObjectConverter.FAMILY_SELF, SessionDataObjectConverter.CELL_LAST_ACCESSED, Bytes.toBytes(
+          state.getLastAccessed()));
+      put.add(SessionDataObjectConverter.FAMILY_SELF, SessionDataObjectConverter.CELL_EXPIRY_TIME, Bytes.toBytes(state.
+          getExpiryTime()));
+      put.add(SessionDataObjectConverter.FAMILY_SELF, SessionDataObjectConverter.CELL_LAST_SAVED, Bytes.toBytes(now));
+      put.add(SessionDataObjectConverter.FAMILY_SELF, SessionDataObjectConverter.CELL_LAST_NODE, node);
+      if (state.getLeaseExpiry() > 0) {
+        put.add(SessionDataObjectConverter.FAMILY_SELF, SessionDataObjectConverter.CELL_LEASE_EXPIRY, Bytes.toBytes(
+            state.getLeaseExpiry()));
+      }
+      //Losing a touch in a region server crash only shortens the session's life by a save interval
+      put.setWriteToWAL(writeToWal);
+      final boolean touched = table.checkAndPut(row, SessionDataObjectConverter.FAMILY_SELF,
+                                                SessionDataObjectConverter.CELL_LAST_NODE, storedNode == null ? node
+          : Bytes.toBytes(storedNode), put);
+      if (touched) {
+        data.markSaved(now);
+        data.setStoredLastNode(state.getLastNode());
+      }
+      return touched;
+    }
+    catch (IOException ex) {
+      throw new IllegalStateException("Could not touch session " + data.getId(), ex);
+    }
+    finally {
+      tablePool.putTable(table);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.hbase;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Writes session data without row locks. Every write increments the version of the session and is applied with a
+ * check and put against the version it was loaded with; a conflicting write is resolved with the configured policy and
+ * retried.
+ *
+ * @author imyousuf
+ */
+public class OptimisticSessionDataWriter extends HBaseSessionDataWriter {
+
+  public static final String CONFLICTS = "optimistic.conflicts";
+  public static final String CONFLICTS_RESOLVED = "optimistic.conflictsResolved";
+  public static final String CONFLICTS_FAILED = "optimistic.conflictsFailed";
+  private final ConflictPolicy conflictPolicy;
+  private final int maxRetries;
+
+  @Inject
+  public OptimisticSessionDataWriter(@Named("conflictPolicy") ConflictPolicy conflictPolicy,
+                                     @Named("conflictRetries") Integer maxRetries) {
+    this.conflictPolicy = conflictPolicy == null ? ConflictPolicy.MERGE : conflictPolicy;
+    this.maxRetries = maxRetries == null || maxRetries.intValue() < 0 ? 3 : maxRetries.intValue();
+  }
+
+  public ConflictPolicy getConflictPolicy() {
+    return conflictPolicy;
+  }
+
+  @Override
+  public void update(SessionData... states) {
+    if (states == null) {
+      return;
+    }
+    final HTableInterface table = tablePool.getTable(infoProvider.getMainTableName());
+    try {
+      for (SessionData data : states) {
+        write(table, data);
+      }
+    }
+    finally {
+      tablePool.putTable(table);
+    }
+  }
+
+  protected void write(HTableInterface table, SessionData data) {
+    for (int attempt = 0;; ++attempt) {
+      final Long version = data.getVersion();
+      final SessionData.AttributeChanges changes = data.drainAttributeChanges();
+      boolean written = false;
+      final Put put;
+      try {
+        data.setVersion(version == null ? 1l : version.longValue() + 1);
+        put = getConverter().toPut(data, changes);
+        //A session never written optimistically has no version cell
+        written = table.checkAndPut(put.getRow(), SessionDataObjectConverter.FAMILY_SELF,
+                                    SessionDataObjectConverter.CELL_VERSION, version == null ? null : Bytes.toBytes(
+            version.longValue()), put);
+      }
+      catch (Exception ex) {
+        data.setVersion(version);
+        data.restoreAttributeChanges(changes);
+        throw new IllegalStateException("Could not write session " + data.getId(), ex);
+      }
+      if (written) {
+        if (attempt > 0) {
+          Metrics.counter(CONFLICTS_RESOLVED).inc();
+        }
+        data.setStoredLastNode(getConverter().getLastNode(put));
+        purgeTombstones(table, put);
+        return;
+      }
+      data.setVersion(version);
+      data.restoreAttributeChanges(changes);
+      Metrics.counter(CONFLICTS).inc();
+      if (conflictPolicy == ConflictPolicy.FAIL || attempt >= maxRetries) {
+        Metrics.counter(CONFLICTS_FAILED).inc();
+        throw new IllegalStateException("Concurrent modification of session " + data.getId() + " at version " +
+            version);
+      }
+      resolve(table, data);
+    }
+  }
+
+  protected void resolve(HTableInterface table, SessionData data) {
+    final SessionData persisted;
+    try {
+      final Result result = table.get(new Get(infoProvider.getRowIdFromId(data.getId())));
+      persisted = result == null || result.isEmpty() ? null : converter.rowsToObject(result, null);
+    }
+    catch (Exception ex) {
+      throw new IllegalStateException("Could not load conflicting session " + data.getId(), ex);
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("Resolving conflict of " + data + " with " + persisted + " by " + conflictPolicy);
+    }
+    if (persisted == null) {
+      //Deleted concurrently, write it again as a whole
+      data.setVersion(null);
+      data.markAllAttributesChanged();
+      return;
+    }
+    data.setVersion(persisted.getVersion());
+    if (conflictPolicy == ConflictPolicy.LAST_WRITER_WINS) {
+      //Attributes only the other writer added are deleted, the row ends up exactly as written here
+      final Set<String> others = new HashSet<String>();
+      for (Object name : persisted.getAttributeMap().keySet()) {
+        others.add(String.valueOf(name));
+      }
+      data.markAttributesRemoved(others);
+      data.markAllAttributesChanged();
+    }
+    else {
+      data.setAccessed(Math.max(data.getAccessed(), persisted.getAccessed()));
+      data.setLastAccessed(Math.max(data.getLastAccessed(), persisted.getLastAccessed()));
+      data.setExpiryTime(Math.max(data.getExpiryTime(), persisted.getExpiryTime()));
+      data.mergeAttributes(persisted.getAttributeMap());
+    }
+  }
+
+  public static enum ConflictPolicy {
+
+    /**
+     * Keep the attributes changed by either writer, preferring the local ones for attributes changed by both, and the
+     * latest access and expiry times. Attributes taken over from the other writer make the servlet session's copy
+     * stale, the session manager drops it from its cache so that the next request reloads it.
+     */
+    MERGE,
+    /**
+     * Overwrite the persisted session with the local one, deleting the attributes only the other writer has
+     */
+    LAST_WRITER_WINS,
+    /**
+     * Fail the write
+     */
+    FAIL
+  }
+}
@@ -19,20 +19,21 @@
  */
 package com.smartitengineering.jetty.session.replication.impl.hbase;
 
+import com.google.inject.Inject;
 import com.smartitengineering.dao.impl.hbase.spi.ExecutorService;
 import com.smartitengineering.dao.impl.hbase.spi.impl.AbstractObjectRowConverter;
 import com.smartitengineering.jetty.session.replication.SessionData;
 import com.smartitengineering.jetty.session.replication.SessionDataId;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.Serializable;
+import com.smartitengineering.jetty.session.replication.SerializedAttribute;
+import com.smartitengineering.jetty.session.replication.codec.AttributeCodec;
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import org.apache.commons.io.input.ClassLoaderObjectInputStream;
-import org.apache.commons.lang.SerializationException;
-import org.apache.commons.lang.SerializationUtils;
+import java.util.NavigableMap;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -55,36 +56,178 @@ public class SessionDataObjectConverter extends AbstractObjectRowConverter<Sessi
   public static final byte[] CELL_LAST_SAVED = Bytes.toBytes("lastSaved");
   public static final byte[] CELL_EXPIRY_TIME = Bytes.toBytes("expiryTime");
   public static final byte[] CELL_VIRTUAL_HOST = Bytes.toBytes("virtualHost");
+  public static final byte[] CELL_LEASE_EXPIRY = Bytes.toBytes("leaseExpiry");
+  public static final byte[] CELL_VERSION = Bytes.toBytes("version");
   public static final byte[] CELL_ATTRIBUTE_MAP = Bytes.toBytes("attributes");
+  public static final byte[] FAMILY_ATTRIBUTES = Bytes.toBytes("attrs");
+  /**
+   * Value written in place of a removed attribute or the legacy attribute map cell, as the put can not carry deletes;
+   * the session data writers delete them once the put is written
+   */
+  public static final byte[] TOMBSTONE = new byte[0];
+  private AttributeCodec codec;
+
+  public AttributeCodec getCodec() {
+    return codec;
+  }
+
+  @Inject
+  public void setCodec(AttributeCodec codec) {
+    this.codec = codec;
+  }
 
   @Override
   protected String[] getTablesToAttainLock() {
     return new String[]{getInfoProvider().getMainTableName()};
   }
 
+  /**
+   * Only used when the generic DAO writes session data, which then are written in full; the session data writers keep
+   * track of the attribute changes themselves and use {@link #toPut(SessionData, SessionData.AttributeChanges)}.
+   */
   @Override
   protected void getPutForTable(SessionData instance, ExecutorService service, Put put) {
     if (instance == null) {
       return;
     }
-    instance.setLastSaved(System.currentTimeMillis());
-    put.add(FAMILY_SELF, CELL_ACCESSED, Bytes.toBytes(instance.getAccessed()));
-    put.add(FAMILY_SELF, CELL_COOKIE_SET, Bytes.toBytes(instance.getCookieSet()));
-    put.add(FAMILY_SELF, CELL_CREATED, Bytes.toBytes(instance.getCreated()));
-    put.add(FAMILY_SELF, CELL_EXPIRY_TIME, Bytes.toBytes(instance.getExpiryTime()));
-    put.add(FAMILY_SELF, CELL_LAST_ACCESSED, Bytes.toBytes(instance.getLastAccessed()));
-    put.add(FAMILY_SELF, CELL_LAST_NODE, Bytes.toBytes(instance.getLastNode()));
-    put.add(FAMILY_SELF, CELL_LAST_SAVED, Bytes.toBytes(instance.getLastSaved()));
-    put.add(FAMILY_SELF, CELL_MAX_IDLE_MS, Bytes.toBytes(instance.getMaxIdleMs()));
-    Map attrs = instance.getAttributeMap();
-    if (attrs != null && !attrs.isEmpty()) {
+    fillPut(instance, SessionData.AttributeChanges.ALL, put);
+  }
+
+  /**
+   * Create the put for a session with the given attribute changes, drained from it by the caller
+   */
+  public Put toPut(SessionData instance, SessionData.AttributeChanges changes) throws Exception {
+    final Put put = new Put(getInfoProvider().getRowIdFromId(instance.getId()));
+    fillPut(instance, changes, put);
+    return put;
+  }
+
+  /**
+   * The last node a put made by this converter writes, for callers recording it as stored once the put is written
+   */
+  public String getLastNode(Put put) {
+    final List<KeyValue> cells = put.get(FAMILY_SELF, CELL_LAST_NODE);
+    return cells == null || cells.isEmpty() ? null : Bytes.toString(cells.get(0).getValue());
+  }
+
+  protected void fillPut(SessionData instance, SessionData.AttributeChanges changes, Put put) {
+    final SessionData.State state = instance.markSaved(System.currentTimeMillis());
+    put.add(FAMILY_SELF, CELL_ACCESSED, Bytes.toBytes(state.getAccessed()));
+    put.add(FAMILY_SELF, CELL_COOKIE_SET, Bytes.toBytes(state.getCookieSet()));
+    put.add(FAMILY_SELF, CELL_CREATED, Bytes.toBytes(state.getCreated()));
+    put.add(FAMILY_SELF, CELL_EXPIRY_TIME, Bytes.toBytes(state.getExpiryTime()));
+    put.add(FAMILY_SELF, CELL_LAST_ACCESSED, Bytes.toBytes(state.getLastAccessed()));
+    put.add(FAMILY_SELF, CELL_LAST_NODE, Bytes.toBytes(state.getLastNode()));
+    put.add(FAMILY_SELF, CELL_LAST_SAVED, Bytes.toBytes(state.getLastSaved()));
+    put.add(FAMILY_SELF, CELL_MAX_IDLE_MS, Bytes.toBytes(state.getMaxIdleMs()));
+    if (instance.getVersion() != null) {
+      put.add(FAMILY_SELF, CELL_VERSION, Bytes.toBytes(instance.getVersion().longValue()));
+    }
+    if (state.getLeaseExpiry() > 0) {
+      put.add(FAMILY_SELF, CELL_LEASE_EXPIRY, Bytes.toBytes(state.getLeaseExpiry()));
+    }
+    final SessionDataId id = instance.getId();
+    if (id.getCanonicalContextPath() != null) {
+      put.add(FAMILY_SELF, CELL_CANNONICAL_CONTEXT, Bytes.toBytes(id.getCanonicalContextPath()));
+    }
+    if (id.getVirtualHost() != null) {
+      put.add(FAMILY_SELF, CELL_VIRTUAL_HOST, Bytes.toBytes(id.getVirtualHost()));
+    }
+    final Map attrs = instance.getAttributeMap();
+    if (changes.isAll()) {
       if (logger.isInfoEnabled()) {
-        logger.info("Serialzed attributes " + attrs);
+        logger.info("Serializing all attributes " + attrs.keySet());
+      }
+      for (Object entry : attrs.entrySet()) {
+        Map.Entry attr = (Map.Entry) entry;
+        instance.setAttributeSize((String) attr.getKey(), putAttribute(put, (String) attr.getKey(), attr.getValue()));
+      }
+      for (String name : changes.getRemoved()) {
+        if (!attrs.containsKey(name)) {
+          put.add(FAMILY_ATTRIBUTES, Bytes.toBytes(name), TOMBSTONE);
+        }
+      }
+      //Attributes are no longer kept in the legacy single cell
+      put.add(FAMILY_SELF, CELL_ATTRIBUTE_MAP, TOMBSTONE);
+    }
+    else {
+      if (logger.isInfoEnabled()) {
+        logger.info("Serializing changed attributes " + changes.getChanged() + " removed " + changes.getRemoved());
+      }
+      for (String name : changes.getChanged()) {
+        instance.setAttributeSize(name, putAttribute(put, name, attrs.get(name)));
+      }
+      for (String name : changes.getRemoved()) {
+        put.add(FAMILY_ATTRIBUTES, Bytes.toBytes(name), TOMBSTONE);
+      }
+    }
+  }
+
+  /**
+   * A get of the tombstones a put writes, to find out which of them are still in place once it is written
+   * @return null if the put does not write any tombstone
+   */
+  public Get toTombstoneGet(Put put) {
+    Get get = null;
+    for (Map.Entry<byte[], List<KeyValue>> family : put.getFamilyMap().entrySet()) {
+      for (KeyValue cell : family.getValue()) {
+        if (isTombstone(cell)) {
+          if (get == null) {
+            get = new Get(put.getRow());
+          }
+          get.addColumn(family.getKey(), cell.getQualifier());
+        }
+      }
+    }
+    return get;
+  }
+
+  /**
+   * A delete of every tombstone still being the latest value of its cell, up to the time it was written
+   * @return null if there is nothing to delete
+   */
+  public Delete toTombstoneDelete(Result current) {
+    if (current == null || current.isEmpty()) {
+      return null;
+    }
+    Delete delete = null;
+    for (KeyValue cell : current.raw()) {
+      if (isTombstone(cell)) {
+        if (delete == null) {
+          delete = new Delete(current.getRow());
+        }
+        delete.deleteColumns(cell.getFamily(), cell.getQualifier(), cell.getTimestamp());
       }
-      put.add(FAMILY_SELF, CELL_ATTRIBUTE_MAP, SerializationUtils.serialize((Serializable) attrs));
+    }
+    return delete;
+  }
+
+  protected boolean isTombstone(KeyValue cell) {
+    return cell.getValueLength() == 0 && (Bytes.equals(cell.getFamily(), FAMILY_ATTRIBUTES) || (Bytes.equals(cell.
+        getFamily(), FAMILY_SELF) && Bytes.equals(cell.getQualifier(), CELL_ATTRIBUTE_MAP)));
+  }
+
+  /**
+   * @return The number of bytes written for the attribute
+   */
+  protected int putAttribute(Put put, String name, Object value) {
+    if (value == null) {
+      put.add(FAMILY_ATTRIBUTES, Bytes.toBytes(name), TOMBSTONE);
+      return 0;
+    }
+    else if (value instanceof SerializedAttribute) {
+      final SerializedAttribute attribute = (SerializedAttribute) value;
+      //A decoded value may have been modified in place, so only untouched bytes are written back as they are
+      final byte[] encoded = attribute.isDecoded() ? codec.encode(attribute.getValue()) : attribute.getData();
+      Metrics.histogram(Metrics.ATTRIBUTE_SIZE).update(encoded.length);
+      put.add(FAMILY_ATTRIBUTES, Bytes.toBytes(name), encoded);
+      return encoded.length;
     }
     else {
-      logger.info("No attributes to serialize");
+      final byte[] encoded = codec.encode(value);
+      Metrics.histogram(Metrics.ATTRIBUTE_SIZE).update(encoded.length);
+      put.add(FAMILY_ATTRIBUTES, Bytes.toBytes(name), encoded);
+      return encoded.length;
     }
   }
 
@@ -95,9 +238,22 @@ public class SessionDataObjectConverter extends AbstractObjectRowConverter<Sessi
 
   @Override
   public SessionData rowsToObject(Result startRow, ExecutorService executorService) {
+    try {
+      return rowToObject(getInfoProvider().getIdFromRowId(startRow.getRow()), startRow);
+    }
+    catch (RuntimeException ex) {
+      throw ex;
+    }
+    catch (Exception ex) {
+      logger.error("Could not parse session data row id!", ex);
+      throw new RuntimeException(ex);
+    }
+  }
+
+  protected SessionData rowToObject(SessionDataId id, Result startRow) {
     try {
       final String lastNode = getString(startRow, FAMILY_SELF, CELL_LAST_NODE);
-      SessionData data = new SessionData(getInfoProvider().getIdFromRowId(startRow.getRow()), lastNode);
+      SessionData data = new SessionData(id, lastNode);
       data.setAccessed(getLong(startRow, FAMILY_SELF, CELL_ACCESSED));
       data.setCookieSet(getLong(startRow, FAMILY_SELF, CELL_COOKIE_SET));
       data.setCreated(getLong(startRow, FAMILY_SELF, CELL_CREATED));
@@ -105,16 +261,45 @@ public class SessionDataObjectConverter extends AbstractObjectRowConverter<Sessi
       data.setLastAccessed(getLong(startRow, FAMILY_SELF, CELL_LAST_ACCESSED));
       data.setLastSaved(getLong(startRow, FAMILY_SELF, CELL_LAST_SAVED));
       data.setMaxIdleMs(getLong(startRow, FAMILY_SELF, CELL_MAX_IDLE_MS));
+      data.setLeaseExpiry(getLong(startRow, FAMILY_SELF, CELL_LEASE_EXPIRY));
+      final byte[] version = startRow.getValue(FAMILY_SELF, CELL_VERSION);
+      data.setVersion(version == null ? null : Bytes.toLong(version));
+      final Map attributes = new HashMap();
+      final Map<String, Integer> sizes = new HashMap<String, Integer>();
       byte[] attrs = startRow.getValue(FAMILY_SELF, CELL_ATTRIBUTE_MAP);
-      if (attrs != null) {
-        final Map attributes = (Map) deserialize(attrs);
-        if (logger.isInfoEnabled()) {
-          logger.info("Deserialzed attributes as " + attributes);
+      final boolean legacyAttributes = attrs != null && attrs.length > 0;
+      if (legacyAttributes) {
+        attributes.putAll((Map) codec.decode(attrs));
+        for (Object name : attributes.keySet()) {
+          //The blob size shared out evenly
+          sizes.put(String.valueOf(name), attrs.length / attributes.size());
+        }
+      }
+      final NavigableMap<byte[], byte[]> attrCells = startRow.getFamilyMap(FAMILY_ATTRIBUTES);
+      if (attrCells != null) {
+        for (Map.Entry<byte[], byte[]> cell : attrCells.entrySet()) {
+          final String name = Bytes.toString(cell.getKey());
+          if (cell.getValue() == null || cell.getValue().length == 0) {
+            attributes.remove(name);
+            sizes.remove(name);
+          }
+          else {
+            //Decoded on first access only
+            attributes.put(name, new SerializedAttribute(cell.getValue(), codec));
+            sizes.put(name, cell.getValue().length);
+          }
         }
-        data.setAttributeMap(attributes);
       }
-      else {
-        logger.info("No attributes to deserialize");
+      if (logger.isInfoEnabled()) {
+        logger.info("Deserialzed attributes as " + attributes);
+      }
+      data.setAttributeMap(attributes);
+      for (Map.Entry<String, Integer> size : sizes.entrySet()) {
+        data.setAttributeSize(size.getKey(), size.getValue());
+      }
+      if (legacyAttributes) {
+        //Migrate to per attribute cells on next save
+        data.markAllAttributesChanged();
       }
       return data;
     }
@@ -145,41 +330,4 @@ public class SessionDataObjectConverter extends AbstractObjectRowConverter<Sessi
       return Bytes.toString(val);
     }
   }
-
-  private static Object deserialize(InputStream inputStream) {
-    if (inputStream == null) {
-      throw new IllegalArgumentException("The InputStream must not be null");
-    }
-    ObjectInputStream in = null;
-    try {
-      // stream closed in the finally
-      in = new ClassLoaderObjectInputStream(Thread.currentThread().getContextClassLoader(), inputStream);
-      return in.readObject();
-
-    }
-    catch (ClassNotFoundException ex) {
-      throw new SerializationException(ex);
-    }
-    catch (IOException ex) {
-      throw new SerializationException(ex);
-    }
-    finally {
-      try {
-        if (in != null) {
-          in.close();
-        }
-      }
-      catch (IOException ex) {
-        // ignore close exception
-      }
-    }
-  }
-
-  private static Object deserialize(byte[] objectData) {
-    if (objectData == null) {
-      throw new IllegalArgumentException("The byte[] must not be null");
-    }
-    ByteArrayInputStream bais = new ByteArrayInputStream(objectData);
-    return deserialize(bais);
-  }
 }
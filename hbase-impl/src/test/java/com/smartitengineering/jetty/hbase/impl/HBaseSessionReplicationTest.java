@@ -20,7 +20,10 @@
 package com.smartitengineering.jetty.hbase.impl;
 
 import com.google.inject.AbstractModule;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
 import com.smartitengineering.jetty.session.replication.SessionReplicationAPI;
+import com.smartitengineering.jetty.session.replication.SessionTouchWriter;
 import com.smartitengineering.jetty.session.replication.impl.hbase.HBaseReplicationPersistenseInitializer;
 import com.smartitengineering.util.bean.guice.GuiceUtil;
 import java.util.Properties;
@@ -79,6 +82,28 @@ public class HBaseSessionReplicationTest {
     Assert.assertNotNull(SessionReplicationAPI.getInstance().getIdWriter());
   }
 
+  @Test
+  public void testTouchAfterFailover() {
+    final SessionDataId id = new SessionDataId("failover", "_ctx", "0.0.0.0");
+    final SessionData original = new SessionData(id, "node1");
+    original.setExpiryTime(System.currentTimeMillis() + 60000);
+    SessionReplicationAPI.getInstance().getDataWriter().save(original);
+    final SessionTouchWriter touchWriter = SessionReplicationAPI.getInstance().getTouchWriter();
+    //The session fails over to node2 which takes it over in memory only
+    final SessionData loaded = SessionReplicationAPI.getInstance().getDataReader().getById(id);
+    loaded.setLastNode("node2");
+    Assert.assertEquals("node1", loaded.getStoredLastNode());
+    Assert.assertTrue(touchWriter.touch(loaded));
+    Assert.assertEquals("node2", loaded.getStoredLastNode());
+    Assert.assertTrue(touchWriter.touch(loaded));
+    Assert.assertEquals("node2", SessionReplicationAPI.getInstance().getDataReader().getById(id).getLastNode());
+    //The stale copy on node1 must neither overwrite the row nor look saved
+    final long lastSaved = original.getLastSaved();
+    Assert.assertFalse(touchWriter.touch(original));
+    Assert.assertEquals(lastSaved, original.getLastSaved());
+    SessionReplicationAPI.getInstance().getDataWriter().delete(loaded);
+  }
+
   public static class TestModule extends AbstractModule {
 
     @Override
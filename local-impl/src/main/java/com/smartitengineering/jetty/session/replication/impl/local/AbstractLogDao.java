@@ -0,0 +1,194 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.local;
+
+import com.smartitengineering.dao.common.CommonReadDao;
+import com.smartitengineering.dao.common.CommonWriteDao;
+import com.smartitengineering.dao.common.queryparam.QueryParameter;
+import com.smartitengineering.domain.PersistentDTO;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+/**
+ * DAO keeping its domain objects in a memory-mapped log store. It is not a general purpose DAO: objects are only read
+ * by id or all at once, as the replication API does, and every query method throws
+ * {@link UnsupportedOperationException}.
+ * <p>
+ * The store is open from construction on; the session id manager closes it when it stops and opens it again when it
+ * is started again.
+ *
+ * @author imyousuf
+ */
+public abstract class AbstractLogDao<Template extends PersistentDTO, IdType extends Serializable> extends
+    AbstractLifeCycle implements CommonReadDao<Template, IdType>, CommonWriteDao<Template> {
+
+  protected final MappedLogStore store;
+
+  protected AbstractLogDao(MappedLogStore store) {
+    this.store = store;
+  }
+
+  public MappedLogStore getStore() {
+    return store;
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+    store.open();
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    store.close();
+  }
+
+  protected abstract String getKey(IdType id);
+
+  protected abstract IdType getIdOf(Template template);
+
+  protected abstract byte[] encode(Template template) throws Exception;
+
+  /**
+   * Decode a value from its view in the mapped log, without copying it where possible
+   */
+  protected abstract Template decode(String key, ByteBuffer value) throws Exception;
+
+  protected Template read(String key) {
+    final ByteBuffer value = store.get(key);
+    if (value == null) {
+      return null;
+    }
+    try {
+      return decode(key, value);
+    }
+    catch (Exception ex) {
+      throw new IllegalStateException("Could not decode " + key + " from log " + store.getName(), ex);
+    }
+  }
+
+  protected void write(Template template) {
+    try {
+      store.put(getKey(getIdOf(template)), encode(template));
+    }
+    catch (Exception ex) {
+      throw new IllegalStateException("Could not write " + getIdOf(template) + " to log " + store.getName(), ex);
+    }
+  }
+
+  @Override
+  public Set<Template> getAll() {
+    final Set<Template> result = new LinkedHashSet<Template>();
+    for (String key : store.keys()) {
+      final Template template = read(key);
+      if (template != null) {
+        result.add(template);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public List<Template> getByIds(List<IdType> ids) {
+    final List<Template> result = new ArrayList<Template>(ids.size());
+    for (IdType id : ids) {
+      final Template template = getById(id);
+      if (template != null) {
+        result.add(template);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Template getById(IdType id) {
+    return read(getKey(id));
+  }
+
+  @Override
+  public Template getSingle(List<QueryParameter> query) {
+    throw new UnsupportedOperationException("Log DAOs can not be queried, only read by id");
+  }
+
+  @Override
+  public Template getSingle(QueryParameter... query) {
+    return getSingle(Arrays.asList(query));
+  }
+
+  @Override
+  public List<Template> getList(List<QueryParameter> query) {
+    throw new UnsupportedOperationException("Log DAOs can not be queried, only read by id");
+  }
+
+  @Override
+  public List<Template> getList(QueryParameter... query) {
+    return getList(Arrays.asList(query));
+  }
+
+  @Override
+  public <OtherTemplate> OtherTemplate getOther(List<QueryParameter> query) {
+    throw new UnsupportedOperationException("Log DAOs can not be queried, only read by id");
+  }
+
+  @Override
+  public <OtherTemplate> OtherTemplate getOther(QueryParameter... query) {
+    return this.<OtherTemplate>getOther(Arrays.asList(query));
+  }
+
+  @Override
+  public <OtherTemplate> List<OtherTemplate> getOtherList(List<QueryParameter> query) {
+    throw new UnsupportedOperationException("Log DAOs can not be queried, only read by id");
+  }
+
+  @Override
+  public <OtherTemplate> List<OtherTemplate> getOtherList(QueryParameter... query) {
+    return this.<OtherTemplate>getOtherList(Arrays.asList(query));
+  }
+
+  @Override
+  public void save(Template... states) {
+    for (Template state : states) {
+      write(state);
+    }
+  }
+
+  @Override
+  public void update(Template... states) {
+    save(states);
+  }
+
+  @Override
+  public void delete(Template... states) {
+    for (Template state : states) {
+      try {
+        store.remove(getKey(getIdOf(state)));
+      }
+      catch (IOException ex) {
+        throw new IllegalStateException("Could not delete " + getIdOf(state) + " from log " + store.getName(), ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.local;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+import com.smartitengineering.dao.common.CommonReadDao;
+import com.smartitengineering.dao.common.CommonWriteDao;
+import com.smartitengineering.jetty.session.replication.InProcessInvalidationBus;
+import com.smartitengineering.jetty.session.replication.SessionDataScanner;
+import com.smartitengineering.jetty.session.replication.SessionDataSerializer;
+import com.smartitengineering.jetty.session.replication.SessionExpiryIndex;
+import com.smartitengineering.jetty.session.replication.SessionIdScanner;
+import com.smartitengineering.jetty.session.replication.SessionInvalidationBus;
+import com.smartitengineering.jetty.session.replication.codec.AttributeCodec;
+import com.smartitengineering.jetty.session.replication.codec.AttributeCodecConfig;
+import com.smartitengineering.jetty.session.replication.codec.CodecSessionDataSerializer;
+import com.smartitengineering.jetty.session.replication.codec.CompressingAttributeCodec;
+import com.smartitengineering.jetty.session.replication.metrics.MetricRegistry;
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binds DAOs over memory-mapped logs in a local directory, for single node deployments that have no HBase cluster.
+ * Sessions are encoded with the same attribute codecs as in HBase. Leases and access only writes are not bound, as
+ * there is no other node to hand sessions over to. The directory has to be configured explicitly, the logs are closed
+ * when the session id manager stops.
+ *
+ * @author imyousuf
+ */
+public class LocalImplModule extends AbstractModule {
+
+  public static final String DIRECTORY_PROP = "com.smartitengineering.jetty.session.replication.local.directory";
+  public static final String SEGMENT_SIZE_PROP = "com.smartitengineering.jetty.session.replication.local.segmentSize";
+  public static final String SYNC_WRITES_PROP = "com.smartitengineering.jetty.session.replication.local.syncWrites";
+  public static final String COMPACTION_INTERVAL_PROP =
+      "com.smartitengineering.jetty.session.replication.local.compaction.intervalSeconds";
+  public static final String COMPACTION_THRESHOLD_PROP =
+      "com.smartitengineering.jetty.session.replication.local.compaction.threshold";
+  public static final String EXPIRY_INDEX_BUCKET_PROP =
+      "com.smartitengineering.jetty.session.replication.expiryIndex.bucketSeconds";
+  public static final String SESSION_DATA_LOG = "sessionData";
+  public static final String SESSION_ID_LOG = "sessionId";
+  private final String cacheConfigRsrc, sessionCacheName, sessionIdCacheName;
+  private final AttributeCodecConfig codecConfig;
+  private final int expiryIndexBucketSeconds;
+  private final File directory;
+  private final int segmentSize;
+  private final boolean syncWrites;
+  private final long compactionIntervalSeconds;
+  private final double compactionThreshold;
+  protected final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+  public LocalImplModule(Properties properties) {
+    if (logger.isInfoEnabled()) {
+      logger.info("DI properties " + properties);
+    }
+    cacheConfigRsrc = properties.getProperty("com.smartitengineering.jetty.session.replication",
+                                             "com/smartitengineering/jetty/session/replication/impl/local/ehcache.xml");
+    sessionCacheName = properties.getProperty("com.smartitengineering.jetty.session.replication.sessionCache.name",
+                                              "sessionCache");
+    sessionIdCacheName = properties.getProperty("com.smartitengineering.jetty.session.replication.sessionIdCache.name",
+                                                "sessionIdCache");
+    codecConfig = new AttributeCodecConfig(properties);
+    expiryIndexBucketSeconds = Integer.parseInt(properties.getProperty(EXPIRY_INDEX_BUCKET_PROP, "60").trim());
+    final String directoryName = properties.getProperty(DIRECTORY_PROP);
+    if (directoryName == null || directoryName.trim().length() == 0) {
+      //A temporary directory would lose every session on reboot or to a tmp cleaner
+      throw new IllegalArgumentException("The local session store needs a directory in " + DIRECTORY_PROP);
+    }
+    directory = new File(directoryName.trim());
+    segmentSize = Integer.parseInt(properties.getProperty(SEGMENT_SIZE_PROP, String.valueOf(
+        MappedLogStore.DEFAULT_SEGMENT_SIZE)).trim());
+    syncWrites = Boolean.parseBoolean(properties.getProperty(SYNC_WRITES_PROP, "false").trim());
+    compactionIntervalSeconds = Long.parseLong(properties.getProperty(COMPACTION_INTERVAL_PROP, "300").trim());
+    compactionThreshold = Double.parseDouble(properties.getProperty(COMPACTION_THRESHOLD_PROP, String.valueOf(
+        MappedLogStore.DEFAULT_COMPACTION_THRESHOLD)).trim());
+  }
+
+  protected MappedLogStore openStore(String name) {
+    try {
+      final MappedLogStore store = new MappedLogStore(name, new File(directory, name), segmentSize, syncWrites);
+      store.registerMetrics();
+      store.startMaintenance(compactionIntervalSeconds, compactionThreshold);
+      return store;
+    }
+    catch (IOException ex) {
+      throw new IllegalStateException("Could not open log " + name + " in " + directory, ex);
+    }
+  }
+
+  @Provides
+  @Singleton
+  protected CompressingAttributeCodec provideCompressingAttributeCodec(
+      @Named("delegateAttributeCodec") AttributeCodec delegate) {
+    return codecConfig.newCompressingCodec(delegate);
+  }
+
+  @Provides
+  @Singleton
+  @Named("sessionDataSerializer")
+  protected SessionDataSerializer provideSessionDataSerializer(AttributeCodec codec) {
+    return new CodecSessionDataSerializer(codec);
+  }
+
+  @Override
+  protected void configure() {
+    bind(AttributeCodec.class).annotatedWith(Names.named("delegateAttributeCodec")).to(codecConfig.getCodecClass()).
+        in(Singleton.class);
+    bind(AttributeCodec.class).to(CompressingAttributeCodec.class);
+
+    final MappedLogStore dataLog = openStore(SESSION_DATA_LOG);
+    final MappedLogStore idLog;
+    try {
+      idLog = openStore(SESSION_ID_LOG);
+    }
+    catch (RuntimeException ex) {
+      closeQuietly(dataLog);
+      throw ex;
+    }
+    bind(MappedLogStore.class).annotatedWith(Names.named("sessionDataLog")).toInstance(dataLog);
+    bind(MappedLogStore.class).annotatedWith(Names.named("sessionIdLog")).toInstance(idLog);
+    bind(LocalSessionDataDao.class).in(Singleton.class);
+    bind(LocalSessionIdDao.class).in(Singleton.class);
+    bind(CommonReadDao.class).annotatedWith(Names.named("dataReader")).to(LocalSessionDataDao.class);
+    bind(CommonWriteDao.class).annotatedWith(Names.named("dataWriter")).to(LocalSessionDataDao.class);
+    bind(CommonReadDao.class).annotatedWith(Names.named("idReader")).to(LocalSessionIdDao.class);
+    bind(CommonWriteDao.class).annotatedWith(Names.named("idWriter")).to(LocalSessionIdDao.class);
+    bind(LocalSessionScanner.class).in(Singleton.class);
+    bind(SessionDataScanner.class).annotatedWith(Names.named("dataScanner")).to(LocalSessionScanner.class);
+    bind(SessionIdScanner.class).annotatedWith(Names.named("idScanner")).to(LocalSessionScanner.class);
+    bind(Integer.class).annotatedWith(Names.named("expiryIndexBucketSeconds")).toInstance(expiryIndexBucketSeconds);
+    bind(SessionExpiryIndex.class).annotatedWith(Names.named("expiryIndex")).to(LocalSessionExpiryIndex.class).in(
+        Singleton.class);
+    bind(SessionInvalidationBus.class).annotatedWith(Names.named("invalidationBus")).to(
+        InProcessInvalidationBus.class).in(Singleton.class);
+    bind(MetricRegistry.class).annotatedWith(Names.named("metricRegistry")).toInstance(Metrics.getRegistry());
+    /*
+     * Configure Cache
+     */
+    InputStream inputStream = getClass().getClassLoader().getResourceAsStream(cacheConfigRsrc);
+    if (inputStream == null) {
+      throw new IllegalArgumentException("Cache configuration not available!");
+    }
+    CacheManager cacheManager = new CacheManager(inputStream);
+    Cache sessionCache = cacheManager.getCache(sessionCacheName);
+    if (sessionCache == null) {
+      throw new IllegalStateException("Could not retrieve cache!");
+    }
+    bind(Cache.class).annotatedWith(Names.named("sessionCache")).toInstance(sessionCache);
+    Cache sessionIdCache = cacheManager.getCache(sessionIdCacheName);
+    if (sessionIdCache == null) {
+      throw new IllegalStateException("Could not retrieve cache!");
+    }
+    bind(Cache.class).annotatedWith(Names.named("sessionIdCache")).toInstance(sessionIdCache);
+  }
+
+  protected void closeQuietly(MappedLogStore store) {
+    try {
+      store.close();
+    }
+    catch (IOException ex) {
+      logger.warn("Could not close log " + store.getName(), ex);
+    }
+  }
+}
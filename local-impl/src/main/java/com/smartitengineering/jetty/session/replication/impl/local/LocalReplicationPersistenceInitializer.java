@@ -0,0 +1,42 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.local;
+
+import com.smartitengineering.util.bean.guice.GuiceUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replication API initializer for the local store; set it as the initializer system property instead of the HBase
+ * one. Logs are opened, and recovered if need be, while the module is configured; they are closed when the session id
+ * manager stops.
+ *
+ * @author imyousuf
+ */
+public class LocalReplicationPersistenceInitializer {
+
+  protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+  public LocalReplicationPersistenceInitializer() {
+    logger.info("Initializing factory!");
+    GuiceUtil.getInstance("com/smartitengineering/jetty/session/replication/impl/local/LocalImpl.properties").register();
+    logger.info("Guice injection done!");
+  }
+}
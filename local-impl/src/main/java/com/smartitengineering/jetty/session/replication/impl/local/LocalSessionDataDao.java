@@ -0,0 +1,109 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.local;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.SessionDataSerializer;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Session data DAO over a log store, keyed by the encoded session data id. Sessions are stored with the same
+ * serializer as the off heap tier of the session cache.
+ *
+ * @author imyousuf
+ */
+public class LocalSessionDataDao extends AbstractLogDao<SessionData, SessionDataId> {
+
+  /**
+   * Maps every byte to the char of the same value, so keys sort like the encoded ids
+   */
+  private static final Charset KEY_CHARSET = Charset.forName("ISO-8859-1");
+  private final SessionDataSerializer serializer;
+
+  @Inject
+  public LocalSessionDataDao(@Named("sessionDataLog") MappedLogStore store,
+                             @Named("sessionDataSerializer") SessionDataSerializer serializer) {
+    super(store);
+    this.serializer = serializer;
+  }
+
+  public static String toKey(SessionDataId id) {
+    return new String(id.getBytes(), KEY_CHARSET);
+  }
+
+  public static SessionDataId toId(String key) {
+    final SessionDataId id = new SessionDataId();
+    try {
+      id.readExternal(new DataInputStream(new ByteArrayInputStream(key.getBytes(KEY_CHARSET))));
+    }
+    catch (Exception ex) {
+      throw new IllegalArgumentException("Not a session data key " + key, ex);
+    }
+    return id;
+  }
+
+  @Override
+  protected String getKey(SessionDataId id) {
+    return toKey(id);
+  }
+
+  @Override
+  protected SessionDataId getIdOf(SessionData template) {
+    return template.getId();
+  }
+
+  @Override
+  protected byte[] encode(SessionData template) throws Exception {
+    return serializer.serialize(template);
+  }
+
+  /**
+   * Attributes stay encoded until they are accessed and so have to outlive the mapping, session data is therefore
+   * copied out of the log once.
+   */
+  @Override
+  protected SessionData decode(String key, ByteBuffer value) throws Exception {
+    final byte[] bytes = new byte[value.remaining()];
+    value.get(bytes);
+    return serializer.deserialize(bytes);
+  }
+
+  /**
+   * Every session is written in full, the pending attribute changes are put back if the write fails
+   */
+  @Override
+  protected void write(SessionData template) {
+    final SessionData.AttributeChanges changes = template.drainAttributeChanges();
+    try {
+      template.markSaved(System.currentTimeMillis());
+      super.write(template);
+    }
+    catch (RuntimeException ex) {
+      template.restoreAttributeChanges(changes);
+      throw ex;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.local;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.SessionExpiryIndex;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Expiry index held in memory in a single shard. It is not written to the log but rebuilt from the stored sessions
+ * when created, since a single node reads every session on start anyway to rebuild the log index.
+ *
+ * @author imyousuf
+ */
+public class LocalSessionExpiryIndex implements SessionExpiryIndex {
+
+  private final long bucketMillis;
+  private final ConcurrentNavigableMap<Long, Set<SessionDataId>> buckets =
+      new ConcurrentSkipListMap<Long, Set<SessionDataId>>();
+
+  @Inject
+  public LocalSessionExpiryIndex(@Named("expiryIndexBucketSeconds") Integer bucketSeconds,
+                                 LocalSessionDataDao dataDao) {
+    this.bucketMillis = (bucketSeconds == null || bucketSeconds.intValue() <= 0 ? 60 : bucketSeconds.intValue()) *
+        1000l;
+    for (SessionData data : dataDao.getAll()) {
+      record(data);
+    }
+  }
+
+  @Override
+  public int getShardCount() {
+    return 1;
+  }
+
+  @Override
+  public void record(SessionData data) {
+    final long expiryTime = data.getExpiryTime();
+    if (expiryTime <= 0) {
+      return;
+    }
+    final long bucket = expiryTime / bucketMillis;
+    final long indexed = data.getIndexedExpiryTime();
+    if (indexed > 0 && indexed / bucketMillis == bucket) {
+      return;
+    }
+    Set<SessionDataId> ids = buckets.get(bucket);
+    if (ids == null) {
+      final Set<SessionDataId> created = Collections.newSetFromMap(new ConcurrentHashMap<SessionDataId, Boolean>());
+      ids = buckets.putIfAbsent(bucket, created);
+      if (ids == null) {
+        ids = created;
+      }
+    }
+    ids.add(data.getId());
+    data.setIndexedExpiryTime(expiryTime);
+  }
+
+  @Override
+  public List<Entry> findExpired(int shard, long expiredBefore, int limit) {
+    final List<Entry> entries = new ArrayList<Entry>(limit);
+    for (Map.Entry<Long, Set<SessionDataId>> bucket : buckets.headMap(expiredBefore / bucketMillis).entrySet()) {
+      for (SessionDataId id : bucket.getValue()) {
+        if (entries.size() >= limit) {
+          return entries;
+        }
+        entries.add(new Entry(shard, bucket.getKey(), id));
+      }
+    }
+    return entries;
+  }
+
+  @Override
+  public void remove(List<Entry> entries) {
+    if (entries == null) {
+      return;
+    }
+    for (Entry entry : entries) {
+      final Set<SessionDataId> ids = buckets.get(entry.getBucket());
+      if (ids != null) {
+        ids.remove(entry.getId());
+        if (ids.isEmpty() && buckets.remove(entry.getBucket(), ids) && !ids.isEmpty()) {
+          //Recorded into the bucket while it was being removed
+          final Set<SessionDataId> current = buckets.putIfAbsent(entry.getBucket(), ids);
+          if (current != null) {
+            current.addAll(ids);
+          }
+        }
+      }
+    }
+  }
+}
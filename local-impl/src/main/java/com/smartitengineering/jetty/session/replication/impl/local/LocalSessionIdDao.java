@@ -0,0 +1,72 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.local;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.smartitengineering.jetty.session.replication.SessionId;
+import java.nio.ByteBuffer;
+
+/**
+ * Session id DAO over a log store, keyed by the cluster id. Ids are decoded straight from the mapped log.
+ *
+ * @author imyousuf
+ */
+public class LocalSessionIdDao extends AbstractLogDao<SessionId, String> {
+
+  private static final int VALUE_SIZE = 16;
+
+  @Inject
+  public LocalSessionIdDao(@Named("sessionIdLog") MappedLogStore store) {
+    super(store);
+  }
+
+  @Override
+  protected String getKey(String id) {
+    return id;
+  }
+
+  @Override
+  protected String getIdOf(SessionId template) {
+    return template.getId();
+  }
+
+  @Override
+  protected byte[] encode(SessionId template) throws Exception {
+    final ByteBuffer buffer = ByteBuffer.allocate(VALUE_SIZE);
+    buffer.putLong(template.getCreatedAt());
+    final Long version = template.getVersion();
+    buffer.putLong(version == null ? -1 : version.longValue());
+    return buffer.array();
+  }
+
+  @Override
+  protected SessionId decode(String key, ByteBuffer value) throws Exception {
+    if (value.remaining() < VALUE_SIZE) {
+      throw new IllegalArgumentException("Truncated session id value of " + value.remaining() + " bytes");
+    }
+    final SessionId sessionId = new SessionId();
+    sessionId.setId(key);
+    sessionId.setCreatedAt(value.getLong());
+    final long version = value.getLong();
+    sessionId.setVersion(version < 0 ? null : Long.valueOf(version));
+    return sessionId;
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.local;
+
+import com.google.inject.Inject;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.SessionDataScanner;
+import com.smartitengineering.jetty.session.replication.SessionDataStream;
+import com.smartitengineering.jetty.session.replication.SessionIdScanner;
+import com.smartitengineering.jetty.session.replication.SessionIdStream;
+import com.smartitengineering.jetty.session.replication.SessionScanCriteria;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Scans the keys of the local stores in the order HBase would return the rows in. Session data ids are decoded from
+ * the keys, so only sessions whose id matches the criteria are read from the log.
+ *
+ * @author imyousuf
+ */
+public class LocalSessionScanner implements SessionDataScanner, SessionIdScanner {
+
+  private final LocalSessionDataDao dataDao;
+  private final LocalSessionIdDao idDao;
+
+  @Inject
+  public LocalSessionScanner(LocalSessionDataDao dataDao, LocalSessionIdDao idDao) {
+    this.dataDao = dataDao;
+    this.idDao = idDao;
+  }
+
+  @Override
+  public SessionDataStream scan(SessionScanCriteria criteria) {
+    final SessionScanCriteria scanCriteria = criteria == null ? new SessionScanCriteria() : criteria;
+    SortedSet<String> keys = new TreeSet<String>(dataDao.getStore().keys());
+    if (scanCriteria.getStartAfter() != null) {
+      //The smallest key following the start key
+      keys = keys.tailSet(LocalSessionDataDao.toKey(scanCriteria.getStartAfter()) + '\0');
+    }
+    return new KeyStream(keys.iterator(), scanCriteria);
+  }
+
+  @Override
+  public SessionIdStream scanSessionIds(int caching) {
+    return new IdStream(new TreeSet<String>(idDao.getStore().keys()).iterator(), false);
+  }
+
+  @Override
+  public SessionIdStream scanSessionDataIds(int caching) {
+    return new IdStream(new TreeSet<String>(dataDao.getStore().keys()).iterator(), true);
+  }
+
+  protected static boolean matchesId(SessionScanCriteria criteria, SessionDataId id) {
+    return (criteria.getInClusterId() == null || criteria.getInClusterId().equals(id.getInClusterId())) &&
+        (criteria.getCanonicalContextPath() == null || criteria.getCanonicalContextPath().equals(id.
+        getCanonicalContextPath())) && (criteria.getVirtualHost() == null || criteria.getVirtualHost().equals(id.
+        getVirtualHost()));
+  }
+
+  protected class KeyStream implements SessionDataStream {
+
+    private final Iterator<String> keys;
+    private final SessionScanCriteria criteria;
+    private SessionData next;
+    private int returned;
+
+    public KeyStream(Iterator<String> keys, SessionScanCriteria criteria) {
+      this.keys = keys;
+      this.criteria = criteria;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next != null) {
+        return true;
+      }
+      if (criteria.getPageSize() > 0 && returned >= criteria.getPageSize()) {
+        return false;
+      }
+      while (keys.hasNext()) {
+        final String key = keys.next();
+        if (!matchesId(criteria, LocalSessionDataDao.toId(key))) {
+          continue;
+        }
+        //Null if deleted since the keys were taken
+        final SessionData data = dataDao.read(key);
+        if (criteria.matches(data)) {
+          next = data;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public SessionData next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final SessionData current = next;
+      next = null;
+      ++returned;
+      return current;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Not supported");
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  protected static class IdStream implements SessionIdStream {
+
+    private final Iterator<String> keys;
+    private final boolean sessionDataKeys;
+
+    public IdStream(Iterator<String> keys, boolean sessionDataKeys) {
+      this.keys = keys;
+      this.sessionDataKeys = sessionDataKeys;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return keys.hasNext();
+    }
+
+    @Override
+    public String next() {
+      final String key = keys.next();
+      return sessionDataKeys ? LocalSessionDataDao.toId(key).getInClusterId() : key;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Not supported");
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
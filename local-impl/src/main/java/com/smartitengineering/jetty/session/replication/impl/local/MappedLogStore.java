@@ -0,0 +1,656 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.local;
+
+import com.smartitengineering.jetty.session.replication.InstrumentedThreadPoolExecutor;
+import com.smartitengineering.jetty.session.replication.metrics.Gauge;
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of key value records kept in memory-mapped segment files, with the location of the latest record of
+ * every key held in an in-memory index. Values are read straight from the mapped segments. A write is acknowledged
+ * once it is in the mapped region, so it survives the JVM being killed; with synchronous writes every append is also
+ * forced to the device so that it survives losing the machine.
+ * <p>
+ * The index is rebuilt on open by replaying the segments in order. A record whose checksum does not match ends the
+ * replay of its segment; in the last segment only an interrupted append can leave one behind, so it is truncated away.
+ * Segments mostly holding overwritten or deleted records are compacted by copying their live records to the head of
+ * the log and deleting them.
+ * <p>
+ * A lock file in the directory is held while the log is open, so that a second process opening the same log fails
+ * instead of corrupting it. A closed log can be opened again.
+ *
+ * @author imyousuf
+ */
+public class MappedLogStore implements Closeable {
+
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+  public static final String SEGMENT_PREFIX = "segment-";
+  public static final String SEGMENT_SUFFIX = ".log";
+  public static final String LOCK_FILE = "log.lock";
+  /**
+   * Payload length followed by the checksum of the payload
+   */
+  private static final int HEADER_SIZE = 8;
+  /**
+   * Record type followed by the key length
+   */
+  private static final int PAYLOAD_HEADER_SIZE = 5;
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final Charset KEY_CHARSET = Charset.forName("UTF-8");
+  protected final Logger logger = LoggerFactory.getLogger(getClass());
+  private final String name;
+  private final File directory;
+  private final int segmentSize;
+  private final boolean syncWrites;
+  private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+  private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+  private final Object compactionLock = new Object();
+  private final AtomicLong compactions = new AtomicLong();
+  private final AtomicLong relocatedBytes = new AtomicLong();
+  private Segment active;
+  private ScheduledExecutorService maintenance;
+  private long maintenanceInterval;
+  private double maintenanceThreshold;
+  private FileChannel lockChannel;
+  private FileLock lock;
+  private volatile boolean closed = true;
+
+  public MappedLogStore(String name, File directory) throws IOException {
+    this(name, directory, DEFAULT_SEGMENT_SIZE, false);
+  }
+
+  public MappedLogStore(String name, File directory, int segmentSize, boolean syncWrites) throws IOException {
+    if (segmentSize <= HEADER_SIZE + PAYLOAD_HEADER_SIZE) {
+      throw new IllegalArgumentException("Segment size too small " + segmentSize);
+    }
+    this.name = name;
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.syncWrites = syncWrites;
+    open();
+  }
+
+  /**
+   * Lock the directory and rebuild the index from the segments, unless the log is open already
+   */
+  public synchronized void open() throws IOException {
+    if (!closed) {
+      return;
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create log directory " + directory);
+    }
+    lockDirectory();
+    try {
+      index.clear();
+      segments.clear();
+      recover();
+    }
+    catch (IOException ex) {
+      releaseLock();
+      throw ex;
+    }
+    closed = false;
+    if (maintenanceInterval > 0) {
+      scheduleMaintenance();
+    }
+  }
+
+  private void lockDirectory() throws IOException {
+    final FileChannel channel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+    FileLock fileLock = null;
+    try {
+      fileLock = channel.tryLock();
+    }
+    catch (OverlappingFileLockException ex) {
+      //Held by another store of this JVM
+    }
+    if (fileLock == null) {
+      channel.close();
+      throw new IOException("Log directory " + directory + " is in use by another store");
+    }
+    lockChannel = channel;
+    lock = fileLock;
+  }
+
+  private void releaseLock() {
+    try {
+      if (lock != null) {
+        lock.release();
+      }
+      if (lockChannel != null) {
+        lockChannel.close();
+      }
+    }
+    catch (IOException ex) {
+      logger.warn("Could not release lock of log " + name, ex);
+    }
+    finally {
+      lock = null;
+      lockChannel = null;
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  public boolean isSyncWrites() {
+    return syncWrites;
+  }
+
+  /**
+   * A read only view of the value in the mapped segment, null if there is none. The view stays valid after the key is
+   * overwritten or its segment compacted.
+   */
+  public ByteBuffer get(String key) {
+    ensureOpen();
+    final Location location = index.get(key);
+    if (location == null) {
+      return null;
+    }
+    final ByteBuffer buffer = location.segment.buffer.duplicate();
+    buffer.limit(location.valueOffset + location.valueLength);
+    buffer.position(location.valueOffset);
+    return buffer.slice().asReadOnlyBuffer();
+  }
+
+  public boolean contains(String key) {
+    return index.containsKey(key);
+  }
+
+  /**
+   * The keys currently in the store, changes made while iterating may or may not be reflected
+   */
+  public Set<String> keys() {
+    return Collections.unmodifiableSet(index.keySet());
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  public synchronized void put(String key, byte[] value) throws IOException {
+    final Location location = append(PUT, key, value);
+    final Location old = index.put(key, location);
+    location.segment.liveBytes.addAndGet(location.size);
+    if (old != null) {
+      old.segment.liveBytes.addAndGet(-old.size);
+    }
+  }
+
+  public synchronized boolean remove(String key) throws IOException {
+    if (!index.containsKey(key)) {
+      return false;
+    }
+    append(DELETE, key, null);
+    final Location old = index.remove(key);
+    old.segment.liveBytes.addAndGet(-old.size);
+    return true;
+  }
+
+  /**
+   * Force the segments written to onto the device
+   */
+  public synchronized void sync() {
+    ensureOpen();
+    active.buffer.force();
+  }
+
+  /**
+   * Compact every segment but the one being appended to whose live records take up no more than the given share of
+   * it, oldest first.
+   *
+   * @return the number of segments compacted
+   */
+  public int compact(double threshold) throws IOException {
+    synchronized (compactionLock) {
+      int compacted = 0;
+      for (Segment segment : segments.values()) {
+        synchronized (this) {
+          ensureOpen();
+          if (segment == active) {
+            break;
+          }
+        }
+        if (segment.liveBytes.get() <= segment.position * threshold) {
+          compact(segment);
+          ++compacted;
+        }
+      }
+      return compacted;
+    }
+  }
+
+  protected void compact(Segment segment) throws IOException {
+    //Tombstones only have to be kept while an older segment may still hold a record they delete
+    final boolean oldest = segments.firstKey().longValue() == segment.sequence;
+    final ByteBuffer buffer = segment.buffer.duplicate();
+    int position = 0;
+    while (position < segment.position) {
+      final int length = buffer.getInt(position);
+      final byte type = buffer.get(position + HEADER_SIZE);
+      final int keyLength = buffer.getInt(position + HEADER_SIZE + 1);
+      final String key = readKey(buffer, position + HEADER_SIZE + PAYLOAD_HEADER_SIZE, keyLength);
+      if (type == PUT) {
+        final Location location = index.get(key);
+        if (location != null && location.segment == segment && location.offset == position) {
+          relocate(key, location);
+        }
+      }
+      else if (!oldest && !index.containsKey(key)) {
+        synchronized (this) {
+          if (!index.containsKey(key)) {
+            append(DELETE, key, null);
+          }
+        }
+      }
+      position += HEADER_SIZE + length;
+    }
+    synchronized (this) {
+      //Relocated records have to be on the device before the segment holding them goes
+      active.buffer.force();
+      segments.remove(segment.sequence);
+    }
+    if (!segment.file.delete()) {
+      logger.warn("Could not delete compacted segment " + segment.file);
+    }
+    compactions.incrementAndGet();
+    if (logger.isInfoEnabled()) {
+      logger.info("Compacted segment " + segment.file + " of log " + name);
+    }
+  }
+
+  private synchronized void relocate(String key, Location location) throws IOException {
+    if (index.get(key) != location) {
+      return;
+    }
+    final byte[] value = new byte[location.valueLength];
+    final ByteBuffer buffer = location.segment.buffer.duplicate();
+    buffer.position(location.valueOffset);
+    buffer.get(value);
+    final Location moved = append(PUT, key, value);
+    index.put(key, moved);
+    moved.segment.liveBytes.addAndGet(moved.size);
+    location.segment.liveBytes.addAndGet(-location.size);
+    relocatedBytes.addAndGet(moved.size);
+  }
+
+  /**
+   * Compact segments and force the log onto the device periodically in the background, also after the log is opened
+   * again
+   */
+  public synchronized void startMaintenance(long intervalSeconds, double threshold) {
+    ensureOpen();
+    if (maintenance != null || intervalSeconds <= 0) {
+      return;
+    }
+    maintenanceInterval = intervalSeconds;
+    maintenanceThreshold = threshold;
+    scheduleMaintenance();
+  }
+
+  private void scheduleMaintenance() {
+    final double threshold = maintenanceThreshold;
+    maintenance = Executors.newSingleThreadScheduledExecutor(new InstrumentedThreadPoolExecutor.NamedThreadFactory(
+        "log-store-" + name));
+    maintenance.scheduleWithFixedDelay(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          sync();
+          compact(threshold);
+        }
+        catch (Exception ex) {
+          logger.error("Could not maintain log " + name, ex);
+        }
+      }
+    }, maintenanceInterval, maintenanceInterval, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void close() throws IOException {
+    final ScheduledExecutorService executor;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      executor = maintenance;
+      maintenance = null;
+    }
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    //A running compaction fails on its next append, it has to be over before the lock goes
+    synchronized (compactionLock) {
+      synchronized (this) {
+        for (Segment segment : segments.values()) {
+          segment.buffer.force();
+        }
+        releaseLock();
+      }
+    }
+  }
+
+  public void registerMetrics() {
+    final String prefix = Metrics.LOCAL_STORE_PREFIX + name + ".";
+    Metrics.getRegistry().register(prefix + "keys", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return index.size();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "segments", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return segments.size();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "liveBytes", new Gauge() {
+
+      @Override
+      public long getValue() {
+        long live = 0;
+        for (Segment segment : segments.values()) {
+          live += segment.liveBytes.get();
+        }
+        return live;
+      }
+    });
+    Metrics.getRegistry().register(prefix + "compactions", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return compactions.get();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "relocatedBytes", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return relocatedBytes.get();
+      }
+    });
+  }
+
+  public void unregisterMetrics() {
+    final String prefix = Metrics.LOCAL_STORE_PREFIX + name + ".";
+    Metrics.getRegistry().unregister(prefix + "keys");
+    Metrics.getRegistry().unregister(prefix + "segments");
+    Metrics.getRegistry().unregister(prefix + "liveBytes");
+    Metrics.getRegistry().unregister(prefix + "compactions");
+    Metrics.getRegistry().unregister(prefix + "relocatedBytes");
+  }
+
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  public long getCompactions() {
+    return compactions.get();
+  }
+
+  private Location append(byte type, String key, byte[] value) throws IOException {
+    ensureOpen();
+    final byte[] keyBytes = key.getBytes(KEY_CHARSET);
+    final int valueLength = value == null ? 0 : value.length;
+    final int length = PAYLOAD_HEADER_SIZE + keyBytes.length + valueLength;
+    final int size = HEADER_SIZE + length;
+    if (size > segmentSize) {
+      throw new IllegalArgumentException("Record of " + size + " bytes does not fit in segments of " + segmentSize);
+    }
+    if (active.position + size > active.buffer.capacity()) {
+      active.buffer.force();
+      active = createSegment(active.sequence + 1);
+    }
+    final CRC32 checksum = new CRC32();
+    checksum.update(type);
+    checksum.update(new byte[]{(byte) (keyBytes.length >>> 24), (byte) (keyBytes.length >>> 16),
+                               (byte) (keyBytes.length >>> 8), (byte) keyBytes.length});
+    checksum.update(keyBytes);
+    if (value != null) {
+      checksum.update(value);
+    }
+    final int position = active.position;
+    final ByteBuffer buffer = active.buffer.duplicate();
+    buffer.position(position + 4);
+    buffer.putInt((int) checksum.getValue());
+    buffer.put(type);
+    buffer.putInt(keyBytes.length);
+    buffer.put(keyBytes);
+    if (value != null) {
+      buffer.put(value);
+    }
+    //Written last so that a partly written record reads as the end of the log
+    buffer.putInt(position, length);
+    active.position = position + size;
+    if (syncWrites) {
+      active.buffer.force();
+    }
+    return new Location(active, position, size, position + HEADER_SIZE + PAYLOAD_HEADER_SIZE + keyBytes.length,
+                        valueLength);
+  }
+
+  private void recover() throws IOException {
+    final File[] files = directory.listFiles(new FileFilter() {
+
+      @Override
+      public boolean accept(File file) {
+        return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    Arrays.sort(files, new Comparator<File>() {
+
+      @Override
+      public int compare(File o1, File o2) {
+        final long left = sequenceOf(o1), right = sequenceOf(o2);
+        return left < right ? -1 : (left == right ? 0 : 1);
+      }
+    });
+    for (File file : files) {
+      final Segment segment = mapSegment(sequenceOf(file), file, file.length());
+      segments.put(segment.sequence, segment);
+    }
+    for (Segment segment : segments.values()) {
+      replay(segment, segment.sequence == segments.lastKey().longValue());
+    }
+    if (segments.isEmpty()) {
+      active = createSegment(1);
+    }
+    else {
+      active = segments.lastEntry().getValue();
+    }
+    if (logger.isInfoEnabled()) {
+      logger.info("Opened log " + name + " with " + index.size() + " keys in " + segments.size() + " segments");
+    }
+  }
+
+  private void replay(Segment segment, boolean last) {
+    final ByteBuffer buffer = segment.buffer.duplicate();
+    final int capacity = buffer.capacity();
+    int position = 0;
+    while (position + HEADER_SIZE <= capacity) {
+      final int length = buffer.getInt(position);
+      if (length == 0) {
+        break;
+      }
+      if (length < PAYLOAD_HEADER_SIZE || length > capacity - position - HEADER_SIZE ||
+          !isIntact(buffer, position, length)) {
+        if (last) {
+          final int end = length < 0 || length > capacity - position - HEADER_SIZE ? position + HEADER_SIZE :
+                          position + HEADER_SIZE + length;
+          logger.warn("Truncating interrupted append at " + position + " of " + segment.file);
+          for (int i = position; i < end; ++i) {
+            buffer.put(i, (byte) 0);
+          }
+          segment.buffer.force();
+        }
+        else {
+          logger.error("Corrupt record at " + position + " of " + segment.file + ", skipping the rest of the segment");
+        }
+        break;
+      }
+      final byte type = buffer.get(position + HEADER_SIZE);
+      final int keyLength = buffer.getInt(position + HEADER_SIZE + 1);
+      final String key = readKey(buffer, position + HEADER_SIZE + PAYLOAD_HEADER_SIZE, keyLength);
+      final int size = HEADER_SIZE + length;
+      final Location old;
+      if (type == PUT) {
+        final int valueOffset = position + HEADER_SIZE + PAYLOAD_HEADER_SIZE + keyLength;
+        old = index.put(key, new Location(segment, position, size, valueOffset, length - PAYLOAD_HEADER_SIZE -
+            keyLength));
+        segment.liveBytes.addAndGet(size);
+      }
+      else {
+        old = index.remove(key);
+      }
+      if (old != null) {
+        old.segment.liveBytes.addAndGet(-old.size);
+      }
+      position += size;
+    }
+    segment.position = position;
+  }
+
+  private boolean isIntact(ByteBuffer buffer, int position, int length) {
+    final byte[] payload = new byte[length];
+    final ByteBuffer view = buffer.duplicate();
+    view.position(position + HEADER_SIZE);
+    view.get(payload);
+    final CRC32 checksum = new CRC32();
+    checksum.update(payload);
+    return (int) checksum.getValue() == buffer.getInt(position + 4) && (payload[0] == PUT || payload[0] == DELETE);
+  }
+
+  private String readKey(ByteBuffer buffer, int offset, int length) {
+    final ByteBuffer view = buffer.duplicate();
+    view.limit(offset + length);
+    view.position(offset);
+    return KEY_CHARSET.decode(view).toString();
+  }
+
+  private Segment createSegment(long sequence) throws IOException {
+    final File file = new File(directory, SEGMENT_PREFIX + String.format("%020d", sequence) + SEGMENT_SUFFIX);
+    final Segment segment = mapSegment(sequence, file, segmentSize);
+    segments.put(sequence, segment);
+    return segment;
+  }
+
+  private Segment mapSegment(long sequence, File file, long size) throws IOException {
+    final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      if (randomAccessFile.length() < size) {
+        randomAccessFile.setLength(size);
+      }
+      //The mapping stays valid once the file is closed
+      return new Segment(sequence, file, randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                                                           randomAccessFile.length()));
+    }
+    finally {
+      randomAccessFile.close();
+    }
+  }
+
+  private static long sequenceOf(File file) {
+    final String fileName = file.getName();
+    return Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private void ensureOpen() {
+    if (closed) {
+      throw new IllegalStateException("Log " + name + " is closed");
+    }
+  }
+
+  private static class Segment {
+
+    private final long sequence;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final AtomicLong liveBytes = new AtomicLong();
+    /**
+     * End of the records, only changed by appends and replay
+     */
+    private volatile int position;
+
+    Segment(long sequence, File file, MappedByteBuffer buffer) {
+      this.sequence = sequence;
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+
+  private static class Location {
+
+    private final Segment segment;
+    private final int offset;
+    private final int size;
+    private final int valueOffset;
+    private final int valueLength;
+
+    Location(Segment segment, int offset, int size, int valueOffset, int valueLength) {
+      this.segment = segment;
+      this.offset = offset;
+      this.size = size;
+      this.valueOffset = valueOffset;
+      this.valueLength = valueLength;
+    }
+  }
+}
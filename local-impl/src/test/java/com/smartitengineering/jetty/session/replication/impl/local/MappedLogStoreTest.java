@@ -0,0 +1,164 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.impl.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedLogStoreTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static String read(MappedLogStore store, String key) throws Exception {
+    final ByteBuffer value = store.get(key);
+    if (value == null) {
+      return null;
+    }
+    final byte[] bytes = new byte[value.remaining()];
+    value.get(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static void put(MappedLogStore store, String key, String value) throws Exception {
+    store.put(key, value.getBytes("UTF-8"));
+  }
+
+  @Test
+  public void testPutOverwriteAndRemove() throws Exception {
+    MappedLogStore store = new MappedLogStore("test", folder.newFolder("log"), 4096, false);
+    put(store, "a", "1");
+    put(store, "b", "2");
+    put(store, "a", "3");
+    Assert.assertEquals("3", read(store, "a"));
+    Assert.assertEquals("2", read(store, "b"));
+    Assert.assertTrue(store.remove("b"));
+    Assert.assertFalse(store.remove("b"));
+    Assert.assertNull(read(store, "b"));
+    Assert.assertEquals(1, store.size());
+    store.close();
+  }
+
+  @Test
+  public void testReopenReplaysLog() throws Exception {
+    final File directory = folder.newFolder("log");
+    MappedLogStore store = new MappedLogStore("test", directory, 4096, false);
+    put(store, "a", "1");
+    put(store, "b", "2");
+    put(store, "a", "3");
+    store.remove("b");
+    store.close();
+    store = new MappedLogStore("test", directory, 4096, false);
+    Assert.assertEquals(1, store.size());
+    Assert.assertEquals("3", read(store, "a"));
+    Assert.assertNull(read(store, "b"));
+    store.close();
+  }
+
+  @Test
+  public void testInterruptedAppendIsTruncated() throws Exception {
+    final File directory = folder.newFolder("log");
+    MappedLogStore store = new MappedLogStore("test", directory, 4096, false);
+    put(store, "a", "1");
+    put(store, "b", "2");
+    store.close();
+    final File segment = new File(directory, MappedLogStore.SEGMENT_PREFIX + String.format("%020d", 1) +
+        MappedLogStore.SEGMENT_SUFFIX);
+    final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    try {
+      //Last byte of the value of b, as if the append had not completed
+      file.seek(2 * (8 + 5 + 1 + 1) - 1);
+      file.write('x');
+    }
+    finally {
+      file.close();
+    }
+    store = new MappedLogStore("test", directory, 4096, false);
+    Assert.assertEquals("1", read(store, "a"));
+    Assert.assertNull(read(store, "b"));
+    put(store, "c", "3");
+    store.close();
+    store = new MappedLogStore("test", directory, 4096, false);
+    Assert.assertEquals("1", read(store, "a"));
+    Assert.assertEquals("3", read(store, "c"));
+    Assert.assertEquals(2, store.size());
+    store.close();
+  }
+
+  @Test
+  public void testCompactionKeepsLatestValues() throws Exception {
+    final File directory = folder.newFolder("log");
+    MappedLogStore store = new MappedLogStore("test", directory, 128, false);
+    for (int i = 0; i < 50; ++i) {
+      put(store, "k" + (i % 3), "value" + i);
+    }
+    put(store, "gone", "x");
+    store.remove("gone");
+    final int segments = store.getSegmentCount();
+    Assert.assertTrue(segments > 2);
+    Assert.assertTrue(store.compact(MappedLogStore.DEFAULT_COMPACTION_THRESHOLD) > 0);
+    Assert.assertTrue(store.getSegmentCount() < segments);
+    Assert.assertEquals(directory.listFiles().length - 1, store.getSegmentCount());
+    Assert.assertEquals("value48", read(store, "k0"));
+    Assert.assertEquals("value49", read(store, "k1"));
+    Assert.assertEquals("value47", read(store, "k2"));
+    store.close();
+    store = new MappedLogStore("test", directory, 128, false);
+    Assert.assertEquals(3, store.size());
+    Assert.assertEquals("value48", read(store, "k0"));
+    Assert.assertNull(read(store, "gone"));
+    store.close();
+  }
+
+  @Test
+  public void testViewOutlivesOverwrite() throws Exception {
+    MappedLogStore store = new MappedLogStore("test", folder.newFolder("log"), 4096, false);
+    put(store, "a", "1");
+    final ByteBuffer view = store.get("a");
+    put(store, "a", "2");
+    Assert.assertEquals('1', view.get(0));
+    Assert.assertTrue(view.isReadOnly());
+    store.close();
+  }
+
+  @Test
+  public void testDirectoryLockedWhileOpen() throws Exception {
+    final File directory = folder.newFolder("log");
+    MappedLogStore store = new MappedLogStore("test", directory, 4096, false);
+    put(store, "a", "1");
+    try {
+      new MappedLogStore("other", directory, 4096, false);
+      Assert.fail("Opened a log already in use");
+    }
+    catch (IOException ex) {
+      //Expected
+    }
+    store.close();
+    store.open();
+    Assert.assertEquals("1", read(store, "a"));
+    store.close();
+  }
+}
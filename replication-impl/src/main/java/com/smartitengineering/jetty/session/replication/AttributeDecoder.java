@@ -0,0 +1,36 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+/**
+ * Turns the stored bytes of a session attribute back into its value.
+ *
+ * @author imyousuf
+ */
+public interface AttributeDecoder {
+
+  Object decode(byte[] data);
+
+  /**
+   * Whether the bytes are known to hold a plain value, such as a string or a number, that can not be a session
+   * listener; such attributes do not need to be decoded to notify listeners.
+   */
+  boolean isPlainValue(byte[] data);
+}
@@ -0,0 +1,116 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of strings that can be added to and queried concurrently without locking. A negative answer is
+ * definite, a positive one is wrong with roughly the configured probability as long as no more than the expected
+ * number of keys are added. Keys can not be removed; the filter is meant to be rebuilt instead.
+ *
+ * @author imyousuf
+ */
+public class ConcurrentBloomFilter {
+
+  private final AtomicLongArray bits;
+  private final long bitCount;
+  private final int hashCount;
+  private final AtomicLong insertions = new AtomicLong();
+
+  public ConcurrentBloomFilter(long expectedInsertions, double falsePositiveRate) {
+    if (expectedInsertions <= 0) {
+      throw new IllegalArgumentException("Expected insertions must be positive");
+    }
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+      throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+    }
+    final double ln2 = Math.log(2);
+    long size = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+    size = Math.max(64, ((size + 63) / 64) * 64);
+    if (size / 64 > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Filter too large");
+    }
+    bits = new AtomicLongArray((int) (size / 64));
+    bitCount = size;
+    hashCount = Math.max(1, (int) Math.round((double) size / expectedInsertions * ln2));
+  }
+
+  public void put(String key) {
+    final long hash1 = hash(key);
+    final long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L) | 1;
+    for (int i = 0; i < hashCount; ++i) {
+      final long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+      final int index = (int) (bit >>> 6);
+      final long mask = 1L << bit;
+      long current = bits.get(index);
+      while ((current & mask) == 0 && !bits.compareAndSet(index, current, current | mask)) {
+        current = bits.get(index);
+      }
+    }
+    insertions.incrementAndGet();
+  }
+
+  public boolean mightContain(String key) {
+    final long hash1 = hash(key);
+    final long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L) | 1;
+    for (int i = 0; i < hashCount; ++i) {
+      final long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+      if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public long getInsertions() {
+    return insertions.get();
+  }
+
+  public long getBitCount() {
+    return bitCount;
+  }
+
+  public int getHashCount() {
+    return hashCount;
+  }
+
+  protected static long hash(String key) {
+    //64 bit FNV-1a over the characters, finished with a mixing step
+    long hash = 0xcbf29ce484222325L;
+    if (key != null) {
+      for (int i = 0; i < key.length(); ++i) {
+        hash ^= key.charAt(i);
+        hash *= 0x100000001b3L;
+      }
+    }
+    return mix(hash);
+  }
+
+  protected static long mix(long value) {
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdL;
+    value ^= value >>> 33;
+    value *= 0xc4ceb9fe1a85ec53L;
+    value ^= value >>> 33;
+    return value;
+  }
+}
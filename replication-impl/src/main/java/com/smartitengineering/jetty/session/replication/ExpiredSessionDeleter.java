@@ -0,0 +1,44 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import java.util.List;
+
+/**
+ * Reads and deletes sessions found expired by the scavenger, unless they were extended in the meantime.
+ *
+ * @author imyousuf
+ */
+public interface ExpiredSessionDeleter {
+
+  /**
+   * Read the sessions of a batch of index entries in one round trip
+   * @return the sessions still stored, in no particular order; ids without a row are left out
+   * @throws IllegalStateException if the read itself failed
+   */
+  List<SessionData> getByIds(List<SessionDataId> ids);
+
+  /**
+   * Delete the row of the session only if its stored expiry time is still the one of the given data
+   * @return true if deleted, false if the session was written again since it was read
+   * @throws IllegalStateException if the delete itself failed
+   */
+  boolean deleteIfExpired(SessionData data);
+}
@@ -0,0 +1,59 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Delivers notifications synchronously to the subscribers in the same JVM, for tests and single process setups
+ * running several nodes.
+ *
+ * @author imyousuf
+ */
+public class InProcessInvalidationBus implements SessionInvalidationBus {
+
+  private final Map<Listener, String> listeners = new ConcurrentHashMap<Listener, String>();
+
+  @Override
+  public boolean isActive() {
+    return true;
+  }
+
+  @Override
+  public void publish(String originNode, SessionDataId id) {
+    for (Map.Entry<Listener, String> entry : listeners.entrySet()) {
+      if (!entry.getValue().equals(originNode)) {
+        entry.getKey().invalidate(Collections.singletonList(id));
+      }
+    }
+  }
+
+  @Override
+  public void subscribe(String node, Listener listener) {
+    listeners.put(listener, node == null ? "" : node);
+  }
+
+  @Override
+  public void unsubscribe(Listener listener) {
+    listeners.remove(listener);
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import com.smartitengineering.jetty.session.replication.metrics.Counter;
+import com.smartitengineering.jetty.session.replication.metrics.Gauge;
+import com.smartitengineering.jetty.session.replication.metrics.Histogram;
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pool that reports its saturation and how long tasks wait in its queue under
+ * <tt>executor.&lt;name&gt;.*</tt>.
+ *
+ * @author imyousuf
+ */
+public class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+
+  private final String name;
+  private final Histogram queueWait;
+
+  /**
+   * What to do with a task when both the pool and its queue are full.
+   */
+  public enum RejectionPolicy {
+
+    /**
+     * Run the task in the submitting thread, slowing submitters down to the pool's pace
+     */
+    CALLER_RUNS,
+    /**
+     * Throw a RejectedExecutionException. There is no policy silently discarding tasks, as submitters wait for their
+     * futures.
+     */
+    ABORT;
+
+    RejectedExecutionHandler toHandler() {
+      switch (this) {
+        case ABORT:
+          return new ThreadPoolExecutor.AbortPolicy();
+        case CALLER_RUNS:
+        default:
+          return new ThreadPoolExecutor.CallerRunsPolicy();
+      }
+    }
+  }
+
+  /**
+   * @param queueCapacity Tasks queued once all threads are busy, 0 hands them straight to a new thread up to the
+   * maximum size. As a pool only starts threads beyond its core size once its queue is full, with a queue the core
+   * size is raised to the maximum size and idle core threads time out instead.
+   */
+  public InstrumentedThreadPoolExecutor(String name, int coreSize, int maxSize, int queueCapacity,
+                                        long keepAliveSeconds, RejectionPolicy rejectionPolicy) {
+    super(queueCapacity > 0 ? maxSize : coreSize, maxSize, keepAliveSeconds, TimeUnit.SECONDS, newQueue(
+        queueCapacity), new NamedThreadFactory(name), new CountingRejectionHandler(Metrics.counter(prefix(name) +
+        "rejected"), rejectionPolicy.toHandler()));
+    if (queueCapacity > 0 && keepAliveSeconds > 0) {
+      allowCoreThreadTimeOut(true);
+    }
+    this.name = name;
+    this.queueWait = Metrics.histogram(prefix(name) + "queueWaitNanos");
+    registerGauges();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    super.execute(new TimedTask(command, queueWait));
+  }
+
+  @Override
+  protected void terminated() {
+    super.terminated();
+    final String prefix = prefix(name);
+    Metrics.getRegistry().unregister(prefix + "active");
+    Metrics.getRegistry().unregister(prefix + "poolSize");
+    Metrics.getRegistry().unregister(prefix + "queued");
+    Metrics.getRegistry().unregister(prefix + "completed");
+  }
+
+  private void registerGauges() {
+    final String prefix = prefix(name);
+    Metrics.getRegistry().register(prefix + "active", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getActiveCount();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "poolSize", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getPoolSize();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "queued", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getQueue().size();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "completed", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getCompletedTaskCount();
+      }
+    });
+  }
+
+  private static String prefix(String name) {
+    return Metrics.EXECUTOR_PREFIX + name + ".";
+  }
+
+  private static BlockingQueue<Runnable> newQueue(int capacity) {
+    if (capacity <= 0) {
+      return new SynchronousQueue<Runnable>();
+    }
+    return new ArrayBlockingQueue<Runnable>(capacity);
+  }
+
+  private static class TimedTask implements Runnable {
+
+    private final Runnable task;
+    private final Histogram queueWait;
+    private final long queuedAt = System.nanoTime();
+
+    TimedTask(Runnable task, Histogram queueWait) {
+      this.task = task;
+      this.queueWait = queueWait;
+    }
+
+    @Override
+    public void run() {
+      queueWait.update(System.nanoTime() - queuedAt);
+      task.run();
+    }
+  }
+
+  private static class CountingRejectionHandler implements RejectedExecutionHandler {
+
+    private final Counter rejected;
+    private final RejectedExecutionHandler delegate;
+
+    CountingRejectionHandler(Counter rejected, RejectedExecutionHandler delegate) {
+      this.rejected = rejected;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+      rejected.inc();
+      delegate.rejectedExecution(r, executor);
+    }
+  }
+
+  /**
+   * Daemon threads named after the pool, so that DAO threads are recognizable in thread dumps
+   */
+  public static class NamedThreadFactory implements ThreadFactory {
+
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    public NamedThreadFactory(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      final Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
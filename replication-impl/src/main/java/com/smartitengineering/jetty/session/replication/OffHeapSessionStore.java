@@ -0,0 +1,231 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import com.smartitengineering.jetty.session.replication.metrics.Gauge;
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Byte bounded store of serialized session data in a direct buffer, used as a second tier behind the on heap session
+ * cache. Records are appended to the buffer as a ring; when the buffer is full the oldest records are overwritten, so
+ * sessions leave the store in the order they entered it unless they are promoted back on heap before.
+ *
+ * @author imyousuf
+ */
+public class OffHeapSessionStore {
+
+  protected final Logger logger = LoggerFactory.getLogger(getClass());
+  private final String name;
+  private final ByteBuffer buffer;
+  private final SessionDataSerializer serializer;
+  private final Map<String, Record> index = new HashMap<String, Record>();
+  private final LinkedList<Record> records = new LinkedList<Record>();
+  private int writePosition;
+  private long usedBytes;
+
+  public OffHeapSessionStore(String name, int capacity, SessionDataSerializer serializer) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity has to be positive");
+    }
+    if (serializer == null) {
+      throw new IllegalArgumentException("Null serializer");
+    }
+    this.name = name;
+    this.buffer = ByteBuffer.allocateDirect(capacity);
+    this.serializer = serializer;
+  }
+
+  public void registerMetrics() {
+    final String prefix = Metrics.OFF_HEAP_PREFIX + name + ".";
+    Metrics.getRegistry().register(prefix + "usedBytes", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getUsedBytes();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "capacityBytes", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getCapacity();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "size", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getSize();
+      }
+    });
+  }
+
+  public void unregisterMetrics() {
+    final String prefix = Metrics.OFF_HEAP_PREFIX + name + ".";
+    Metrics.getRegistry().unregister(prefix + "usedBytes");
+    Metrics.getRegistry().unregister(prefix + "capacityBytes");
+    Metrics.getRegistry().unregister(prefix + "size");
+  }
+
+  /**
+   * Move session data into the store, replacing any earlier record of the same key.
+   * @return false if the session data could not be stored
+   */
+  public boolean put(String key, SessionData data) {
+    final byte[] bytes;
+    try {
+      bytes = serializer.serialize(data);
+    }
+    catch (Exception ex) {
+      logger.warn("Could not serialize session " + data.getId() + " to move it off heap", ex);
+      return false;
+    }
+    if (bytes.length > buffer.capacity()) {
+      counter("rejected");
+      return false;
+    }
+    synchronized (this) {
+      remove(key, index.get(key));
+      final int position = allocate(bytes.length);
+      final ByteBuffer target = buffer.duplicate();
+      target.position(position);
+      target.put(bytes);
+      final Record record = new Record(key, position, bytes.length);
+      records.addLast(record);
+      index.put(key, record);
+      writePosition = position + bytes.length;
+      usedBytes += bytes.length;
+    }
+    counter("demotions");
+    return true;
+  }
+
+  /**
+   * Remove and return the session data of the key, to be promoted back on heap.
+   */
+  public SessionData take(String key) {
+    final byte[] bytes;
+    synchronized (this) {
+      final Record record = index.get(key);
+      if (record == null) {
+        return null;
+      }
+      bytes = new byte[record.length];
+      final ByteBuffer source = buffer.duplicate();
+      source.position(record.position);
+      source.get(bytes);
+      remove(key, record);
+    }
+    try {
+      final SessionData data = serializer.deserialize(bytes);
+      counter("promotions");
+      return data;
+    }
+    catch (Exception ex) {
+      logger.warn("Could not deserialize off heap session " + key, ex);
+      return null;
+    }
+  }
+
+  public synchronized void remove(String key) {
+    remove(key, index.get(key));
+  }
+
+  public synchronized void clear() {
+    index.clear();
+    records.clear();
+    writePosition = 0;
+    usedBytes = 0;
+  }
+
+  public int getCapacity() {
+    return buffer.capacity();
+  }
+
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  public synchronized int getSize() {
+    return index.size();
+  }
+
+  private void remove(String key, Record record) {
+    if (record != null && index.get(key) == record) {
+      index.remove(key);
+      record.live = false;
+      usedBytes -= record.length;
+    }
+  }
+
+  /**
+   * Find the position for a record of the given length, overwriting the oldest records as necessary. Space taken by
+   * removed records is reclaimed once the ring reaches it.
+   */
+  private int allocate(int length) {
+    for (;;) {
+      if (records.isEmpty()) {
+        return writePosition = 0;
+      }
+      final int head = records.getFirst().position;
+      if (head < writePosition) {
+        if (writePosition + length <= buffer.capacity()) {
+          return writePosition;
+        }
+        if (length <= head) {
+          //Wrap around, leaving the end of the buffer unused until the ring passes it
+          return writePosition = 0;
+        }
+      }
+      else if (writePosition + length <= head) {
+        return writePosition;
+      }
+      final Record evicted = records.removeFirst();
+      if (evicted.live) {
+        remove(evicted.key, evicted);
+        counter("evictions");
+      }
+    }
+  }
+
+  private void counter(String event) {
+    Metrics.counter(Metrics.OFF_HEAP_PREFIX + name + "." + event).inc();
+  }
+
+  private static class Record {
+
+    private final String key;
+    private final int position;
+    private final int length;
+    private boolean live = true;
+
+    Record(String key, int position, int length) {
+      this.key = key;
+      this.position = position;
+      this.length = length;
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+/**
+ * A session attribute kept as the bytes it was loaded as until its value is asked for. As long as it is not decoded
+ * it is written back as is, without serializing it again.
+ *
+ * @author imyousuf
+ */
+public final class SerializedAttribute {
+
+  private final byte[] data;
+  private final AttributeDecoder decoder;
+  private volatile boolean decoded;
+  private Object value;
+
+  public SerializedAttribute(byte[] data, AttributeDecoder decoder) {
+    this.data = data;
+    this.decoder = decoder;
+  }
+
+  /**
+   * The stored bytes, only to be written back while the value has not been decoded
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  public boolean isDecoded() {
+    return decoded;
+  }
+
+  public boolean isPlainValue() {
+    return decoder.isPlainValue(data);
+  }
+
+  public Object getValue() {
+    if (!decoded) {
+      synchronized (this) {
+        if (!decoded) {
+          value = decoder.decode(data);
+          decoded = true;
+        }
+      }
+    }
+    return value;
+  }
+
+  /**
+   * The value of an attribute, decoding it if it is still serialized
+   */
+  public static Object resolve(Object attribute) {
+    return attribute instanceof SerializedAttribute ? ((SerializedAttribute) attribute).getValue() : attribute;
+  }
+
+  @Override
+  public String toString() {
+    return decoded ? String.valueOf(value) : "SerializedAttribute{" + data.length + " bytes}";
+  }
+}
@@ -20,9 +20,15 @@
 package com.smartitengineering.jetty.session.replication;
 
 import com.smartitengineering.domain.AbstractGenericPersistentDTO;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.lang.StringUtils;
 
 /**
@@ -32,15 +38,16 @@ import org.apache.commons.lang.StringUtils;
 public class SessionData extends AbstractGenericPersistentDTO<SessionData, SessionDataId, Long> {
 
   private final SessionDataId id;
-  private long accessed;
-  private long lastAccessed;
-  private long maxIdleMs;
-  private long cookieSet;
-  private long created;
-  private Map attributes;
-  private String lastNode;
-  private long lastSaved;
-  private long expiryTime;
+  private final AtomicReference<State> state;
+  private final Map attributes;
+  private final Set<String> changedAttributes = new HashSet<String>();
+  private final Set<String> removedAttributes = new HashSet<String>();
+  private final Set<String> removedSinceLoad = new HashSet<String>();
+  private boolean allAttributesChanged = true;
+  private boolean attributesMerged;
+  private volatile long indexedExpiryTime;
+  private volatile String storedLastNode;
+  private final ConcurrentHashMap<String, Integer> attributeSizes = new ConcurrentHashMap<String, Integer>();
 
   public SessionData(SessionDataId dataId, String lastNode) {
     if (StringUtils.isBlank(lastNode)) {
@@ -50,113 +57,537 @@ public class SessionData extends AbstractGenericPersistentDTO<SessionData, Sessi
       throw new IllegalArgumentException("Null session data id");
     }
     id = dataId;
-    created = System.currentTimeMillis();
-    accessed = created;
-    lastAccessed = accessed;
-    this.lastNode = lastNode;
+    final State initial = new State();
+    initial.created = System.currentTimeMillis();
+    initial.accessed = initial.created;
+    initial.lastAccessed = initial.accessed;
+    initial.lastNode = lastNode;
+    state = new AtomicReference<State>(initial);
+    storedLastNode = lastNode;
     attributes = new ConcurrentHashMap();
   }
 
   @Override
-  public synchronized SessionDataId getId() {
+  public SessionDataId getId() {
     return id;
   }
 
-  public synchronized long getCreated() {
-    return created;
+  /**
+   * A consistent snapshot of all the scalar fields, taken without blocking writers
+   */
+  public State getState() {
+    return state.get();
   }
 
-  public synchronized void setCreated(long ms) {
-    this.created = ms;
+  public long getCreated() {
+    return state.get().created;
   }
 
-  public synchronized long getAccessed() {
-    return accessed;
+  public void setCreated(final long ms) {
+    update(new Mutation() {
+
+      @Override
+      public void apply(State next) {
+        next.created = ms;
+      }
+    });
+  }
+
+  public long getAccessed() {
+    return state.get().accessed;
   }
 
-  public synchronized void setAccessed(long ms) {
-    this.accessed = ms;
+  public void setAccessed(final long ms) {
+    update(new Mutation() {
+
+      @Override
+      public void apply(State next) {
+        next.accessed = ms;
+      }
+    });
+  }
+
+  /**
+   * Record an access at the given time, moving the previous access time to last accessed, as one change
+   *
+   * @return The state after the access
+   */
+  public State access(final long time, final long expiryTime) {
+    return update(new Mutation() {
+
+      @Override
+      public void apply(State next) {
+        next.lastAccessed = next.accessed;
+        next.accessed = time;
+        next.expiryTime = expiryTime;
+      }
+    });
   }
 
-  public synchronized void setMaxIdleMs(long ms) {
-    this.maxIdleMs = ms;
+  public void setMaxIdleMs(final long ms) {
+    update(new Mutation() {
+
+      @Override
+      public void apply(State next) {
+        next.maxIdleMs = ms;
+      }
+    });
   }
 
-  public synchronized long getMaxIdleMs() {
-    return maxIdleMs;
+  public long getMaxIdleMs() {
+    return state.get().maxIdleMs;
   }
 
-  public synchronized void setLastAccessed(long ms) {
-    this.lastAccessed = ms;
+  public void setLastAccessed(final long ms) {
+    update(new Mutation() {
+
+      @Override
+      public void apply(State next) {
+        next.lastAccessed = ms;
+      }
+    });
   }
 
-  public synchronized long getLastAccessed() {
-    return lastAccessed;
+  public long getLastAccessed() {
+    return state.get().lastAccessed;
   }
 
-  public void setCookieSet(long ms) {
-    this.cookieSet = ms;
+  public void setCookieSet(final long ms) {
+    update(new Mutation() {
+
+      @Override
+      public void apply(State next) {
+        next.cookieSet = ms;
+      }
+    });
   }
 
-  public synchronized long getCookieSet() {
-    return cookieSet;
+  public long getCookieSet() {
+    return state.get().cookieSet;
   }
 
   public void setAttribute(String key, Object val) {
     attributes.put(key, val);
+    synchronized (this) {
+      changedAttributes.add(key);
+      removedAttributes.remove(key);
+    }
   }
 
   public void removeAttribute(String key) {
     attributes.remove(key);
+    attributeSizes.remove(key);
+    synchronized (this) {
+      removedAttributes.add(key);
+      removedSinceLoad.add(key);
+      changedAttributes.remove(key);
+    }
   }
 
   public Object getAttrbute(String key) {
-    return attributes.get(key);
+    return SerializedAttribute.resolve(attributes.get(key));
   }
 
-  public synchronized Map getAttributeMap() {
+  public Map getAttributeMap() {
     return Collections.unmodifiableMap(attributes);
   }
 
+  /**
+   * Replace all attributes with the ones loaded from the persistent storage; as the map reflects what is already
+   * stored all change tracking is reset.
+   */
   public synchronized void setAttributeMap(Map map) {
     this.attributes.clear();
+    this.attributeSizes.clear();
     this.attributes.putAll(map);
+    changedAttributes.clear();
+    removedAttributes.clear();
+    removedSinceLoad.clear();
+    allAttributesChanged = false;
+  }
+
+  /**
+   * Whether the next write has any attribute to write or delete, as opposed to only access times
+   */
+  public synchronized boolean hasAttributeChanges() {
+    return allAttributesChanged || !changedAttributes.isEmpty() || !removedAttributes.isEmpty();
+  }
+
+  /**
+   * Whether any attribute holds a value that may have been modified in place, without being set again, since it was
+   * last written. Such attributes are written whenever the session is.
+   */
+  public boolean hasMutableAttributes() {
+    for (Object value : attributes.values()) {
+      if (isMutable(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Whether a value may be modified in place: a still serialized value can not be, neither can the immutable types
+   * attributes usually are
+   */
+  public static boolean isMutable(Object value) {
+    if (value instanceof SerializedAttribute) {
+      final SerializedAttribute attribute = (SerializedAttribute) value;
+      if (!attribute.isDecoded()) {
+        return false;
+      }
+      value = attribute.getValue();
+    }
+    return value != null && !(value instanceof String || value instanceof Boolean || value instanceof Character ||
+                              value instanceof Enum || value instanceof Integer || value instanceof Long ||
+                              value instanceof Short || value instanceof Byte || value instanceof Double ||
+                              value instanceof Float || value instanceof BigInteger || value instanceof BigDecimal);
+  }
+
+  /**
+   * Retrieve and reset the attribute changes since the last time they were drained. Attributes that may have been
+   * modified in place count as changed.
+   */
+  public synchronized AttributeChanges drainAttributeChanges() {
+    final AttributeChanges changes;
+    if (allAttributesChanged) {
+      changes = new AttributeChanges(true, Collections.<String>emptySet(), new HashSet<String>(removedSinceLoad));
+    }
+    else {
+      final Set<String> changed = new HashSet<String>(changedAttributes);
+      for (Object entry : attributes.entrySet()) {
+        final Map.Entry attribute = (Map.Entry) entry;
+        if (isMutable(attribute.getValue()) && !removedAttributes.contains(attribute.getKey())) {
+          changed.add(String.valueOf(attribute.getKey()));
+        }
+      }
+      changes = new AttributeChanges(false, changed, new HashSet<String>(removedAttributes));
+    }
+    changedAttributes.clear();
+    removedAttributes.clear();
+    allAttributesChanged = false;
+    return changes;
+  }
+
+  /**
+   * Put changes drained by a write that did not succeed back, without overriding changes made since.
+   */
+  public synchronized void restoreAttributeChanges(AttributeChanges changes) {
+    if (changes.isAll()) {
+      allAttributesChanged = true;
+      return;
+    }
+    for (String name : changes.getChanged()) {
+      if (!removedAttributes.contains(name)) {
+        changedAttributes.add(name);
+      }
+    }
+    for (String name : changes.getRemoved()) {
+      if (!changedAttributes.contains(name)) {
+        removedAttributes.add(name);
+      }
+    }
+  }
+
+  /**
+   * Take the attributes of a concurrently persisted version of this session over, except for the ones changed or
+   * removed here since they were last written.
+   */
+  public synchronized void mergeAttributes(Map persisted) {
+    for (Object entry : persisted.entrySet()) {
+      final Map.Entry attribute = (Map.Entry) entry;
+      final Object name = attribute.getKey();
+      if (!changedAttributes.contains(name) && !removedAttributes.contains(name)) {
+        if (attributes.put(name, attribute.getValue()) != attribute.getValue()) {
+          attributesMerged = true;
+        }
+      }
+    }
+    for (Object name : new HashSet(attributes.keySet())) {
+      if (!persisted.containsKey(name) && !changedAttributes.contains(name)) {
+        attributes.remove(name);
+        attributesMerged = true;
+      }
+    }
+  }
+
+  /**
+   * Retrieve and reset whether attributes were taken over from a persisted version since the last call; if so any
+   * copy of the attributes kept outside of this object, such as by the servlet session, is stale.
+   */
+  public synchronized boolean drainAttributesMerged() {
+    final boolean merged = attributesMerged;
+    attributesMerged = false;
+    return merged;
+  }
+
+  /**
+   * Record attributes that are stored but not held here as removed, so that a full write deletes them instead of
+   * leaving them in place.
+   */
+  public synchronized void markAttributesRemoved(Collection<String> names) {
+    for (String name : names) {
+      if (!attributes.containsKey(name)) {
+        removedAttributes.add(name);
+        removedSinceLoad.add(name);
+      }
+    }
+  }
+
+  /**
+   * Request all attributes be written in the next save, for example when a previous write failed after its changes
+   * had been drained or when the stored format has to be migrated.
+   */
+  public synchronized void markAllAttributesChanged() {
+    allAttributesChanged = true;
+  }
+
+  public void setLastNode(final String node) {
+    update(new Mutation() {
+
+      @Override
+      public void apply(State next) {
+        next.lastNode = node;
+      }
+    });
+  }
+
+  public String getLastNode() {
+    return state.get().lastNode;
+  }
+
+  public long getLastSaved() {
+    return state.get().lastSaved;
+  }
+
+  public void setLastSaved(long time) {
+    markSaved(time);
+  }
+
+  /**
+   * Set the last saved time and return the snapshot to be written with it
+   */
+  public State markSaved(final long time) {
+    return update(new Mutation() {
+
+      @Override
+      public void apply(State next) {
+        next.lastSaved = time;
+      }
+    });
+  }
+
+  public void setExpiryTime(final long time) {
+    update(new Mutation() {
+
+      @Override
+      public void apply(State next) {
+        next.expiryTime = time;
+      }
+    });
+  }
+
+  public long getExpiryTime() {
+    return state.get().expiryTime;
+  }
+
+  /**
+   * Time until which the last node owns this session and may serve it from its cache without reloading it
+   */
+  public long getLeaseExpiry() {
+    return state.get().leaseExpiry;
+  }
+
+  public void setLeaseExpiry(final long leaseExpiry) {
+    update(new Mutation() {
+
+      @Override
+      public void apply(State next) {
+        next.leaseExpiry = leaseExpiry;
+      }
+    });
   }
 
-  public synchronized void setLastNode(String node) {
-    this.lastNode = node;
+  /**
+   * Record the serialized size of an attribute as it was last read or written; not persisted
+   */
+  public void setAttributeSize(String key, int bytes) {
+    attributeSizes.put(key, bytes);
   }
 
-  public synchronized String getLastNode() {
-    return lastNode;
+  /**
+   * Estimate of the memory taken by the attributes, from their serialized sizes known so far
+   */
+  public long getEstimatedSize() {
+    long size = 0;
+    for (Integer bytes : attributeSizes.values()) {
+      size += bytes.intValue();
+    }
+    return size;
   }
 
-  public synchronized long getLastSaved() {
-    return this.lastSaved;
+  /**
+   * The expiry time last recorded in the expiry index by this node; not persisted
+   */
+  public long getIndexedExpiryTime() {
+    return indexedExpiryTime;
   }
 
-  public synchronized void setLastSaved(long time) {
-    lastSaved = time;
+  public void setIndexedExpiryTime(long indexedExpiryTime) {
+    this.indexedExpiryTime = indexedExpiryTime;
   }
 
-  public synchronized void setExpiryTime(long time) {
-    this.expiryTime = time;
+  /**
+   * The last node the stored row holds as far as this copy knows, that is the one it was loaded with or last written
+   * with. It differs from {@link #getLastNode()} once a node takes a session over in memory, and is what conditional
+   * writes have to expect; not persisted
+   */
+  public String getStoredLastNode() {
+    return storedLastNode;
   }
 
-  public synchronized long getExpiryTime() {
-    return expiryTime;
+  public void setStoredLastNode(String storedLastNode) {
+    this.storedLastNode = storedLastNode;
   }
 
   @Override
   public String toString() {
-    return "Session id=" + id + ",lastNode=" + lastNode +
-        ",created=" + created + ",accessed=" + accessed +
-        ",lastAccessed=" + lastAccessed + ",cookieSet=" + cookieSet +
-        ",lastSaved=" + lastSaved + ",attributes=" + attributes + ",expiryTime=" + expiryTime;
+    final State current = state.get();
+    return "Session id=" + id + ",lastNode=" + current.lastNode +
+        ",created=" + current.created + ",accessed=" + current.accessed +
+        ",lastAccessed=" + current.lastAccessed + ",cookieSet=" + current.cookieSet +
+        ",lastSaved=" + current.lastSaved + ",attributes=" + attributes + ",expiryTime=" + current.expiryTime +
+        ",leaseExpiry=" + current.leaseExpiry;
   }
 
   @Override
   public boolean isValid() {
     return getId() != null;
   }
+
+  /**
+   * Apply a change to a copy of the current state and swap it in, retrying against concurrent changes
+   *
+   * @return The state after the change
+   */
+  private State update(Mutation mutation) {
+    for (;;) {
+      final State current = state.get();
+      final State next = current.copy();
+      mutation.apply(next);
+      if (state.compareAndSet(current, next)) {
+        return next;
+      }
+    }
+  }
+
+  private interface Mutation {
+
+    void apply(State next);
+  }
+
+  /**
+   * The scalar fields of a session. A state is copied for every change and never modified once published, so all
+   * values read from one instance belong together. Attributes are not part of it: each is stored in a cell of its own
+   * and kept in a concurrent map, so a writer sees every attribute value whole without copying the map on each set.
+   */
+  public static final class State {
+
+    private long accessed;
+    private long lastAccessed;
+    private long maxIdleMs;
+    private long cookieSet;
+    private long created;
+    private String lastNode;
+    private long lastSaved;
+    private long expiryTime;
+    private long leaseExpiry;
+
+    private State() {
+    }
+
+    private State copy() {
+      final State copy = new State();
+      copy.accessed = accessed;
+      copy.lastAccessed = lastAccessed;
+      copy.maxIdleMs = maxIdleMs;
+      copy.cookieSet = cookieSet;
+      copy.created = created;
+      copy.lastNode = lastNode;
+      copy.lastSaved = lastSaved;
+      copy.expiryTime = expiryTime;
+      copy.leaseExpiry = leaseExpiry;
+      return copy;
+    }
+
+    public long getAccessed() {
+      return accessed;
+    }
+
+    public long getLastAccessed() {
+      return lastAccessed;
+    }
+
+    public long getMaxIdleMs() {
+      return maxIdleMs;
+    }
+
+    public long getCookieSet() {
+      return cookieSet;
+    }
+
+    public long getCreated() {
+      return created;
+    }
+
+    public String getLastNode() {
+      return lastNode;
+    }
+
+    public long getLastSaved() {
+      return lastSaved;
+    }
+
+    public long getExpiryTime() {
+      return expiryTime;
+    }
+
+    public long getLeaseExpiry() {
+      return leaseExpiry;
+    }
+  }
+
+  public static class AttributeChanges {
+
+    /**
+     * Every attribute, without any removed since the data was loaded
+     */
+    public static final AttributeChanges ALL = new AttributeChanges(true, Collections.<String>emptySet(), Collections.
+        <String>emptySet());
+
+    private final boolean all;
+    private final Set<String> changed;
+    private final Set<String> removed;
+
+    AttributeChanges(boolean all, Set<String> changed, Set<String> removed) {
+      this.all = all;
+      this.changed = Collections.unmodifiableSet(changed);
+      this.removed = Collections.unmodifiableSet(removed);
+    }
+
+    /**
+     * Whether every attribute has to be written irrespective of the changed names
+     */
+    public boolean isAll() {
+      return all;
+    }
+
+    public Set<String> getChanged() {
+      return changed;
+    }
+
+    public Set<String> getRemoved() {
+      return removed;
+    }
+  }
 }
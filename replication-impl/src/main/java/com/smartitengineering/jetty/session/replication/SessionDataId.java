@@ -20,10 +20,12 @@
 package com.smartitengineering.jetty.session.replication;
 
 import com.smartitengineering.dao.impl.hbase.spi.Externalizable;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
@@ -33,14 +35,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Identifies the session data of a session within a context. The binary key is laid out as a zero marker byte, the
+ * UTF-8 bytes of the in cluster id, canonical context path and virtual host, followed by the lengths of the first two
+ * as unsigned shorts and a format version byte. Keeping the lengths at the end keeps the session id leading so that
+ * keys spread evenly and all rows of a cluster id share a prefix. Keys in the older id:canonicalpath:virtualhost text
+ * format are still read; ids parsed from them stay in that format so that existing rows keep being addressed.
  *
  * @author imyousuf
  */
 public class SessionDataId implements Externalizable, Serializable, Comparable<SessionDataId> {
 
+  public static final byte BINARY_MARKER = 0;
+  public static final byte BINARY_VERSION = 1;
+  private static final int TRAILER_LENGTH = 5;
+  /**
+   * Longest session id and canonical context path in bytes, as their lengths are stored as unsigned shorts
+   */
+  public static final int MAX_LENGTH = 0xFFFF;
   private String inClusterId;
   private String canonicalContextPath;
   private String virtualHost;
+  private transient Context context;
+  private transient byte[] bytes;
+  private transient boolean legacyEncoded;
   protected final transient Logger logger = LoggerFactory.getLogger(getClass());
 
   public SessionDataId(String id, String canonicalContextPath, String virtualHost) {
@@ -49,6 +66,16 @@ public class SessionDataId implements Externalizable, Serializable, Comparable<S
     this.virtualHost = virtualHost;
   }
 
+  /**
+   * Create an id reusing the pre-encoded context and virtual host of a session manager
+   */
+  public SessionDataId(String id, Context context) {
+    this.inClusterId = id;
+    this.canonicalContextPath = context.getCanonicalContextPath();
+    this.virtualHost = context.getVirtualHost();
+    this.context = context;
+  }
+
   public SessionDataId() {
   }
 
@@ -58,6 +85,8 @@ public class SessionDataId implements Externalizable, Serializable, Comparable<S
 
   public void setCanonicalContextPath(String canonicalContextPath) {
     this.canonicalContextPath = canonicalContextPath;
+    this.context = null;
+    this.bytes = null;
   }
 
   public String getInClusterId() {
@@ -66,6 +95,7 @@ public class SessionDataId implements Externalizable, Serializable, Comparable<S
 
   public void setInClusterId(String id) {
     this.inClusterId = id;
+    this.bytes = null;
   }
 
   public String getVirtualHost() {
@@ -74,6 +104,51 @@ public class SessionDataId implements Externalizable, Serializable, Comparable<S
 
   public void setVirtualHost(String virtualHost) {
     this.virtualHost = virtualHost;
+    this.context = null;
+    this.bytes = null;
+  }
+
+  public boolean isLegacyEncoded() {
+    return legacyEncoded;
+  }
+
+  /**
+   * Whether this id is written in the legacy text format, used to address rows written before the binary format
+   */
+  public void setLegacyEncoded(boolean legacyEncoded) {
+    this.legacyEncoded = legacyEncoded;
+    this.bytes = null;
+  }
+
+  /**
+   * The key bytes of this id in its format; cached, so the returned array must not be modified
+   */
+  public byte[] getBytes() {
+    byte[] encoded = bytes;
+    if (encoded == null) {
+      encoded = legacyEncoded ? StringUtils.getBytesUtf8(toString()) : encode();
+      bytes = encoded;
+    }
+    return encoded;
+  }
+
+  protected byte[] encode() {
+    Context ctx = context;
+    if (ctx == null) {
+      ctx = new Context(canonicalContextPath, virtualHost);
+      context = ctx;
+    }
+    final byte[] id = toUtf8(inClusterId);
+    final byte[] ctxBytes = ctx.contextPathBytes;
+    final byte[] hostBytes = ctx.virtualHostBytes;
+    if (id.length > MAX_LENGTH || ctxBytes.length > MAX_LENGTH) {
+      throw new IllegalArgumentException("Session id and canonical context path can not be longer than " + MAX_LENGTH +
+          " bytes");
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate(1 + id.length + ctxBytes.length + hostBytes.length + TRAILER_LENGTH);
+    buffer.put(BINARY_MARKER).put(id).put(ctxBytes).put(hostBytes);
+    buffer.putShort((short) id.length).putShort((short) ctxBytes.length).put(BINARY_VERSION);
+    return buffer.array();
   }
 
   @Override
@@ -115,26 +190,78 @@ public class SessionDataId implements Externalizable, Serializable, Comparable<S
 
   @Override
   public void writeExternal(DataOutput output) throws IOException {
-    output.write(StringUtils.getBytesUtf8(toString()));
+    output.write(getBytes());
   }
 
   @Override
   public void readExternal(DataInput input) throws IOException, ClassNotFoundException {
-    String idString = readStringInUTF8(input);
-    if (logger.isInfoEnabled()) {
-      logger.info("Trying to parse session data id: " + idString);
-    }
-    if (org.apache.commons.lang.StringUtils.isBlank(idString)) {
+    final byte[] data = readFully(input);
+    if (data.length == 0) {
       throw new IOException("No content!");
     }
-    String[] params = idString.split(":");
-    if (params == null || params.length != 3) {
+    if (data[0] == BINARY_MARKER) {
+      parseBinary(data);
+    }
+    else {
+      parseLegacy(data);
+    }
+  }
+
+  protected void parseBinary(byte[] data) throws IOException {
+    final int length = data.length;
+    if (length < 1 + TRAILER_LENGTH || data[length - 1] != BINARY_VERSION) {
+      throw new IOException("Unsupported session data id format");
+    }
+    final ByteBuffer buffer = ByteBuffer.wrap(data);
+    final int idLength = buffer.getShort(length - TRAILER_LENGTH) & 0xFFFF;
+    final int ctxLength = buffer.getShort(length - TRAILER_LENGTH + 2) & 0xFFFF;
+    final int hostLength = length - TRAILER_LENGTH - 1 - idLength - ctxLength;
+    if (hostLength < 0) {
+      throw new IOException("Corrupt session data id");
+    }
+    inClusterId = StringUtils.newStringUtf8(Arrays.copyOfRange(data, 1, 1 + idLength));
+    canonicalContextPath = StringUtils.newStringUtf8(Arrays.copyOfRange(data, 1 + idLength, 1 + idLength + ctxLength));
+    virtualHost = StringUtils.newStringUtf8(Arrays.copyOfRange(data, 1 + idLength + ctxLength, length -
+        TRAILER_LENGTH));
+    context = null;
+    legacyEncoded = false;
+    bytes = data;
+  }
+
+  protected void parseLegacy(byte[] data) throws IOException {
+    final String idString = StringUtils.newStringUtf8(data);
+    if (logger.isInfoEnabled()) {
+      logger.info("Trying to parse legacy session data id: " + idString);
+    }
+    final int first = idString.indexOf(':');
+    final int second = first < 0 ? -1 : idString.indexOf(':', first + 1);
+    if (first < 0 || second < 0 || idString.indexOf(':', second + 1) >= 0) {
       throw new IOException(
           "Object should have been in the format id:canonicalpath:virtualhost");
     }
-    setInClusterId(params[0]);
-    setCanonicalContextPath(params[1]);
-    setVirtualHost(params[2]);
+    inClusterId = idString.substring(0, first);
+    canonicalContextPath = idString.substring(first + 1, second);
+    virtualHost = idString.substring(second + 1);
+    context = null;
+    legacyEncoded = true;
+    bytes = data;
+  }
+
+  /**
+   * Read everything remaining in the input, in bulk when it is backed by a stream
+   */
+  protected static byte[] readFully(DataInput in) throws IOException {
+    if (in instanceof InputStream) {
+      final InputStream stream = (InputStream) in;
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+      final byte[] buffer = new byte[256];
+      int read;
+      while ((read = stream.read(buffer)) > 0) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    }
+    return StringUtils.getBytesUtf8(readStringInUTF8(in));
   }
 
   public static String readStringInUTF8(DataInput in) throws IOException, UnsupportedEncodingException {
@@ -159,13 +286,71 @@ public class SessionDataId implements Externalizable, Serializable, Comparable<S
     return string;
   }
 
+  /**
+   * Orders ids as their binary keys, whatever format they are addressed in, so that the order is consistent with
+   * {@link #equals(java.lang.Object)}.
+   */
   @Override
   public int compareTo(SessionDataId o) {
     if (o == null) {
       return 1;
     }
-    else {
-      return toString().compareTo(o.toString());
+    final byte[] left = getBinaryBytes();
+    final byte[] right = o.getBinaryBytes();
+    final int length = Math.min(left.length, right.length);
+    for (int i = 0; i < length; ++i) {
+      final int diff = (left[i] & 0xFF) - (right[i] & 0xFF);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    if (left.length != right.length) {
+      return left.length - right.length;
+    }
+    //A missing field and an empty one are encoded alike
+    int diff = compareNull(inClusterId, o.inClusterId);
+    if (diff == 0) {
+      diff = compareNull(canonicalContextPath, o.canonicalContextPath);
+    }
+    return diff == 0 ? compareNull(virtualHost, o.virtualHost) : diff;
+  }
+
+  private byte[] getBinaryBytes() {
+    return legacyEncoded ? encode() : getBytes();
+  }
+
+  private static int compareNull(String left, String right) {
+    return (left == null ? 0 : 1) - (right == null ? 0 : 1);
+  }
+
+  private static byte[] toUtf8(String string) {
+    return string == null ? new byte[0] : StringUtils.getBytesUtf8(string);
+  }
+
+  /**
+   * The canonical context path and virtual host of a session manager with their encoded bytes, computed once and
+   * shared by all ids created for it.
+   */
+  public static final class Context {
+
+    private final String canonicalContextPath;
+    private final String virtualHost;
+    private final byte[] contextPathBytes;
+    private final byte[] virtualHostBytes;
+
+    public Context(String canonicalContextPath, String virtualHost) {
+      this.canonicalContextPath = canonicalContextPath;
+      this.virtualHost = virtualHost;
+      this.contextPathBytes = toUtf8(canonicalContextPath);
+      this.virtualHostBytes = toUtf8(virtualHost);
+    }
+
+    public String getCanonicalContextPath() {
+      return canonicalContextPath;
+    }
+
+    public String getVirtualHost() {
+      return virtualHost;
     }
   }
 }
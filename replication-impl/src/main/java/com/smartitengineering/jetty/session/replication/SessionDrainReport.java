@@ -0,0 +1,84 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+/**
+ * Outcome of writing the unsaved sessions of a stopping session manager.
+ *
+ * @author imyousuf
+ */
+public class SessionDrainReport {
+
+  private final int candidates;
+  private final int written;
+  private final int touched;
+  private final int failed;
+  private final long elapsedMillis;
+
+  public SessionDrainReport(int candidates, int written, int touched, int failed, long elapsedMillis) {
+    this.candidates = candidates;
+    this.written = written;
+    this.touched = touched;
+    this.failed = failed;
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  /**
+   * Sessions that had changes or accesses not yet written when the drain started
+   */
+  public int getCandidates() {
+    return candidates;
+  }
+
+  /**
+   * Sessions written in full
+   */
+  public int getWritten() {
+    return written;
+  }
+
+  /**
+   * Sessions of which only the access fields had to be written
+   */
+  public int getTouched() {
+    return touched;
+  }
+
+  public int getFailed() {
+    return failed;
+  }
+
+  /**
+   * Sessions not written because the deadline passed before their turn
+   */
+  public int getDropped() {
+    return candidates - written - touched - failed;
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "SessionDrainReport{" + "candidates=" + candidates + ",written=" + written + ",touched=" + touched +
+        ",failed=" + failed + ",dropped=" + getDropped() + ",elapsedMillis=" + elapsedMillis + '}';
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import java.util.List;
+
+/**
+ * Index of session data ids by expiry time bucket, split into a fixed number of shards so that scavenging can be
+ * divided among nodes. An entry is recorded whenever a session is written with an expiry time in a new bucket;
+ * entries of older buckets are not removed eagerly, so the scavenger has to verify the session is really expired
+ * before reclaiming it.
+ *
+ * @author imyousuf
+ */
+public interface SessionExpiryIndex {
+
+  int getShardCount();
+
+  /**
+   * Record the current expiry time of the session, unless it falls in the bucket already recorded for it
+   */
+  void record(SessionData data);
+
+  /**
+   * Retrieve up to limit entries of the shard whose whole bucket lies before the given time
+   */
+  List<Entry> findExpired(int shard, long expiredBefore, int limit);
+
+  /**
+   * Remove the entries, e.g. once their sessions are reclaimed
+   * @throws IllegalStateException if the entries could not be removed
+   */
+  void remove(List<Entry> entries);
+
+  public static class Entry {
+
+    private final int shard;
+    private final long bucket;
+    private final SessionDataId id;
+
+    public Entry(int shard, long bucket, SessionDataId id) {
+      this.shard = shard;
+      this.bucket = bucket;
+      this.id = id;
+    }
+
+    public int getShard() {
+      return shard;
+    }
+
+    public long getBucket() {
+      return bucket;
+    }
+
+    public SessionDataId getId() {
+      return id;
+    }
+
+    @Override
+    public String toString() {
+      return "Entry{" + "shard=" + shard + ",bucket=" + bucket + ",id=" + id + '}';
+    }
+  }
+}
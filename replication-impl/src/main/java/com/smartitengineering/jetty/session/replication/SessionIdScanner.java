@@ -0,0 +1,39 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+/**
+ * Lists the cluster ids known to the backend by their keys only, without loading the rows.
+ *
+ * @author imyousuf
+ */
+public interface SessionIdScanner {
+
+  /**
+   * Cluster ids of the persisted session ids
+   */
+  SessionIdStream scanSessionIds(int caching);
+
+  /**
+   * Cluster ids of the persisted session data, for when session ids are not persisted on their own. An id is returned
+   * once per context it has session data in.
+   */
+  SessionIdStream scanSessionDataIds(int caching);
+}
@@ -0,0 +1,54 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import java.util.Collection;
+
+/**
+ * Tells the other nodes of a cluster that sessions were written or deleted, so that they drop their cached copies
+ * instead of waiting for the save interval to pass. Implementations may deliver notifications in batches and with a
+ * delay, but must not deliver a node its own notifications.
+ *
+ * @author imyousuf
+ */
+public interface SessionInvalidationBus {
+
+  /**
+   * Whether the bus delivers notifications at all, a configured but disabled bus does not
+   */
+  boolean isActive();
+
+  /**
+   * Announce that a session was changed by the given node
+   */
+  void publish(String originNode, SessionDataId id);
+
+  /**
+   * Receive the notifications published by nodes other than the given one
+   */
+  void subscribe(String node, Listener listener);
+
+  void unsubscribe(Listener listener);
+
+  public static interface Listener {
+
+    void invalidate(Collection<SessionDataId> ids);
+  }
+}
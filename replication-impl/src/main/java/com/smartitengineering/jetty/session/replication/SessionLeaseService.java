@@ -0,0 +1,44 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+/**
+ * Transfers the ownership lease of a session between nodes atomically, so that of several nodes taking over a session
+ * at the same time only one succeeds.
+ *
+ * @author imyousuf
+ */
+public interface SessionLeaseService {
+
+  /**
+   * Make the node the owner of the session until the given time, provided the lease of the previous owner has ended
+   * and the persisted lease is still the one the caller has seen.
+   * @param data Session data as loaded; its last node and lease expiry are the expected persisted values
+   * @return true if the lease was taken over, false if the previous owner still holds it or the persisted lease
+   *         changed in the mean time
+   */
+  boolean takeOver(SessionData data, String node, long leaseExpiry);
+
+  /**
+   * Extend the lease of the node until the given time, provided the node is still the persisted owner of the session
+   * @return true if the lease was extended, false if another node took the session over
+   */
+  boolean renew(SessionData data, String node, long leaseExpiry);
+}
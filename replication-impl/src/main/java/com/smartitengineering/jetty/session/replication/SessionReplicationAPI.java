@@ -21,6 +21,8 @@ package com.smartitengineering.jetty.session.replication;
 
 import com.smartitengineering.dao.common.CommonReadDao;
 import com.smartitengineering.dao.common.CommonWriteDao;
+import com.smartitengineering.jetty.session.replication.metrics.MetricRegistry;
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
 import com.smartitengineering.util.bean.BeanFactoryRegistrar;
 import com.smartitengineering.util.bean.annotations.Aggregator;
 import com.smartitengineering.util.bean.annotations.InjectableField;
@@ -65,6 +67,9 @@ public class SessionReplicationAPI {
         }
       }
       BeanFactoryRegistrar.aggregate(api);
+      if (api.metricRegistry != null) {
+        Metrics.setRegistry(api.metricRegistry);
+      }
     }
   }
   @InjectableField(beanName = "dataReader")
@@ -79,6 +84,26 @@ public class SessionReplicationAPI {
   private Cache sessionCache;
   @InjectableField(beanName = "sessionIdCache")
   private Cache sessionIdCache;
+  @InjectableField(beanName = "dataScanner")
+  private SessionDataScanner dataScanner;
+  @InjectableField(beanName = "expiryIndex")
+  private SessionExpiryIndex expiryIndex;
+  @InjectableField(beanName = "idScanner")
+  private SessionIdScanner idScanner;
+  @InjectableField(beanName = "leaseService")
+  private SessionLeaseService leaseService;
+  @InjectableField(beanName = "invalidationBus")
+  private SessionInvalidationBus invalidationBus;
+  @InjectableField(beanName = "touchWriter")
+  private SessionTouchWriter touchWriter;
+  @InjectableField(beanName = "expiredSessionDeleter")
+  private ExpiredSessionDeleter expiredSessionDeleter;
+  @InjectableField(beanName = "dataCreator")
+  private SessionDataCreator dataCreator;
+  @InjectableField(beanName = "sessionDataSerializer")
+  private SessionDataSerializer sessionDataSerializer;
+  @InjectableField(beanName = "metricRegistry")
+  private MetricRegistry metricRegistry;
 
   public Cache getSessionCache() {
     return sessionCache;
@@ -103,4 +128,44 @@ public class SessionReplicationAPI {
   public CommonWriteDao<SessionId> getIdWriter() {
     return idWriter;
   }
+
+  public SessionDataScanner getDataScanner() {
+    return dataScanner;
+  }
+
+  public SessionExpiryIndex getExpiryIndex() {
+    return expiryIndex;
+  }
+
+  public SessionIdScanner getIdScanner() {
+    return idScanner;
+  }
+
+  public SessionLeaseService getLeaseService() {
+    return leaseService;
+  }
+
+  public SessionTouchWriter getTouchWriter() {
+    return touchWriter;
+  }
+
+  public ExpiredSessionDeleter getExpiredSessionDeleter() {
+    return expiredSessionDeleter;
+  }
+
+  public SessionDataCreator getDataCreator() {
+    return dataCreator;
+  }
+
+  public SessionDataSerializer getSessionDataSerializer() {
+    return sessionDataSerializer;
+  }
+
+  public SessionInvalidationBus getInvalidationBus() {
+    return invalidationBus;
+  }
+
+  public MetricRegistry getMetricRegistry() {
+    return Metrics.getRegistry();
+  }
 }
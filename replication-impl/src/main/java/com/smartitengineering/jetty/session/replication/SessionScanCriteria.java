@@ -0,0 +1,153 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+/**
+ * Criteria for scanning persisted session data. Unset (null or non positive) values do not restrict the scan.
+ *
+ * @author imyousuf
+ */
+public class SessionScanCriteria {
+
+  public static final int DEFAULT_CACHING = 100;
+  private String inClusterId;
+  private String canonicalContextPath;
+  private String virtualHost;
+  private String lastNode;
+  private long expiresAfter;
+  private SessionDataId startAfter;
+  private int pageSize;
+  private int caching = DEFAULT_CACHING;
+
+  public String getInClusterId() {
+    return inClusterId;
+  }
+
+  /**
+   * Restrict the scan to the session data of a cluster id in any context
+   */
+  public void setInClusterId(String inClusterId) {
+    this.inClusterId = inClusterId;
+  }
+
+  public String getCanonicalContextPath() {
+    return canonicalContextPath;
+  }
+
+  public void setCanonicalContextPath(String canonicalContextPath) {
+    this.canonicalContextPath = canonicalContextPath;
+  }
+
+  public String getVirtualHost() {
+    return virtualHost;
+  }
+
+  public void setVirtualHost(String virtualHost) {
+    this.virtualHost = virtualHost;
+  }
+
+  public String getLastNode() {
+    return lastNode;
+  }
+
+  /**
+   * Restrict the scan to sessions last used on the given worker
+   */
+  public void setLastNode(String lastNode) {
+    this.lastNode = lastNode;
+  }
+
+  public long getExpiresAfter() {
+    return expiresAfter;
+  }
+
+  /**
+   * Restrict the scan to sessions expiring after the given time, non positive for sessions with any expiry time
+   */
+  public void setExpiresAfter(long expiresAfter) {
+    this.expiresAfter = expiresAfter;
+  }
+
+  public SessionDataId getStartAfter() {
+    return startAfter;
+  }
+
+  /**
+   * Resume a paged scan after the last id returned by the previous page
+   */
+  public void setStartAfter(SessionDataId startAfter) {
+    this.startAfter = startAfter;
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * Maximum number of sessions returned by the scan, non positive for no limit
+   */
+  public void setPageSize(int pageSize) {
+    this.pageSize = pageSize;
+  }
+
+  public int getCaching() {
+    return caching;
+  }
+
+  /**
+   * Number of rows fetched from the backend per round trip
+   */
+  public void setCaching(int caching) {
+    this.caching = caching;
+  }
+
+  /**
+   * Check the criteria against an already loaded session for backends that can not filter completely on their own
+   */
+  public boolean matches(SessionData data) {
+    if (data == null) {
+      return false;
+    }
+    final SessionDataId id = data.getId();
+    if (inClusterId != null && !inClusterId.equals(id.getInClusterId())) {
+      return false;
+    }
+    if (canonicalContextPath != null && !canonicalContextPath.equals(id.getCanonicalContextPath())) {
+      return false;
+    }
+    if (virtualHost != null && !virtualHost.equals(id.getVirtualHost())) {
+      return false;
+    }
+    if (lastNode != null && !lastNode.equals(data.getLastNode())) {
+      return false;
+    }
+    if (expiresAfter > 0 && data.getExpiryTime() <= expiresAfter) {
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "SessionScanCriteria{" + "inClusterId=" + inClusterId + ",canonicalContextPath=" + canonicalContextPath +
+        ",virtualHost=" + virtualHost + ",lastNode=" + lastNode + ",expiresAfter=" + expiresAfter + ",startAfter=" +
+        startAfter + ",pageSize=" + pageSize + ",caching=" + caching + '}';
+  }
+}
@@ -0,0 +1,350 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import com.smartitengineering.jetty.session.replication.metrics.Gauge;
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sf.ehcache.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reclaims expired sessions found through the {@link SessionExpiryIndex}. Each node only scavenges the index shards
+ * assigned to it, i.e. shards whose number modulo the node count equals the node index. Expired sessions owned by
+ * this node are invalidated through their manager so that session listeners are notified; the rest are deleted in
+ * batches.
+ *
+ * @author imyousuf
+ */
+public class SessionScavenger implements Runnable {
+
+  public static final int DEFAULT_BATCH_SIZE = 100;
+  protected final Logger logger = LoggerFactory.getLogger(getClass());
+  private final SmartSessionIdManager idManager;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private int nodeCount = 1;
+  private int nodeIndex = 0;
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong entriesScanned = new AtomicLong();
+  private final AtomicLong staleEntries = new AtomicLong();
+  private final AtomicLong rowsReclaimed = new AtomicLong();
+  private final AtomicLong localInvalidations = new AtomicLong();
+  private final AtomicLong scanNanos = new AtomicLong();
+  private volatile long lastRunNanos;
+  private volatile boolean metricsRegistered;
+
+  public SessionScavenger(SmartSessionIdManager idManager) {
+    this.idManager = idManager;
+  }
+
+  @Override
+  public void run() {
+    final SessionExpiryIndex index = SessionReplicationAPI.getInstance().getExpiryIndex();
+    if (index == null) {
+      logger.warn("No expiry index available, nothing to scavenge");
+      return;
+    }
+    final long start = System.nanoTime();
+    try {
+      final long now = System.currentTimeMillis();
+      for (int shard = 0; shard < index.getShardCount(); ++shard) {
+        if (shard % nodeCount == nodeIndex) {
+          scavengeShard(index, shard, now);
+        }
+      }
+    }
+    catch (Exception ex) {
+      logger.error("Could not scavenge expired sessions!", ex);
+    }
+    finally {
+      lastRunNanos = System.nanoTime() - start;
+      scanNanos.addAndGet(lastRunNanos);
+      runs.incrementAndGet();
+    }
+  }
+
+  protected void scavengeShard(SessionExpiryIndex index, int shard, long now) {
+    final SessionReplicationAPI api = SessionReplicationAPI.getInstance();
+    List<SessionExpiryIndex.Entry> entries;
+    SessionDataId previousFirst = null;
+    while (!(entries = index.findExpired(shard, now, batchSize)).isEmpty()) {
+      final SessionDataId first = entries.get(0).getId();
+      if (first.equals(previousFirst)) {
+        //The entries of the last batch are still there, scanning again would never end
+        logger.warn("Expiry index shard " + shard + " made no progress, resuming on the next run");
+        break;
+      }
+      previousFirst = first;
+      entriesScanned.addAndGet(entries.size());
+      final List<SessionDataId> ids = new ArrayList<SessionDataId>(entries.size());
+      for (SessionExpiryIndex.Entry entry : entries) {
+        if (!ids.contains(entry.getId())) {
+          ids.add(entry.getId());
+        }
+      }
+      final Map<SessionDataId, SessionData> stored = read(ids);
+      final Map<SessionDataId, SessionData> expired = new LinkedHashMap<SessionDataId, SessionData>();
+      for (SessionDataId id : ids) {
+        final SessionData data = stored.get(id);
+        if (data == null || data.getExpiryTime() > now) {
+          //Already deleted or extended since; a newer index entry exists in the latter case
+          staleEntries.incrementAndGet();
+          continue;
+        }
+        if (idManager.expireLocalSession(id)) {
+          localInvalidations.incrementAndGet();
+          rowsReclaimed.incrementAndGet();
+        }
+        else {
+          expired.put(id, data);
+        }
+      }
+      if (!expired.isEmpty()) {
+        delete(new ArrayList<SessionData>(expired.values()));
+      }
+      index.remove(entries);
+      if (entries.size() < batchSize) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Read the sessions of a batch in one round trip when a deleter is available, else one by one through the reader
+   */
+  protected Map<SessionDataId, SessionData> read(List<SessionDataId> ids) {
+    final SessionReplicationAPI api = SessionReplicationAPI.getInstance();
+    final ExpiredSessionDeleter deleter = api.getExpiredSessionDeleter();
+    final Map<SessionDataId, SessionData> stored = new HashMap<SessionDataId, SessionData>();
+    if (deleter != null) {
+      for (SessionData data : deleter.getByIds(ids)) {
+        stored.put(data.getId(), data);
+      }
+    }
+    else {
+      for (SessionDataId id : ids) {
+        final SessionData data = api.getDataReader().getById(id);
+        if (data != null) {
+          stored.put(id, data);
+        }
+      }
+    }
+    return stored;
+  }
+
+  /**
+   * Delete the expired sessions, each only if no node extended it since it was read when a deleter is available,
+   * and tell other nodes to drop their cached copies.
+   */
+  protected void delete(List<SessionData> expired) {
+    final SessionReplicationAPI api = SessionReplicationAPI.getInstance();
+    final ExpiredSessionDeleter deleter = api.getExpiredSessionDeleter();
+    final List<SessionData> deleted;
+    if (deleter == null) {
+      api.getDataWriter().delete(expired.toArray(new SessionData[expired.size()]));
+      deleted = expired;
+    }
+    else {
+      deleted = new ArrayList<SessionData>(expired.size());
+      for (SessionData data : expired) {
+        if (deleter.deleteIfExpired(data)) {
+          deleted.add(data);
+        }
+        else {
+          staleEntries.incrementAndGet();
+        }
+      }
+    }
+    rowsReclaimed.addAndGet(deleted.size());
+    final List<SessionId> ids = new ArrayList<SessionId>(deleted.size());
+    final Cache sessionIds = api.getSessionIdCache();
+    for (SessionData data : deleted) {
+      SessionId sessionId = new SessionId();
+      sessionId.setId(data.getId().getInClusterId());
+      ids.add(sessionId);
+      sessionIds.remove(sessionId.getId());
+    }
+    if (idManager.isPersistSessionIds() && !ids.isEmpty()) {
+      try {
+        api.getIdWriter().delete(ids.toArray(new SessionId[ids.size()]));
+      }
+      catch (Exception ex) {
+        logger.warn("Could not delete session ids of expired sessions", ex);
+      }
+    }
+    publishDeleted(deleted);
+    if (logger.isInfoEnabled()) {
+      logger.info("Reclaimed " + deleted.size() + " expired sessions");
+    }
+  }
+
+  protected void publishDeleted(List<SessionData> deleted) {
+    final SessionInvalidationBus bus = SessionReplicationAPI.getInstance().getInvalidationBus();
+    if (bus == null || !bus.isActive()) {
+      return;
+    }
+    for (SessionData data : deleted) {
+      try {
+        bus.publish(idManager.getWorkerName(), data.getId());
+        Metrics.counter(Metrics.INVALIDATION_PUBLISHED).inc();
+      }
+      catch (Exception ex) {
+        logger.warn("Could not publish deletion of session " + data.getId(), ex);
+      }
+    }
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+  }
+
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  public int getNodeIndex() {
+    return nodeIndex;
+  }
+
+  /**
+   * Assign the shards of this node; every node of the cluster must use the same node count and a distinct index
+   */
+  public void setNodeAssignment(int nodeIndex, int nodeCount) {
+    if (nodeCount <= 0 || nodeIndex < 0 || nodeIndex >= nodeCount) {
+      throw new IllegalArgumentException("Invalid node assignment " + nodeIndex + "/" + nodeCount);
+    }
+    this.nodeIndex = nodeIndex;
+    this.nodeCount = nodeCount;
+  }
+
+  /**
+   * Register the counters of this scavenger as gauges prefixed with {@link Metrics#SCAVENGER_PREFIX}
+   */
+  public void registerMetrics() {
+    metricsRegistered = true;
+    Metrics.getRegistry().register(Metrics.SCAVENGER_PREFIX + "runs", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getRuns();
+      }
+    });
+
+    Metrics.getRegistry().register(Metrics.SCAVENGER_PREFIX + "entriesScanned", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getEntriesScanned();
+      }
+    });
+
+    Metrics.getRegistry().register(Metrics.SCAVENGER_PREFIX + "staleEntries", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getStaleEntries();
+      }
+    });
+
+    Metrics.getRegistry().register(Metrics.SCAVENGER_PREFIX + "rowsReclaimed", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getRowsReclaimed();
+      }
+    });
+
+    Metrics.getRegistry().register(Metrics.SCAVENGER_PREFIX + "localInvalidations", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getLocalInvalidations();
+      }
+    });
+
+    Metrics.getRegistry().register(Metrics.SCAVENGER_PREFIX + "scanNanos", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getScanNanos();
+      }
+    });
+
+    Metrics.getRegistry().register(Metrics.SCAVENGER_PREFIX + "lastRunNanos", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getLastRunNanos();
+      }
+    });
+  }
+
+  public void unregisterMetrics() {
+    if (!metricsRegistered) {
+      return;
+    }
+    metricsRegistered = false;
+    Metrics.getRegistry().unregister(Metrics.SCAVENGER_PREFIX + "runs");
+    Metrics.getRegistry().unregister(Metrics.SCAVENGER_PREFIX + "entriesScanned");
+    Metrics.getRegistry().unregister(Metrics.SCAVENGER_PREFIX + "staleEntries");
+    Metrics.getRegistry().unregister(Metrics.SCAVENGER_PREFIX + "rowsReclaimed");
+    Metrics.getRegistry().unregister(Metrics.SCAVENGER_PREFIX + "localInvalidations");
+    Metrics.getRegistry().unregister(Metrics.SCAVENGER_PREFIX + "scanNanos");
+    Metrics.getRegistry().unregister(Metrics.SCAVENGER_PREFIX + "lastRunNanos");
+  }
+
+  public long getRuns() {
+    return runs.get();
+  }
+
+  public long getEntriesScanned() {
+    return entriesScanned.get();
+  }
+
+  public long getStaleEntries() {
+    return staleEntries.get();
+  }
+
+  public long getRowsReclaimed() {
+    return rowsReclaimed.get();
+  }
+
+  public long getLocalInvalidations() {
+    return localInvalidations.get();
+  }
+
+  public long getScanNanos() {
+    return scanNanos.get();
+  }
+
+  public long getLastRunNanos() {
+    return lastRunNanos;
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+/**
+ * Writes only the access related fields of a session, for saves where no attribute changed since the last write.
+ *
+ * @author imyousuf
+ */
+public interface SessionTouchWriter {
+
+  /**
+   * Persist the access times, expiry time, lease and last node of the session.
+   * @return true if written, false if the session has to be written in full instead, e.g. because its row was
+   * changed by another node
+   * @throws IllegalStateException if the write itself failed
+   */
+  boolean touch(SessionData data);
+}
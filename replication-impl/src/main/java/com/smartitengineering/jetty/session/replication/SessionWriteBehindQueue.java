@@ -0,0 +1,478 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import com.smartitengineering.dao.common.CommonWriteDao;
+import com.smartitengineering.jetty.session.replication.metrics.Gauge;
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write behind queue for dirty sessions. Request threads only enqueue the session data while a background flusher
+ * writes it to the data writer. Repeated writes for the same session data id before a flush are coalesced into a
+ * single write of the latest state. Each enqueued session is written no later than the max staleness after it was
+ * first enqueued, unless the write itself fails.
+ *
+ * @author imyousuf
+ */
+public class SessionWriteBehindQueue {
+
+  public static final int DEFAULT_CAPACITY = 10000;
+  public static final long DEFAULT_MAX_STALENESS = 1000;
+  public static final int DEFAULT_BATCH_SIZE = 100;
+  protected final Logger logger = LoggerFactory.getLogger(getClass());
+  private final CommonWriteDao<SessionData> writer;
+  private final ConcurrentMap<SessionDataId, Pending> pending = new ConcurrentHashMap<SessionDataId, Pending>();
+  private final BlockingQueue<SessionDataId> order;
+  private final Set<SessionDataId> inFlight = new HashSet<SessionDataId>();
+  private final long maxStaleness;
+  private final int batchSize;
+  private final AtomicLong enqueued = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong flushed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private volatile long lastFlushLag;
+  private volatile long maxFlushLag;
+  private ScheduledExecutorService flusher;
+  private volatile SessionTouchWriter touchWriter;
+  private volatile String metricsPrefix;
+
+  public SessionWriteBehindQueue(CommonWriteDao<SessionData> writer) {
+    this(writer, DEFAULT_CAPACITY, DEFAULT_MAX_STALENESS, DEFAULT_BATCH_SIZE);
+  }
+
+  public SessionWriteBehindQueue(CommonWriteDao<SessionData> writer, int capacity, long maxStaleness, int batchSize) {
+    if (writer == null) {
+      throw new IllegalArgumentException("Null writer");
+    }
+    this.writer = writer;
+    this.order = new ArrayBlockingQueue<SessionDataId>(capacity > 0 ? capacity : DEFAULT_CAPACITY);
+    this.maxStaleness = maxStaleness > 0 ? maxStaleness : DEFAULT_MAX_STALENESS;
+    this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+  }
+
+  /**
+   * Writer used for sessions whose attributes did not change since their last write, none to always write in full
+   */
+  public void setTouchWriter(SessionTouchWriter touchWriter) {
+    this.touchWriter = touchWriter;
+  }
+
+  public synchronized void start() {
+    if (flusher != null) {
+      return;
+    }
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "session-write-behind");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    final long period = Math.max(10, maxStaleness / 2);
+    flusher.scheduleWithFixedDelay(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          flush();
+        }
+        catch (Exception ex) {
+          logger.error("Could not flush session write behind queue!", ex);
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop the background flusher and write whatever is still pending from the calling thread.
+   */
+  public void stop() {
+    final ScheduledExecutorService service;
+    synchronized (this) {
+      service = flusher;
+      flusher = null;
+    }
+    if (service != null) {
+      service.shutdown();
+      try {
+        service.awaitTermination(maxStaleness, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Enqueue the session data for writing.
+   * @return false if the queue is full and the caller should write synchronously
+   */
+  public boolean offer(SessionData data) {
+    final SessionDataId id = data.getId();
+    while (true) {
+      Pending existing = pending.get(id);
+      if (existing != null) {
+        if (pending.replace(id, existing, new Pending(data, existing.enqueuedAt))) {
+          coalesced.incrementAndGet();
+          return true;
+        }
+      }
+      else if (pending.putIfAbsent(id, new Pending(data, System.currentTimeMillis())) == null) {
+        if (order.offer(id)) {
+          enqueued.incrementAndGet();
+          return true;
+        }
+        pending.remove(id);
+        rejected.incrementAndGet();
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Retrieve the latest session data waiting to be written, if any.
+   */
+  public SessionData getPending(SessionDataId id) {
+    Pending val = pending.get(id);
+    return val == null ? null : val.data;
+  }
+
+  /**
+   * Drop any pending write for the id, e.g. when the session is being deleted. If the flusher is already writing the
+   * session this waits for that write to finish, so that it can not recreate the row after the caller deleted it. The
+   * flusher takes no session locks while a write is in flight, so the caller may hold the session's lock.
+   */
+  public void cancel(SessionDataId id) {
+    synchronized (inFlight) {
+      if (pending.remove(id) != null) {
+        order.remove(id);
+      }
+      try {
+        while (inFlight.contains(id)) {
+          inFlight.wait();
+        }
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public void flush() {
+    List<SessionDataId> ids = new ArrayList<SessionDataId>(batchSize);
+    while (order.drainTo(ids, batchSize) > 0) {
+      List<SessionData> batch = new ArrayList<SessionData>(ids.size());
+      long now = System.currentTimeMillis();
+      long lag = 0;
+      synchronized (inFlight) {
+        for (Iterator<SessionDataId> iterator = ids.iterator(); iterator.hasNext();) {
+          final SessionDataId id = iterator.next();
+          Pending val = pending.remove(id);
+          if (val != null) {
+            inFlight.add(id);
+            batch.add(val.data);
+            lag = Math.max(lag, now - val.enqueuedAt);
+          }
+          else {
+            iterator.remove();
+          }
+        }
+      }
+      if (batch.isEmpty()) {
+        continue;
+      }
+      final List<SessionData> stale = new ArrayList<SessionData>();
+      final List<SessionData> merged = new ArrayList<SessionData>();
+      try {
+        write(batch, stale, merged);
+      }
+      finally {
+        synchronized (inFlight) {
+          inFlight.removeAll(ids);
+          inFlight.notifyAll();
+        }
+        ids.clear();
+      }
+      //Only once the batch is no longer in flight, as the callbacks may take the lock of a session whose holder is
+      //waiting in cancel for this batch
+      for (SessionData data : stale) {
+        touchRejected(data);
+      }
+      for (SessionData data : merged) {
+        attributesMerged(data);
+      }
+      lastFlushLag = lag;
+      if (lag > maxFlushLag) {
+        maxFlushLag = lag;
+      }
+    }
+  }
+
+  /**
+   * Write the batch, collecting the sessions whose touch was rejected and those whose attributes were merged for the
+   * callbacks to be run after the write
+   */
+  protected void write(List<SessionData> batch, List<SessionData> stale, List<SessionData> merged) {
+    for (Iterator<SessionData> iterator = batch.iterator(); iterator.hasNext();) {
+      final SessionData data = iterator.next();
+      switch (SmartSessionManager.touchSession(touchWriter, data)) {
+        case TOUCHED:
+          iterator.remove();
+          flushed.incrementAndGet();
+          indexExpiry(data);
+          break;
+        case REJECTED:
+          iterator.remove();
+          stale.add(data);
+          break;
+        case FAILED:
+          iterator.remove();
+          failed.incrementAndGet();
+          break;
+        default:
+          break;
+      }
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    Metrics.counter(Metrics.WRITE_FULL).add(batch.size());
+    try {
+      final long start = System.nanoTime();
+      writer.update(batch.toArray(new SessionData[batch.size()]));
+      Metrics.time(Metrics.DATA_UPDATE_BATCH, start);
+      flushed.addAndGet(batch.size());
+      for (SessionData data : batch) {
+        written(data, merged);
+      }
+    }
+    catch (Exception ex) {
+      logger.warn("Batch update failed, falling back to individual updates", ex);
+      for (SessionData data : batch) {
+        //Changes drained by the failed batch have to be written again
+        data.markAllAttributesChanged();
+        try {
+          final long start = System.nanoTime();
+          writer.update(data);
+          Metrics.time(Metrics.DATA_UPDATE, start);
+          flushed.incrementAndGet();
+          written(data, merged);
+        }
+        catch (Exception e) {
+          data.markAllAttributesChanged();
+          failed.incrementAndGet();
+          logger.error("Could not write session " + data.getId(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Called instead of a full write when the session's row was last written by another node. The pending copy is
+   * stale, so it is dropped rather than written over the other node's changes.
+   */
+  protected void touchRejected(SessionData data) {
+    logger.info("Dropped stale write of session " + data.getId() + " written by another node");
+  }
+
+  /**
+   * Called after a write took attributes over from a version concurrently written by another node, which makes the
+   * attributes of the servlet session holding the data stale.
+   */
+  protected void attributesMerged(SessionData data) {
+    logger.info("Merged attributes of session " + data.getId() + " written concurrently by another node");
+  }
+
+  protected void written(SessionData data, List<SessionData> merged) {
+    if (data.drainAttributesMerged()) {
+      merged.add(data);
+    }
+    indexExpiry(data);
+    final SessionInvalidationBus bus = SessionReplicationAPI.getInstance().getInvalidationBus();
+    if (bus != null && bus.isActive()) {
+      try {
+        bus.publish(data.getLastNode(), data.getId());
+        Metrics.counter(Metrics.INVALIDATION_PUBLISHED).inc();
+      }
+      catch (Exception ex) {
+        logger.warn("Could not publish session change", ex);
+      }
+    }
+  }
+
+  protected void indexExpiry(SessionData data) {
+    final SessionExpiryIndex index = SessionReplicationAPI.getInstance().getExpiryIndex();
+    if (index != null) {
+      try {
+        index.record(data);
+      }
+      catch (Exception ex) {
+        logger.warn("Could not index session expiry", ex);
+      }
+    }
+  }
+
+  public int getQueueDepth() {
+    return pending.size();
+  }
+
+  public long getMaxStaleness() {
+    return maxStaleness;
+  }
+
+  public long getLastFlushLag() {
+    return lastFlushLag;
+  }
+
+  public long getMaxFlushLag() {
+    return maxFlushLag;
+  }
+
+  /**
+   * Expose the queue depth, flush lags and counts as gauges named writeBehind.<name>.*
+   */
+  public void registerMetrics(String name) {
+    final String prefix = Metrics.WRITE_BEHIND_PREFIX + name + ".";
+    metricsPrefix = prefix;
+    Metrics.getRegistry().register(prefix + "queueDepth", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getQueueDepth();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "lastFlushLagMs", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getLastFlushLag();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "maxFlushLagMs", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getMaxFlushLag();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "enqueued", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getEnqueuedCount();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "coalesced", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getCoalescedCount();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "rejected", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getRejectedCount();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "flushed", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getFlushedCount();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "failed", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getFailedCount();
+      }
+    });
+  }
+
+  public void unregisterMetrics() {
+    final String prefix = metricsPrefix;
+    if (prefix == null) {
+      return;
+    }
+    metricsPrefix = null;
+    Metrics.getRegistry().unregister(prefix + "queueDepth");
+    Metrics.getRegistry().unregister(prefix + "lastFlushLagMs");
+    Metrics.getRegistry().unregister(prefix + "maxFlushLagMs");
+    Metrics.getRegistry().unregister(prefix + "enqueued");
+    Metrics.getRegistry().unregister(prefix + "coalesced");
+    Metrics.getRegistry().unregister(prefix + "rejected");
+    Metrics.getRegistry().unregister(prefix + "flushed");
+    Metrics.getRegistry().unregister(prefix + "failed");
+  }
+
+  public long getEnqueuedCount() {
+    return enqueued.get();
+  }
+
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  public long getFlushedCount() {
+    return flushed.get();
+  }
+
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  private static class Pending {
+
+    private final SessionData data;
+    private final long enqueuedAt;
+
+    Pending(SessionData data, long enqueuedAt) {
+      this.data = data;
+      this.enqueuedAt = enqueuedAt;
+    }
+  }
+}
@@ -20,9 +20,20 @@
 package com.smartitengineering.jetty.session.replication;
 
 import com.smartitengineering.jetty.session.replication.SmartSessionManager.Session;
+import com.smartitengineering.jetty.session.replication.metrics.Gauge;
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
+import com.smartitengineering.jetty.session.replication.metrics.MetricsMBean;
+import java.lang.management.ManagementFactory;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.Random;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 import net.sf.ehcache.Cache;
@@ -34,6 +45,7 @@ import org.eclipse.jetty.server.SessionManager;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.session.AbstractSessionIdManager;
 import org.eclipse.jetty.server.session.SessionHandler;
+import org.eclipse.jetty.util.component.LifeCycle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,9 +55,24 @@ import org.slf4j.LoggerFactory;
  */
 public class SmartSessionIdManager extends AbstractSessionIdManager {
 
+  public static final String METRICS_OBJECT_NAME = "com.smartitengineering.jetty.session.replication:type=Metrics";
+  private static final int ID_SCAN_CACHING = 1000;
   protected final Logger logger = LoggerFactory.getLogger(getClass());
   private final Server server;
-  private final ReentrantLock lock = new ReentrantLock();
+  protected final StripedLock locks = new StripedLock(StripedLock.DEFAULT_STRIPES, Metrics.SESSION_ID_MANAGER_LOCK);
+  private boolean exportMetrics = true;
+  private boolean persistSessionIds = true;
+  private long idFilterRebuildInterval = 0;
+  private long idFilterExpectedIds = 100000;
+  private double idFilterFalsePositiveRate = 0.01;
+  private volatile ConcurrentBloomFilter idFilter;
+  private volatile ConcurrentBloomFilter rebuildingIdFilter;
+  private ScheduledExecutorService idFilterService;
+  private final ThreadLocal<String> requestedClusterId = new ThreadLocal<String>();
+  private ObjectName metricsName;
+  private final SessionScavenger scavenger = new SessionScavenger(this);
+  private long scavengeInterval = 0;
+  private ScheduledExecutorService scavengerService;
 
   public SmartSessionIdManager(Server server, Random random) {
     super(random);
@@ -59,6 +86,262 @@ public class SmartSessionIdManager extends AbstractSessionIdManager {
   @Override
   protected void doStart() throws Exception {
     super.doStart();
+    final SessionReplicationAPI api = SessionReplicationAPI.getInstance();
+    for (LifeCycle lifeCycle : getPersistenceLifeCycles()) {
+      lifeCycle.start();
+    }
+    Metrics.registerCache("sessionCache", api.getSessionCache());
+    Metrics.registerCache("sessionIdCache", api.getSessionIdCache());
+    if (exportMetrics) {
+      registerMetricsMBean();
+    }
+    if (scavengeInterval > 0) {
+      scavengerService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "session-scavenger");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      scavenger.registerMetrics();
+      scavengerService.scheduleWithFixedDelay(scavenger, scavengeInterval, scavengeInterval, TimeUnit.SECONDS);
+    }
+    if (idFilterRebuildInterval > 0) {
+      Metrics.getRegistry().register(Metrics.ID_FILTER_SIZE, new Gauge() {
+
+        @Override
+        public long getValue() {
+          final ConcurrentBloomFilter filter = idFilter;
+          return filter == null ? 0 : filter.getInsertions();
+        }
+      });
+      idFilterService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "session-id-filter");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      idFilterService.scheduleWithFixedDelay(new Runnable() {
+
+        @Override
+        public void run() {
+          rebuildIdFilter();
+        }
+      }, 0, idFilterRebuildInterval, TimeUnit.SECONDS);
+    }
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    if (scavengerService != null) {
+      scavengerService.shutdownNow();
+      scavengerService = null;
+      scavenger.unregisterMetrics();
+    }
+    if (idFilterService != null) {
+      idFilterService.shutdownNow();
+      idFilterService = null;
+    }
+    idFilter = null;
+    unregisterMetricsMBean();
+    //Session managers are stopped and have written their sessions by now
+    for (LifeCycle lifeCycle : getPersistenceLifeCycles()) {
+      try {
+        lifeCycle.stop();
+      }
+      catch (Exception ex) {
+        logger.error("Could not stop " + lifeCycle, ex);
+      }
+    }
+    super.doStop();
+  }
+
+  /**
+   * DAOs with a life cycle of their own, e.g. those of local stores, which are started and stopped with this manager
+   */
+  protected Set<LifeCycle> getPersistenceLifeCycles() {
+    final SessionReplicationAPI api = SessionReplicationAPI.getInstance();
+    final Set<LifeCycle> lifeCycles = new LinkedHashSet<LifeCycle>();
+    for (Object dao : new Object[]{api.getDataReader(), api.getDataWriter(), api.getIdReader(), api.getIdWriter()}) {
+      if (dao instanceof LifeCycle) {
+        lifeCycles.add((LifeCycle) dao);
+      }
+    }
+    return lifeCycles;
+  }
+
+  protected void registerMetricsMBean() {
+    try {
+      final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+      if (!mBeanServer.isRegistered(name)) {
+        mBeanServer.registerMBean(new MetricsMBean(Metrics.getRegistry()), name);
+        metricsName = name;
+      }
+    }
+    catch (Exception ex) {
+      logger.warn("Could not export metrics to JMX", ex);
+    }
+  }
+
+  protected void unregisterMetricsMBean() {
+    if (metricsName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+    }
+    catch (Exception ex) {
+      logger.warn("Could not unregister metrics from JMX", ex);
+    }
+    metricsName = null;
+  }
+
+  /**
+   * Rebuild the filter of known cluster ids from a key only scan of the persisted ids. Ids added while the scan runs
+   * are added to both the current and the new filter.
+   */
+  public void rebuildIdFilter() {
+    final SessionIdScanner scanner = SessionReplicationAPI.getInstance().getIdScanner();
+    if (scanner == null) {
+      logger.warn("No session id scanner available to build the id filter from");
+      return;
+    }
+    final ConcurrentBloomFilter current = idFilter;
+    final long expected = Math.max(idFilterExpectedIds, current == null ? 0 : current.getInsertions() * 2);
+    final ConcurrentBloomFilter fresh = new ConcurrentBloomFilter(expected, idFilterFalsePositiveRate);
+    rebuildingIdFilter = fresh;
+    final long start = System.nanoTime();
+    try {
+      final SessionIdStream stream = persistSessionIds ? scanner.scanSessionIds(ID_SCAN_CACHING) : scanner.
+          scanSessionDataIds(ID_SCAN_CACHING);
+      try {
+        while (stream.hasNext()) {
+          fresh.put(stream.next());
+        }
+      }
+      finally {
+        stream.close();
+      }
+      idFilter = fresh;
+      if (logger.isInfoEnabled()) {
+        logger.info("Rebuilt session id filter with " + fresh.getInsertions() + " ids");
+      }
+    }
+    catch (Exception ex) {
+      logger.warn("Could not rebuild session id filter, keeping the previous one", ex);
+    }
+    finally {
+      rebuildingIdFilter = null;
+      Metrics.time(Metrics.ID_FILTER_REBUILD, start);
+    }
+  }
+
+  protected void rememberId(String clusterId) {
+    final ConcurrentBloomFilter filter = idFilter;
+    if (filter != null) {
+      filter.put(clusterId);
+    }
+    final ConcurrentBloomFilter rebuilding = rebuildingIdFilter;
+    if (rebuilding != null) {
+      rebuilding.put(clusterId);
+    }
+  }
+
+  public ConcurrentBloomFilter getIdFilter() {
+    return idFilter;
+  }
+
+  public long getIdFilterRebuildInterval() {
+    return idFilterRebuildInterval;
+  }
+
+  /**
+   * Interval in seconds between rebuilds of the node local filter of known cluster ids, non positive to disable it.
+   * While enabled an id not in the filter is reported as not in use without asking the backend, so ids created on
+   * other nodes since the last rebuild are not seen. Has to be set before the manager is started.
+   */
+  public void setIdFilterRebuildInterval(long idFilterRebuildInterval) {
+    this.idFilterRebuildInterval = idFilterRebuildInterval;
+  }
+
+  public long getIdFilterExpectedIds() {
+    return idFilterExpectedIds;
+  }
+
+  public void setIdFilterExpectedIds(long idFilterExpectedIds) {
+    this.idFilterExpectedIds = idFilterExpectedIds;
+  }
+
+  public double getIdFilterFalsePositiveRate() {
+    return idFilterFalsePositiveRate;
+  }
+
+  public void setIdFilterFalsePositiveRate(double idFilterFalsePositiveRate) {
+    this.idFilterFalsePositiveRate = idFilterFalsePositiveRate;
+  }
+
+  public boolean isPersistSessionIds() {
+    return persistSessionIds;
+  }
+
+  /**
+   * Whether session ids are written to their own table. When disabled creating a session only writes its session data
+   * and ids in use are looked up by reading the session data rows of the cluster id in the contexts of this server.
+   */
+  public void setPersistSessionIds(boolean persistSessionIds) {
+    this.persistSessionIds = persistSessionIds;
+  }
+
+  public boolean isExportMetrics() {
+    return exportMetrics;
+  }
+
+  /**
+   * Whether the replication metrics are registered in the platform MBean server on start
+   */
+  public void setExportMetrics(boolean exportMetrics) {
+    this.exportMetrics = exportMetrics;
+  }
+
+  public long getScavengeInterval() {
+    return scavengeInterval;
+  }
+
+  /**
+   * Interval in seconds between runs of the expired session scavenger, non positive to disable it. Has to be set
+   * before the manager is started.
+   */
+  public void setScavengeInterval(long scavengeInterval) {
+    this.scavengeInterval = scavengeInterval;
+  }
+
+  public SessionScavenger getScavenger() {
+    return scavenger;
+  }
+
+  /**
+   * Remember the id the request asked for while Jetty decides whether to reuse it, as only that id has to be confirmed
+   * in the store when the id filter does not know it
+   */
+  @Override
+  public String newSessionId(HttpServletRequest request, long created) {
+    final String requested = request == null ? null : request.getRequestedSessionId();
+    if (requested == null) {
+      return super.newSessionId(request, created);
+    }
+    requestedClusterId.set(getClusterId(requested));
+    try {
+      return super.newSessionId(request, created);
+    }
+    finally {
+      requestedClusterId.remove();
+    }
   }
 
   @Override
@@ -79,14 +362,63 @@ public class SmartSessionIdManager extends AbstractSessionIdManager {
     if (inUse) {
       return true; //optimisation - if this session is one we've been managing, we can check locally
     }
+    final ConcurrentBloomFilter filter = idFilter;
+    //The filter only knows the ids of its last rebuild and those created here since, while a requested id may belong
+    //to a session created on another node in the mean time, so it is read from the store
+    final boolean filtered = filter != null && !clusterId.equals(requestedClusterId.get());
+    if (filtered) {
+      if (!filter.mightContain(clusterId)) {
+        Metrics.counter(Metrics.ID_FILTER_NEGATIVE).inc();
+        return false;
+      }
+      Metrics.counter(Metrics.ID_FILTER_POSITIVE).inc();
+    }
     //otherwise, we need to go to the database to check
+    if (!persistSessionIds) {
+      inUse = isIdInSessionData(clusterId);
+    }
+    else {
+      final long start = System.nanoTime();
+      try {
+        inUse = SessionReplicationAPI.getInstance().getIdReader().getById(clusterId) != null;
+      }
+      catch (Exception e) {
+        logger.warn("Problem checking inUse for id=" + clusterId, e);
+        return false;
+      }
+      finally {
+        Metrics.time(Metrics.ID_GET, start);
+      }
+    }
+    if (filtered && !inUse) {
+      Metrics.counter(Metrics.ID_FILTER_FALSE_POSITIVE).inc();
+    }
+    return inUse;
+  }
+
+  protected boolean isIdInSessionData(String clusterId) {
+    final long start = System.nanoTime();
     try {
-      return SessionReplicationAPI.getInstance().getIdReader().getById(clusterId) != null;
+      Handler[] contexts = server.getChildHandlersByClass(ContextHandler.class);
+      for (int i = 0; contexts != null && i < contexts.length; i++) {
+        SessionHandler sessionHandler = (SessionHandler) ((ContextHandler) contexts[i]).getChildHandlerByClass(
+            SessionHandler.class);
+        if (sessionHandler != null) {
+          SessionManager manager = sessionHandler.getSessionManager();
+          if (manager instanceof SmartSessionManager && ((SmartSessionManager) manager).isIdInUse(clusterId)) {
+            return true;
+          }
+        }
+      }
+      return false;
     }
     catch (Exception e) {
       logger.warn("Problem checking inUse for id=" + clusterId, e);
       return false;
     }
+    finally {
+      Metrics.time(Metrics.ID_GET, start);
+    }
   }
 
   @Override
@@ -95,53 +427,60 @@ public class SmartSessionIdManager extends AbstractSessionIdManager {
     if (httpSession == null || !(httpSession instanceof Session)) {
       return;
     }
-    lock.lock();
+    Session session = (Session) httpSession;
+    final String id = session.getClusterId();
+    locks.lock(id);
     try {
-      Session session = (Session) httpSession;
       SessionId sessionId = new SessionId();
       sessionId.setCreatedAt(new Date().getTime());
-      final String id = session.getClusterId();
       sessionId.setId(id);
       if (logger.isInfoEnabled()) {
         logger.info("Session id " + sessionId.getId() + " " + sessionId.getCreatedAt());
       }
-      SessionReplicationAPI.getInstance().getIdWriter().save(sessionId);
+      if (persistSessionIds) {
+        final long start = System.nanoTime();
+        SessionReplicationAPI.getInstance().getIdWriter().save(sessionId);
+        Metrics.time(Metrics.ID_SAVE, start);
+      }
       Cache sessionIds = SessionReplicationAPI.getInstance().getSessionIdCache();
       sessionIds.put(new Element(id, System.currentTimeMillis()));
+      rememberId(id);
     }
     catch (Exception ex) {
       logger.error("Could not add session id!", ex);
     }
     finally {
-      lock.unlock();
+      locks.unlock(id);
     }
   }
 
   @Override
   public void removeSession(HttpSession httpSession) {
     logger.info("removeSession");
-    lock.lock();
-    try {
-      if (httpSession == null || !(httpSession instanceof Session)) {
-        return;
-      }
-      Session session = (Session) httpSession;
-      final String clusterId = session.getClusterId();
-      removeSession(clusterId);
-    }
-    finally {
-      lock.unlock();
+    if (httpSession == null || !(httpSession instanceof Session)) {
+      return;
     }
+    Session session = (Session) httpSession;
+    final String clusterId = session.getClusterId();
+    removeSession(clusterId);
   }
 
   protected void removeSession(final String clusterId) {
     logger.info("removeSession");
-    lock.lock();
+    locks.lock(clusterId);
     try {
+      if (!persistSessionIds) {
+        SessionReplicationAPI.getInstance().getSessionIdCache().remove(clusterId);
+        return;
+      }
+      long start = System.nanoTime();
       SessionId sessionId =
                 SessionReplicationAPI.getInstance().getIdReader().getById(clusterId);
+      Metrics.time(Metrics.ID_GET, start);
       if (sessionId != null) {
+        start = System.nanoTime();
         SessionReplicationAPI.getInstance().getIdWriter().delete(sessionId);
+        Metrics.time(Metrics.ID_DELETE, start);
         Cache sessionIds = SessionReplicationAPI.getInstance().getSessionIdCache();
         sessionIds.remove(sessionId.getId());
       }
@@ -150,7 +489,7 @@ public class SmartSessionIdManager extends AbstractSessionIdManager {
       logger.error("Could not remove session id!", ex);
     }
     finally {
-      lock.unlock();
+      locks.unlock(clusterId);
     }
   }
 
@@ -158,7 +497,7 @@ public class SmartSessionIdManager extends AbstractSessionIdManager {
   public void invalidateAll(String id) {
     logger.info("invalidateAll");
     //take the id out of the list of known sessionids for this node
-    lock.lock();
+    locks.lock(id);
     try {
       removeSession(id);
       //tell all contexts that may have a session object with this id to
@@ -177,8 +516,28 @@ public class SmartSessionIdManager extends AbstractSessionIdManager {
       }
     }
     finally {
-      lock.unlock();
+      locks.unlock(id);
+    }
+  }
+
+  /**
+   * Invalidate the expired session if one of the contexts of this server holds it locally, so that its listeners are
+   * notified.
+   * @return true if the session was found and invalidated locally
+   */
+  protected boolean expireLocalSession(SessionDataId id) {
+    Handler[] contexts = server.getChildHandlersByClass(ContextHandler.class);
+    for (int i = 0; contexts != null && i < contexts.length; i++) {
+      SessionHandler sessionHandler = (SessionHandler) ((ContextHandler) contexts[i]).getChildHandlerByClass(
+          SessionHandler.class);
+      if (sessionHandler != null) {
+        SessionManager manager = sessionHandler.getSessionManager();
+        if (manager instanceof SmartSessionManager && ((SmartSessionManager) manager).expireLocalSession(id)) {
+          return true;
+        }
+      }
     }
+    return false;
   }
 
   @Override
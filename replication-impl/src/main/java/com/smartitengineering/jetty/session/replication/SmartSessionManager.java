@@ -19,16 +19,36 @@
  */
 package com.smartitengineering.jetty.session.replication;
 
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSessionEvent;
 import javax.servlet.http.HttpSessionListener;
 import net.sf.ehcache.Cache;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+import org.apache.commons.lang.StringUtils;
 import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.session.AbstractSessionIdManager;
 import org.eclipse.jetty.server.session.AbstractSessionManager;
 import org.eclipse.jetty.util.LazyList;
 import org.slf4j.Logger;
@@ -41,21 +61,169 @@ import org.slf4j.LoggerFactory;
 public class SmartSessionManager extends AbstractSessionManager {
 
   protected final Logger logger = LoggerFactory.getLogger(getClass());
-  protected final ReentrantLock lock = new ReentrantLock();
+  protected final StripedLock locks = new StripedLock(StripedLock.DEFAULT_STRIPES, Metrics.SESSION_MANAGER_LOCK);
   private final static long DEFAULT_INTERVAL = 300;
   private final static long DEFAULT_EXPIRY_TIME = 24 * 60 * 60 * 1000;
+  private final static int MAX_ID_CLAIMS = 3;
+  /**
+   * Rough heap taken by a cached session apart from its attributes
+   */
+  public static final long SESSION_OVERHEAD_BYTES = 1024;
   private Cache sessions;
   private long saveInterval = 0;
+  private boolean writeBehind = false;
+  private int writeBehindQueueSize = SessionWriteBehindQueue.DEFAULT_CAPACITY;
+  private long writeBehindMaxStaleness = SessionWriteBehindQueue.DEFAULT_MAX_STALENESS;
+  private SessionWriteBehindQueue writeBehindQueue;
+  private boolean legacyKeyLookup = true;
+  private long leaseInterval = 0;
+  private boolean trustInvalidations = false;
+  private boolean touchWrites = true;
+  private int offHeapCapacity = 0;
+  private volatile OffHeapSessionStore offHeapStore;
+  private CacheEventListener offHeapDemoter;
+  private long sessionCacheBytes = 0;
+  private volatile WeightedCacheEvictor sessionCacheEvictor;
+  private boolean warmUp = false;
+  private int warmUpRate = 500;
+  private int warmUpTimeout = 60;
+  private int warmUpMaxSessions = 0;
+  private boolean readyBeforeWarmUp = true;
+  private volatile WarmUpState warmUpState = WarmUpState.NOT_STARTED;
+  private volatile Thread warmUpThread;
+  private boolean drainOnStop = true;
+  private int drainTimeout = 30;
+  private int drainBatchSize = SessionWriteBehindQueue.DEFAULT_BATCH_SIZE;
+  private int drainThreads = 4;
+  private volatile SessionDrainReport lastDrainReport;
+  private SessionInvalidationBus.Listener invalidationListener;
+  private volatile SessionDataId.Context dataIdContext;
 
   @Override
   public void doStart() throws Exception {
     super.doStart();
     sessions = SessionReplicationAPI.getInstance().getSessionCache();
+    dataIdContext = newDataIdContext();
+    final SessionInvalidationBus bus = SessionReplicationAPI.getInstance().getInvalidationBus();
+    if (bus != null && bus.isActive()) {
+      invalidationListener = new SessionInvalidationBus.Listener() {
+
+        @Override
+        public void invalidate(Collection<SessionDataId> ids) {
+          for (SessionDataId id : ids) {
+            dropCachedSession(id);
+          }
+        }
+      };
+      bus.subscribe(getIdManager().getWorkerName(), invalidationListener);
+    }
+    final String contextPath = dataIdContext.getCanonicalContextPath();
+    final String metricsName = StringUtils.isBlank(contextPath) ? "root" : contextPath;
+    final SessionDataSerializer serializer = SessionReplicationAPI.getInstance().getSessionDataSerializer();
+    if (offHeapCapacity > 0 && serializer != null) {
+      final OffHeapSessionStore store = new OffHeapSessionStore(metricsName, offHeapCapacity, serializer);
+      store.registerMetrics();
+      offHeapStore = store;
+      offHeapDemoter = new CacheEventListenerAdapter() {
+
+        @Override
+        public void notifyElementEvicted(Ehcache cache, Element element) {
+          demote(element);
+        }
+
+        @Override
+        public void notifyElementExpired(Ehcache cache, Element element) {
+          demote(element);
+        }
+      };
+      sessions.getCacheEventNotificationService().registerListener(offHeapDemoter);
+    }
+    if (sessionCacheBytes > 0) {
+      final WeightedCacheEvictor evictor = new WeightedCacheEvictor(sessions, metricsName, sessionCacheBytes,
+                                                                    WeightedCacheEvictor.DEFAULT_SAMPLE_SIZE,
+                                                                    new SessionWeigher()) {
+
+        @Override
+        protected boolean accepts(Element element) {
+          final Object value = element.getObjectValue();
+          return value instanceof Session && ((Session) value).isOwnedBy(SmartSessionManager.this);
+        }
+
+        @Override
+        protected void evict(Element element) {
+          demote(element);
+          super.evict(element);
+        }
+      };
+      evictor.register();
+      sessionCacheEvictor = evictor;
+    }
+    if (writeBehind) {
+      writeBehindQueue = new SessionWriteBehindQueue(SessionReplicationAPI.getInstance().getDataWriter(),
+                                                     writeBehindQueueSize, writeBehindMaxStaleness,
+                                                     SessionWriteBehindQueue.DEFAULT_BATCH_SIZE) {
+
+        @Override
+        protected void touchRejected(SessionData data) {
+          SmartSessionManager.this.touchRejected(data);
+        }
+
+        @Override
+        protected void attributesMerged(SessionData data) {
+          SmartSessionManager.this.attributesMerged(data);
+        }
+      };
+      if (touchWrites) {
+        writeBehindQueue.setTouchWriter(SessionReplicationAPI.getInstance().getTouchWriter());
+      }
+      writeBehindQueue.start();
+      writeBehindQueue.registerMetrics(metricsName);
+    }
+    if (warmUp && SessionReplicationAPI.getInstance().getDataScanner() != null) {
+      warmUpState = WarmUpState.RUNNING;
+      final Thread thread = new Thread(new WarmUp(), "session-warm-up");
+      thread.setDaemon(true);
+      warmUpThread = thread;
+      thread.start();
+    }
   }
 
   @Override
   public void doStop() throws Exception {
+    final Thread warmUpRunner = warmUpThread;
+    if (warmUpRunner != null) {
+      warmUpThread = null;
+      warmUpRunner.interrupt();
+    }
+    if (invalidationListener != null) {
+      SessionReplicationAPI.getInstance().getInvalidationBus().unsubscribe(invalidationListener);
+      invalidationListener = null;
+    }
+    if (writeBehindQueue != null) {
+      writeBehindQueue.stop();
+      writeBehindQueue.unregisterMetrics();
+      writeBehindQueue = null;
+    }
+    if (drainOnStop) {
+      lastDrainReport = drain();
+    }
+    final WeightedCacheEvictor evictor = sessionCacheEvictor;
+    if (evictor != null) {
+      sessionCacheEvictor = null;
+      evictor.unregister();
+    }
+    if (offHeapDemoter != null) {
+      sessions.getCacheEventNotificationService().unregisterListener(offHeapDemoter);
+      offHeapDemoter = null;
+    }
+    final OffHeapSessionStore store = offHeapStore;
+    if (store != null) {
+      offHeapStore = null;
+      store.clear();
+      store.unregisterMetrics();
+    }
     super.doStop();
+    dataIdContext = null;
   }
 
   @Override
@@ -63,10 +231,48 @@ public class SmartSessionManager extends AbstractSessionManager {
     return sessions.getSize();
   }
 
+  /**
+   * Returns a read only view of the sessions of this context. When a data scanner is available the view is backed by
+   * it and sessions are streamed from the backend on iteration instead of being collected into one map; see
+   * {@link StreamingSessionMap} for the cost of its operations.
+   */
   @Override
   public Map getSessionMap() {
     logger.info("getSessionMap");
-    return Collections.unmodifiableMap(sessions.getAllWithLoader(sessions.getKeysWithExpiryCheck(), null));
+    if (SessionReplicationAPI.getInstance().getDataScanner() == null) {
+      return Collections.unmodifiableMap(sessions.getAllWithLoader(sessions.getKeysWithExpiryCheck(), null));
+    }
+    return new StreamingSessionMap();
+  }
+
+  /**
+   * Stream the persisted session data of this context. The caller has to close the stream if it does not iterate it
+   * to the end.
+   * @param caching Number of rows fetched per round trip
+   */
+  public SessionDataStream streamSessionData(int caching) {
+    final SessionScanCriteria criteria = newScanCriteria();
+    criteria.setCaching(caching);
+    return streamSessionData(criteria);
+  }
+
+  public SessionDataStream streamSessionData(SessionScanCriteria criteria) {
+    final SessionDataScanner scanner = SessionReplicationAPI.getInstance().getDataScanner();
+    if (scanner == null) {
+      throw new UnsupportedOperationException("No session data scanner available");
+    }
+    return scanner.scan(criteria);
+  }
+
+  /**
+   * Criteria initialized to restrict a scan to the context and virtual host of this manager
+   */
+  public SessionScanCriteria newScanCriteria() {
+    final SessionScanCriteria criteria = new SessionScanCriteria();
+    final SessionDataId dataId = getSessionDataId("");
+    criteria.setCanonicalContextPath(dataId.getCanonicalContextPath());
+    criteria.setVirtualHost(dataId.getVirtualHost());
+    return criteria;
   }
 
   @Override
@@ -75,15 +281,18 @@ public class SmartSessionManager extends AbstractSessionManager {
     try {
       Session session = (SmartSessionManager.Session) sn;
       sessions.put(new Element(session.getClusterId(), session));
-      session.willPassivate();
-      lock.lock();
-      try {
-        updateSession(session);
-      }
-      finally {
-        lock.unlock();
+      //A session just written by newSession does not need to be written again
+      if (!session.created.compareAndSet(true, false)) {
+        session.willPassivate();
+        locks.lock(session.getClusterId());
+        try {
+          updateSession(session);
+        }
+        finally {
+          locks.unlock(session.getClusterId());
+        }
+        session.didActivate();
       }
-      session.didActivate();
     }
     catch (Exception ex) {
       logger.warn("Could not add session!", ex);
@@ -93,18 +302,38 @@ public class SmartSessionManager extends AbstractSessionManager {
   @Override
   public Session getSession(String idInCluster) {
     logger.info("getSession");
-    lock.lock();
+    locks.lock(idInCluster);
     try {
       final Element val = sessions.get(idInCluster);
       Session session = val != null ? (Session) val.getValue() : null;
       final SessionData data;
       long now = System.currentTimeMillis();
-      if (session == null || (now - session.sessionData.getLastSaved()) >= (getSaveInterval() * 1000)) {
+      if (session == null) {
+        session = promote(idInCluster, now);
+      }
+      final boolean leased = session != null && ownsLease(session.sessionData, now);
+      final boolean trusted = leased || (trustInvalidations && invalidationListener != null);
+      if (session == null || (!trusted && (now - Math.max(session.sessionData.getLastSaved(), session.loadedAt)) >=
+                                           (getSaveInterval() * 1000))) {
         data = loadSession(idInCluster);
         session = null;
+        Metrics.counter(data == null ? Metrics.SESSION_GET_MISS : Metrics.SESSION_GET_RELOAD).inc();
+        if (data != null && !getIdManager().getWorkerName().equals(data.getLastNode())) {
+          if (leaseInterval > 0) {
+            takeOverLease(data, now);
+          }
+          else {
+            //Without leases the last node is only the node that used the session last
+            data.setLastNode(getIdManager().getWorkerName());
+          }
+        }
       }
       else {
         data = session.sessionData;
+        Metrics.counter(Metrics.SESSION_GET_LOCAL).inc();
+        if (leased) {
+          Metrics.counter(Metrics.LEASE_LOCAL).inc();
+        }
       }
       if (logger.isInfoEnabled()) {
         logger.info("Session Data " + data);
@@ -139,7 +368,7 @@ public class SmartSessionManager extends AbstractSessionManager {
       throw ex;
     }
     finally {
-      lock.unlock();
+      locks.unlock(idInCluster);
     }
   }
 
@@ -156,17 +385,54 @@ public class SmartSessionManager extends AbstractSessionManager {
   @Override
   protected Session newSession(HttpServletRequest hsr) {
     logger.info("newSession");
-    lock.lock();
-    try {
+    for (int attempt = 1;; ++attempt) {
       final Session session = new SmartSessionManager.Session(hsr);
-      SessionData sessionData = loadSession(session.getId());
-      if (sessionData == null) {
-        createSession(session);
+      final String clusterId = session.getClusterId();
+      locks.lock(clusterId);
+      try {
+        //The id manager only hands out ids not in use, so the session is written without reading it first; the write
+        //itself claims the id against another node creating the same one
+        if (createSession(session) || (releaseExpiredId(session) && createSession(session))) {
+          return session;
+        }
       }
-      return session;
+      finally {
+        locks.unlock(clusterId);
+      }
+      Metrics.counter(Metrics.SESSION_ID_TAKEN).inc();
+      if (attempt >= MAX_ID_CLAIMS) {
+        throw new IllegalStateException("Could not claim an unused session id");
+      }
+      logger.warn("Session id " + clusterId + " is already taken, creating the session with another id");
+      //Otherwise the id manager hands the id it generated for this request out again
+      hsr.removeAttribute(AbstractSessionIdManager.__NEW_SESSION_ID);
     }
-    finally {
-      lock.unlock();
+  }
+
+  /**
+   * Delete the stored session of an id a new session could not claim, if that session has expired without being
+   * scavenged yet, so that the id, e.g. one requested by a client, can be reused
+   * @return true if the id is free again
+   */
+  protected boolean releaseExpiredId(Session session) {
+    final SessionData existing = readSessionData(session.sessionData.getId());
+    if (existing == null) {
+      return true;
+    }
+    if (existing.getExpiryTime() > System.currentTimeMillis()) {
+      return false;
+    }
+    try {
+      final ExpiredSessionDeleter deleter = SessionReplicationAPI.getInstance().getExpiredSessionDeleter();
+      if (deleter != null) {
+        return deleter.deleteIfExpired(existing);
+      }
+      SessionReplicationAPI.getInstance().getDataWriter().delete(existing);
+      return true;
+    }
+    catch (Exception ex) {
+      logger.warn("Could not delete expired session " + existing.getId(), ex);
+      return false;
     }
   }
 
@@ -175,7 +441,7 @@ public class SmartSessionManager extends AbstractSessionManager {
     // Remove session from context and global maps
     boolean removed = false;
     Session session = (SmartSessionManager.Session) sn;
-    lock.lock();
+    locks.lock(session.getClusterId());
     try {
       //take this session out of the map of sessions for this context
       final SessionData data = loadSession(session.getClusterId());
@@ -184,9 +450,12 @@ public class SmartSessionManager extends AbstractSessionManager {
         sessions.remove(session.getClusterId());
         removed = deleteSession(session);
       }
+      else {
+        purgeOffHeap(session.getClusterId());
+      }
     }
     finally {
-      lock.unlock();
+      locks.unlock(session.getClusterId());
     }
 
     if (removed) {
@@ -214,13 +483,13 @@ public class SmartSessionManager extends AbstractSessionManager {
     logger.info("getSessionMap");
     final Session session = getSession(idInCluster);
     if (session != null) {
-      lock.lock();
+      locks.lock(idInCluster);
       try {
         sessions.remove(idInCluster);
         return deleteSession(session);
       }
       finally {
-        lock.unlock();
+        locks.unlock(idInCluster);
       }
     }
     return false;
@@ -228,10 +497,9 @@ public class SmartSessionManager extends AbstractSessionManager {
 
   protected void invalidateSession(String idInCluster) {
     logger.info("invalidateSession");
-    lock.lock();
+    locks.lock(idInCluster);
     try {
-      final SessionData sessionData = SessionReplicationAPI.getInstance().getDataReader().getById(getSessionDataId(
-          idInCluster));
+      final SessionData sessionData = loadSession(idInCluster);
       if (sessionData == null) {
         return;
       }
@@ -239,12 +507,49 @@ public class SmartSessionManager extends AbstractSessionManager {
       session.invalidate();
     }
     finally {
-      lock.unlock();
+      locks.unlock(idInCluster);
+    }
+  }
+
+  /**
+   * Invalidate the session with the given id if it is held in the cache of this manager.
+   * @return true if the session was found and invalidated
+   */
+  protected boolean expireLocalSession(SessionDataId id) {
+    final String clusterId = id.getInClusterId();
+    final Element element = sessions.get(clusterId);
+    if (element == null || element.getValue() == null) {
+      return false;
+    }
+    final Session session = (Session) element.getValue();
+    if (!id.equals(session.sessionData.getId())) {
+      return false;
+    }
+    locks.lock(clusterId);
+    try {
+      session.invalidate();
+    }
+    catch (IllegalStateException ex) {
+      //Already invalidated
+      logger.debug("Session already invalid", ex);
+    }
+    finally {
+      locks.unlock(clusterId);
     }
+    return true;
   }
 
   protected SessionData loadSession(String string) {
-    SessionData data = SessionReplicationAPI.getInstance().getDataReader().getById(getSessionDataId(string));
+    final SessionDataId dataId = getSessionDataId(string);
+    final SessionWriteBehindQueue queue = writeBehindQueue;
+    SessionData data = queue != null ? queue.getPending(dataId) : null;
+    if (data == null) {
+      data = readSessionData(dataId);
+    }
+    if (data == null && legacyKeyLookup) {
+      dataId.setLegacyEncoded(true);
+      data = readSessionData(dataId);
+    }
     if (data != null) {
       if (logger.isInfoEnabled()) {
         logger.info("Returning session " + data);
@@ -257,36 +562,371 @@ public class SmartSessionManager extends AbstractSessionManager {
     }
   }
 
-  protected void createSession(Session session) {
+  /**
+   * Whether session data of the cluster id is stored for this context, read by its key rather than scanned for
+   */
+  protected boolean isIdInUse(String clusterId) {
+    return loadSession(clusterId) != null;
+  }
+
+  protected SessionData readSessionData(SessionDataId dataId) {
+    final long start = System.nanoTime();
+    try {
+      return SessionReplicationAPI.getInstance().getDataReader().getById(dataId);
+    }
+    finally {
+      Metrics.time(Metrics.DATA_GET, start);
+    }
+  }
+
+  /**
+   * Drop a session changed by another node from the cache so that it is reloaded on its next use
+   */
+  protected void dropCachedSession(SessionDataId id) {
+    Metrics.counter(Metrics.INVALIDATION_RECEIVED).inc();
+    if (evictCachedSession(id)) {
+      Metrics.counter(Metrics.INVALIDATION_DROPPED).inc();
+    }
+  }
+
+  /**
+   * Remove the session from the cache and the off heap store
+   * @return true if the session was cached on heap
+   */
+  protected boolean evictCachedSession(SessionDataId id) {
+    final String clusterId = id.getInClusterId();
+    locks.lock(clusterId);
+    try {
+      boolean removed = false;
+      final Element element = sessions.getQuiet(clusterId);
+      if (element != null && element.getValue() != null && id.equals(((Session) element.getValue()).sessionData.
+          getId())) {
+        removed = sessions.remove(clusterId);
+      }
+      final OffHeapSessionStore store = offHeapStore;
+      if (store != null) {
+        store.remove(clusterId);
+      }
+      return removed;
+    }
+    finally {
+      locks.unlock(clusterId);
+    }
+  }
+
+  /**
+   * Move a session evicted from the session cache off heap, provided it has nothing left to write
+   */
+  protected void demote(Element element) {
+    final OffHeapSessionStore store = offHeapStore;
+    if (store == null || element == null || !(element.getObjectValue() instanceof Session)) {
+      return;
+    }
+    final Session session = (Session) element.getObjectValue();
+    final String clusterId = String.valueOf(element.getObjectKey());
+    //Evictions happen on threads holding the lock of another session, waiting could deadlock with one evicting ours
+    final ReentrantLock lock = locks.getLock(clusterId);
+    if (!lock.tryLock()) {
+      return;
+    }
+    try {
+      if (!session.isOwnedBy(this) || session.dirty.get() || session.sessionData.hasAttributeChanges() ||
+          session.sessionData.getExpiryTime() <= System.currentTimeMillis()) {
+        return;
+      }
+      store.put(clusterId, session.sessionData);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Bring a session held off heap back into the session cache
+   */
+  protected Session promote(String idInCluster, long now) {
+    final OffHeapSessionStore store = offHeapStore;
+    if (store == null) {
+      return null;
+    }
+    final SessionData data = store.take(idInCluster);
+    if (data == null || data.getExpiryTime() <= now) {
+      return null;
+    }
+    final Session session = new Session(data);
+    sessions.put(new Element(idInCluster, session));
+    return session;
+  }
+
+  protected void publishChange(SessionDataId id) {
+    final SessionInvalidationBus bus = SessionReplicationAPI.getInstance().getInvalidationBus();
+    if (bus != null && bus.isActive()) {
+      try {
+        bus.publish(getIdManager().getWorkerName(), id);
+        Metrics.counter(Metrics.INVALIDATION_PUBLISHED).inc();
+      }
+      catch (Exception ex) {
+        logger.warn("Could not publish session change", ex);
+      }
+    }
+  }
+
+  protected boolean ownsLease(SessionData data, long now) {
+    return leaseInterval > 0 && data.getLeaseExpiry() > now && getIdManager().getWorkerName().equals(data.
+        getLastNode());
+  }
+
+  /**
+   * Take the lease of a session last used by another node over, unless that node still holds it. On failure the
+   * session is kept without a lease and with the other node as its owner, so that it is reloaded again once the save
+   * interval passes.
+   */
+  protected void takeOverLease(SessionData data, long now) {
+    final SessionLeaseService leaseService = SessionReplicationAPI.getInstance().getLeaseService();
+    final String node = getIdManager().getWorkerName();
+    final long leaseExpiry = now + leaseInterval * 1000;
+    boolean acquired = false;
+    if (leaseService != null && data.getExpiryTime() > now && data.getLeaseExpiry() <= now) {
+      try {
+        acquired = leaseService.takeOver(data, node, leaseExpiry);
+      }
+      catch (Exception ex) {
+        logger.warn("Could not take session lease over", ex);
+      }
+    }
+    if (acquired) {
+      data.setLastNode(node);
+      //The take over wrote the node to the row
+      data.setStoredLastNode(node);
+      data.setLeaseExpiry(leaseExpiry);
+      Metrics.counter(Metrics.LEASE_TAKEOVER).inc();
+    }
+    else {
+      data.setLeaseExpiry(0);
+      if (leaseService != null) {
+        Metrics.counter(Metrics.LEASE_TAKEOVER_FAILED).inc();
+      }
+    }
+  }
+
+  /**
+   * Extend the lease of this node once half of it has passed, provided this node still owns the session. The renewal
+   * is conditional on the persisted owner, so a node that lost the session to another does not take it back.
+   */
+  protected void renewLease(SessionData data) {
+    if (leaseInterval <= 0) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    final String node = getIdManager().getWorkerName();
+    final boolean due = !ownsLease(data, now) || data.getLeaseExpiry() - now <= leaseInterval * 500;
+    if (!due || !node.equals(data.getLastNode())) {
+      return;
+    }
+    final long leaseExpiry = now + leaseInterval * 1000;
+    final SessionLeaseService leaseService = SessionReplicationAPI.getInstance().getLeaseService();
+    boolean renewed = leaseService == null;
+    if (leaseService != null) {
+      try {
+        renewed = leaseService.renew(data, node, leaseExpiry);
+      }
+      catch (Exception ex) {
+        logger.warn("Could not renew session lease", ex);
+      }
+    }
+    if (renewed) {
+      data.setLeaseExpiry(leaseExpiry);
+      Metrics.counter(Metrics.LEASE_RENEWAL).inc();
+    }
+    else {
+      data.setLeaseExpiry(0);
+      Metrics.counter(Metrics.LEASE_RENEWAL_FAILED).inc();
+    }
+  }
+
+  /**
+   * Write a new session, claiming its id when a data creator is available
+   * @return false if the id is already taken by a stored session, true otherwise even if the write failed
+   */
+  protected boolean createSession(Session session) {
+    if (leaseInterval > 0) {
+      //The row is created by this node, so it owns the lease from the start
+      session.sessionData.setLeaseExpiry(System.currentTimeMillis() + leaseInterval * 1000);
+    }
     try {
       if (logger.isInfoEnabled()) {
         logger.info("Creating session with id " + session.sessionData.getId());
       }
-      SessionReplicationAPI.getInstance().getDataWriter().save(session.sessionData);
+      final SessionDataCreator creator = SessionReplicationAPI.getInstance().getDataCreator();
+      final long start = System.nanoTime();
+      if (creator == null) {
+        SessionReplicationAPI.getInstance().getDataWriter().save(session.sessionData);
+      }
+      else if (!creator.create(session.sessionData)) {
+        Metrics.time(Metrics.DATA_SAVE, start);
+        return false;
+      }
+      Metrics.time(Metrics.DATA_SAVE, start);
+      session.dirty.set(false);
+      session.created.set(true);
+      indexExpiry(session.sessionData);
+      publishChange(session.sessionData.getId());
     }
     catch (Exception ex) {
+      session.sessionData.markAllAttributesChanged();
       logger.error("Could not save session to write dao!", ex);
     }
+    return true;
   }
 
   protected void updateSession(Session session) {
+    renewLease(session.sessionData);
+    final TouchResult touch = touchWrites ? touchSession(SessionReplicationAPI.getInstance().getTouchWriter(),
+                                                         session.sessionData) : TouchResult.NOT_TOUCHED;
+    switch (touch) {
+      case TOUCHED:
+        indexExpiry(session.sessionData);
+        return;
+      case REJECTED:
+        touchRejected(session.sessionData);
+        return;
+      case FAILED:
+        //Only access times are lost; the last saved time is unchanged, so the next request touches it again
+        return;
+      default:
+        break;
+    }
+    Metrics.counter(Metrics.WRITE_FULL).inc();
     try {
       if (logger.isInfoEnabled()) {
         logger.info("Updating session with " + session.sessionData);
       }
+      final long start = System.nanoTime();
       SessionReplicationAPI.getInstance().getDataWriter().update(session.sessionData);
+      Metrics.time(Metrics.DATA_UPDATE, start);
+      if (session.sessionData.drainAttributesMerged()) {
+        attributesMerged(session.sessionData);
+      }
+      indexExpiry(session.sessionData);
+      publishChange(session.sessionData.getId());
+      final WeightedCacheEvictor evictor = sessionCacheEvictor;
+      if (evictor != null) {
+        //Attribute sizes are known once written
+        evictor.update(session.getClusterId());
+      }
     }
     catch (Exception ex) {
+      session.sessionData.markAllAttributesChanged();
       logger.error("Could not update session to write dao!", ex);
     }
   }
 
+  /**
+   * Outcome of trying to write only the access fields of a session
+   */
+  static enum TouchResult {
+
+    /**
+     * Access fields written, nothing else to write
+     */
+    TOUCHED,
+    /**
+     * Not attempted, the session has to be written in full
+     */
+    NOT_TOUCHED,
+    /**
+     * The row was last written by another node, the cached copy is stale and must not be written
+     */
+    REJECTED,
+    /**
+     * The touch could not be written
+     */
+    FAILED
+  }
+
+  /**
+   * Write only the access fields of the session if none of its attributes changed, or may have been modified in place,
+   * since it was last written
+   */
+  static TouchResult touchSession(SessionTouchWriter touchWriter, SessionData data) {
+    if (touchWriter == null || data.hasAttributeChanges() || data.hasMutableAttributes()) {
+      return TouchResult.NOT_TOUCHED;
+    }
+    final long start = System.nanoTime();
+    try {
+      if (touchWriter.touch(data)) {
+        Metrics.time(Metrics.DATA_TOUCH, start);
+        Metrics.counter(Metrics.WRITE_TOUCH).inc();
+        return TouchResult.TOUCHED;
+      }
+    }
+    catch (Exception ex) {
+      Metrics.counter(Metrics.WRITE_TOUCH_FAILED).inc();
+      LoggerFactory.getLogger(SmartSessionManager.class).error("Could not touch session " + data.getId(), ex);
+      return TouchResult.FAILED;
+    }
+    Metrics.counter(Metrics.WRITE_TOUCH_REJECTED).inc();
+    return TouchResult.REJECTED;
+  }
+
+  /**
+   * Another node wrote the session since it was loaded here; drop the stale copy instead of overwriting its row so
+   * that the next request reloads it
+   */
+  protected void touchRejected(SessionData data) {
+    if (logger.isInfoEnabled()) {
+      logger.info("Session " + data.getId() + " was written by another node, reloading it");
+    }
+    evictCachedSession(data.getId());
+  }
+
+  /**
+   * A write merged attributes of a version concurrently written by another node into the session data; the servlet
+   * session still holds the attributes it was loaded with, so it is dropped and the next request reloads it
+   */
+  protected void attributesMerged(SessionData data) {
+    if (logger.isInfoEnabled()) {
+      logger.info("Session " + data.getId() + " merged with a concurrent write, reloading it");
+    }
+    evictCachedSession(data.getId());
+  }
+
+  protected void indexExpiry(SessionData data) {
+    final SessionExpiryIndex index = SessionReplicationAPI.getInstance().getExpiryIndex();
+    if (index != null) {
+      try {
+        index.record(data);
+      }
+      catch (Exception ex) {
+        logger.warn("Could not index session expiry", ex);
+      }
+    }
+  }
+
+  /**
+   * Drops the demoted off-heap copy of a session, if any, so that a deleted session can not be promoted back.
+   */
+  private void purgeOffHeap(String clusterId) {
+    final OffHeapSessionStore store = offHeapStore;
+    if (store != null) {
+      store.remove(clusterId);
+    }
+  }
+
   protected boolean deleteSession(Session session) {
     try {
       if (logger.isInfoEnabled()) {
         logger.info("Deleting session with id " + session.sessionData.getId());
       }
+      final SessionWriteBehindQueue queue = writeBehindQueue;
+      if (queue != null) {
+        queue.cancel(session.sessionData.getId());
+      }
+      purgeOffHeap(session.getClusterId());
+      final long start = System.nanoTime();
       SessionReplicationAPI.getInstance().getDataWriter().delete(session.sessionData);
+      Metrics.time(Metrics.DATA_DELETE, start);
+      publishChange(session.sessionData.getId());
       return true;
     }
     catch (Exception ex) {
@@ -295,6 +935,258 @@ public class SmartSessionManager extends AbstractSessionManager {
     }
   }
 
+  /**
+   * Write every session of this context in the session cache with changes or accesses not yet written, in parallel
+   * batches and within the drain timeout, so that the node taking over its sessions does not lose them. Sessions
+   * whose turn does not come before the deadline are reported as dropped.
+   */
+  protected SessionDrainReport drain() {
+    final long start = System.nanoTime();
+    final List<Session> pending = new ArrayList<Session>();
+    for (Object key : sessions.getKeys()) {
+      final Element element = sessions.getQuiet(key);
+      if (element != null && element.getObjectValue() instanceof Session) {
+        final Session session = (Session) element.getObjectValue();
+        if (session.isOwnedBy(this) && isUnsaved(session)) {
+          pending.add(session);
+        }
+      }
+    }
+    final AtomicInteger written = new AtomicInteger();
+    final AtomicInteger touched = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    if (!pending.isEmpty()) {
+      final int batchSize = Math.max(1, drainBatchSize);
+      final int batches = (pending.size() + batchSize - 1) / batchSize;
+      final int threads = Math.max(1, Math.min(drainThreads, batches));
+      final ExecutorService executor =
+          Executors.newFixedThreadPool(threads, new InstrumentedThreadPoolExecutor.NamedThreadFactory("session-drain"));
+      for (int i = 0; i < pending.size(); i += batchSize) {
+        final List<Session> batch = pending.subList(i, Math.min(pending.size(), i + batchSize));
+        executor.execute(new Runnable() {
+
+          @Override
+          public void run() {
+            drain(batch, written, touched, failed);
+          }
+        });
+      }
+      executor.shutdown();
+      try {
+        if (!executor.awaitTermination(drainTimeout, TimeUnit.SECONDS)) {
+          executor.shutdownNow();
+        }
+      }
+      catch (InterruptedException ex) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+    }
+    final SessionDrainReport report = new SessionDrainReport(pending.size(), written.get(), touched.get(), failed.get(),
+                                                             TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    Metrics.time(Metrics.DRAIN, start);
+    Metrics.counter(Metrics.DRAIN_WRITTEN).add(report.getWritten());
+    Metrics.counter(Metrics.DRAIN_TOUCHED).add(report.getTouched());
+    Metrics.counter(Metrics.DRAIN_FAILED).add(report.getFailed());
+    Metrics.counter(Metrics.DRAIN_DROPPED).add(report.getDropped());
+    if (report.getFailed() > 0 || report.getDropped() > 0) {
+      logger.warn("Sessions not drained on stop - " + report);
+    }
+    else if (logger.isInfoEnabled()) {
+      logger.info("Drained sessions on stop - " + report);
+    }
+    return report;
+  }
+
+  /**
+   * Whether the session has changes a request would write: attribute changes, or accesses and attributes possibly
+   * modified in place once the save interval has passed since it was last written
+   */
+  protected boolean isUnsaved(Session session) {
+    final SessionData data = session.sessionData;
+    if (session.dirty.get() || data.hasAttributeChanges()) {
+      return true;
+    }
+    final long unsavedFor = data.getAccessed() - data.getLastSaved();
+    return (unsavedFor > 0 || data.hasMutableAttributes()) && unsavedFor >= getSaveInterval() * 1000;
+  }
+
+  /**
+   * Touch what only has access fields to write and write the rest as one batch, falling back to individual updates
+   * when the batch fails. Every session is written under its stripe lock; the batch only takes the sessions whose lock
+   * is free, as blocking on several locks could deadlock with the other drain threads, and the others are written
+   * one by one afterwards.
+   */
+  protected void drain(List<Session> batch, AtomicInteger written, AtomicInteger touched, AtomicInteger failed) {
+    final SessionTouchWriter touchWriter = touchWrites ? SessionReplicationAPI.getInstance().getTouchWriter() : null;
+    final List<Session> full = new ArrayList<Session>(batch.size());
+    for (Session session : batch) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      final String clusterId = session.getClusterId();
+      locks.lock(clusterId);
+      try {
+        renewLease(session.sessionData);
+        switch (touchSession(touchWriter, session.sessionData)) {
+          case TOUCHED:
+            touched.incrementAndGet();
+            indexExpiry(session.sessionData);
+            break;
+          case REJECTED:
+            touchRejected(session.sessionData);
+            break;
+          case FAILED:
+            failed.incrementAndGet();
+            break;
+          default:
+            full.add(session);
+        }
+      }
+      finally {
+        locks.unlock(clusterId);
+      }
+    }
+    if (full.isEmpty() || Thread.currentThread().isInterrupted()) {
+      return;
+    }
+    Metrics.counter(Metrics.WRITE_FULL).add(full.size());
+    final List<ReentrantLock> held = new ArrayList<ReentrantLock>(full.size());
+    final List<SessionData> locked = new ArrayList<SessionData>(full.size());
+    final List<Session> contended = new ArrayList<Session>();
+    try {
+      for (Session session : full) {
+        final ReentrantLock lock = locks.getLock(session.getClusterId());
+        if (lock.tryLock()) {
+          held.add(lock);
+          locked.add(session.sessionData);
+        }
+        else {
+          contended.add(session);
+        }
+      }
+      if (!locked.isEmpty()) {
+        drainBatch(locked, written, failed);
+      }
+    }
+    finally {
+      for (ReentrantLock lock : held) {
+        lock.unlock();
+      }
+    }
+    for (Session session : contended) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      final String clusterId = session.getClusterId();
+      locks.lock(clusterId);
+      try {
+        drainSession(session.sessionData, written, failed);
+      }
+      finally {
+        locks.unlock(clusterId);
+      }
+    }
+  }
+
+  /**
+   * Write sessions locked by the caller as one batch, or one by one if the batch fails
+   */
+  private void drainBatch(List<SessionData> batch, AtomicInteger written, AtomicInteger failed) {
+    try {
+      final long start = System.nanoTime();
+      SessionReplicationAPI.getInstance().getDataWriter().update(batch.toArray(new SessionData[batch.size()]));
+      Metrics.time(Metrics.DATA_UPDATE_BATCH, start);
+      for (SessionData data : batch) {
+        drained(data, written);
+      }
+    }
+    catch (Exception ex) {
+      logger.warn("Batch drain failed, falling back to individual updates", ex);
+      for (SessionData data : batch) {
+        if (Thread.currentThread().isInterrupted()) {
+          return;
+        }
+        //Changes drained by the failed batch have to be written again
+        data.markAllAttributesChanged();
+        drainSession(data, written, failed);
+      }
+    }
+  }
+
+  /**
+   * Write a single session locked by the caller
+   */
+  private void drainSession(SessionData data, AtomicInteger written, AtomicInteger failed) {
+    try {
+      final long start = System.nanoTime();
+      SessionReplicationAPI.getInstance().getDataWriter().update(data);
+      Metrics.time(Metrics.DATA_UPDATE, start);
+      drained(data, written);
+    }
+    catch (Exception e) {
+      failed.incrementAndGet();
+      logger.error("Could not drain session " + data.getId(), e);
+    }
+  }
+
+  private void drained(SessionData data, AtomicInteger written) {
+    written.incrementAndGet();
+    if (data.drainAttributesMerged()) {
+      attributesMerged(data);
+    }
+    indexExpiry(data);
+    publishChange(data.getId());
+  }
+
+  /**
+   * The outcome of the drain of the last stop, null if the manager has not been stopped with draining enabled
+   */
+  public SessionDrainReport getLastDrainReport() {
+    return lastDrainReport;
+  }
+
+  public boolean isDrainOnStop() {
+    return drainOnStop;
+  }
+
+  /**
+   * Whether sessions with unwritten changes or accesses are written before the manager stops
+   */
+  public void setDrainOnStop(boolean drainOnStop) {
+    this.drainOnStop = drainOnStop;
+  }
+
+  public int getDrainTimeout() {
+    return drainTimeout;
+  }
+
+  /**
+   * Seconds to wait for the drain before the sessions still pending are dropped
+   */
+  public void setDrainTimeout(int drainTimeout) {
+    this.drainTimeout = drainTimeout;
+  }
+
+  public int getDrainBatchSize() {
+    return drainBatchSize;
+  }
+
+  public void setDrainBatchSize(int drainBatchSize) {
+    this.drainBatchSize = drainBatchSize;
+  }
+
+  public int getDrainThreads() {
+    return drainThreads;
+  }
+
+  /**
+   * Number of batches written at the same time while draining
+   */
+  public void setDrainThreads(int drainThreads) {
+    this.drainThreads = drainThreads;
+  }
+
   public long getSaveInterval() {
     return saveInterval <= 0 ? DEFAULT_INTERVAL : saveInterval;
   }
@@ -303,14 +1195,455 @@ public class SmartSessionManager extends AbstractSessionManager {
     this.saveInterval = saveInterval;
   }
 
+  public boolean isWriteBehind() {
+    return writeBehind;
+  }
+
+  /**
+   * When enabled dirty sessions are persisted asynchronously by a background flusher instead of on the request
+   * thread. Has to be set before the manager is started.
+   */
+  public void setWriteBehind(boolean writeBehind) {
+    this.writeBehind = writeBehind;
+  }
+
+  public int getWriteBehindQueueSize() {
+    return writeBehindQueueSize;
+  }
+
+  public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+    this.writeBehindQueueSize = writeBehindQueueSize;
+  }
+
+  public long getWriteBehindMaxStaleness() {
+    return writeBehindMaxStaleness;
+  }
+
+  public void setWriteBehindMaxStaleness(long writeBehindMaxStaleness) {
+    this.writeBehindMaxStaleness = writeBehindMaxStaleness;
+  }
+
+  public SessionWriteBehindQueue getWriteBehindQueue() {
+    return writeBehindQueue;
+  }
+
+  public boolean isTrustInvalidations() {
+    return trustInvalidations;
+  }
+
+  /**
+   * Whether cached sessions are served without reloading them after the save interval, relying on the invalidation bus
+   * to drop the ones changed by other nodes. Only has an effect when an invalidation bus is available; a session can
+   * then be stale for as long as the bus takes to deliver a change.
+   */
+  public void setTrustInvalidations(boolean trustInvalidations) {
+    this.trustInvalidations = trustInvalidations;
+  }
+
+  public long getLeaseInterval() {
+    return leaseInterval;
+  }
+
+  /**
+   * Length in seconds of the lease a node holds on the sessions it writes, non positive to disable leases. While the
+   * lease is valid the node serves the session from its cache without reloading it after the save interval; it is
+   * renewed with every write, so it should be longer than the save interval. A node taking a session over makes its
+   * lease invalid with a conditional write, but the previous owner only notices once its own lease ends.
+   */
+  public void setLeaseInterval(long leaseInterval) {
+    this.leaseInterval = leaseInterval;
+  }
+
+  public boolean isLegacyKeyLookup() {
+    return legacyKeyLookup;
+  }
+
+  /**
+   * Whether a session not found under its binary key is looked up under the text key used by earlier versions. On by
+   * default so that sessions persisted by earlier versions survive an upgrade or a rolling deploy. A session found
+   * under its text key keeps being written under it, so this is only safe to switch off, saving the second read of
+   * every session not found, once no session created by an earlier version is in use any more, i.e. once no node runs
+   * an earlier version and the longest lived sessions created before the upgrade have expired or been invalidated.
+   */
+  public void setLegacyKeyLookup(boolean legacyKeyLookup) {
+    this.legacyKeyLookup = legacyKeyLookup;
+  }
+
+  public boolean isTouchWrites() {
+    return touchWrites;
+  }
+
+  /**
+   * Whether saves that only follow an access, with no attribute changed, write just the access fields of the session
+   */
+  public void setTouchWrites(boolean touchWrites) {
+    this.touchWrites = touchWrites;
+  }
+
+  public int getOffHeapCapacity() {
+    return offHeapCapacity;
+  }
+
+  /**
+   * Bytes of direct memory holding sessions evicted from the session cache until they are accessed again, 0 to not
+   * keep evicted sessions
+   */
+  public void setOffHeapCapacity(int offHeapCapacity) {
+    this.offHeapCapacity = offHeapCapacity;
+  }
+
+  /**
+   * Progress of loading the sessions last used on this worker into the cache after start
+   */
+  public enum WarmUpState {
+
+    NOT_STARTED,
+    RUNNING,
+    COMPLETED,
+    /**
+     * Stopped because it ran out of time, failed or the manager stopped
+     */
+    ABANDONED
+  }
+
+  public WarmUpState getWarmUpState() {
+    return warmUpState;
+  }
+
+  /**
+   * Whether the node should take traffic; false while warm-up runs unless the node is ready before warm-up
+   */
+  public boolean isReady() {
+    return isStarted() && (readyBeforeWarmUp || !WarmUpState.RUNNING.equals(warmUpState));
+  }
+
+  public boolean isWarmUp() {
+    return warmUp;
+  }
+
+  /**
+   * Whether the sessions last used on this worker and not yet expired are loaded into the cache in the background on
+   * start, so that returning users after a restart do not all wait for a read of their session
+   */
+  public void setWarmUp(boolean warmUp) {
+    this.warmUp = warmUp;
+  }
+
+  public int getWarmUpRate() {
+    return warmUpRate;
+  }
+
+  /**
+   * Maximum number of sessions loaded per second during warm-up
+   */
+  public void setWarmUpRate(int warmUpRate) {
+    this.warmUpRate = warmUpRate;
+  }
+
+  public int getWarmUpTimeout() {
+    return warmUpTimeout;
+  }
+
+  /**
+   * Seconds after which warm-up is abandoned with whatever it loaded by then
+   */
+  public void setWarmUpTimeout(int warmUpTimeout) {
+    this.warmUpTimeout = warmUpTimeout;
+  }
+
+  public int getWarmUpMaxSessions() {
+    return warmUpMaxSessions;
+  }
+
+  /**
+   * Maximum number of sessions loaded by warm-up, non positive for no limit other than the cache's
+   */
+  public void setWarmUpMaxSessions(int warmUpMaxSessions) {
+    this.warmUpMaxSessions = warmUpMaxSessions;
+  }
+
+  public boolean isReadyBeforeWarmUp() {
+    return readyBeforeWarmUp;
+  }
+
+  /**
+   * Whether the node reports itself ready while warm-up is still running
+   */
+  public void setReadyBeforeWarmUp(boolean readyBeforeWarmUp) {
+    this.readyBeforeWarmUp = readyBeforeWarmUp;
+  }
+
+  /**
+   * Load a scanned session into the cache unless a request got to it first
+   */
+  protected boolean warmUp(SessionData data, long now) {
+    final String clusterId = data.getId().getInClusterId();
+    locks.lock(clusterId);
+    try {
+      if (sessions.getQuiet(clusterId) != null) {
+        return false;
+      }
+      final Session session = new Session(data);
+      session.loadedAt = now;
+      sessions.put(new Element(clusterId, session));
+      session.didActivate();
+      return true;
+    }
+    finally {
+      locks.unlock(clusterId);
+    }
+  }
+
+  private class WarmUp implements Runnable {
+
+    @Override
+    public void run() {
+      final long start = System.currentTimeMillis();
+      final long startNanos = System.nanoTime();
+      final long deadline = start + warmUpTimeout * 1000l;
+      final long nanosPerSession = warmUpRate > 0 ? 1000000000l / warmUpRate : 0;
+      final int limit = warmUpMaxSessions > 0 ? warmUpMaxSessions : Integer.MAX_VALUE;
+      final int maxInMemory = sessions.getCacheConfiguration().getMaxElementsInMemory();
+      final int capacity = maxInMemory > 0 ? maxInMemory : Integer.MAX_VALUE;
+      final SessionScanCriteria criteria = newScanCriteria();
+      criteria.setLastNode(getIdManager().getWorkerName());
+      criteria.setExpiresAfter(start);
+      int loaded = 0;
+      WarmUpState result = WarmUpState.ABANDONED;
+      SessionDataStream stream = null;
+      try {
+        stream = streamSessionData(criteria);
+        int scanned = 0;
+        while (true) {
+          if (Thread.currentThread().isInterrupted() || warmUpThread != Thread.currentThread()) {
+            logger.info("Warm-up stopped with the session manager");
+            break;
+          }
+          if (System.currentTimeMillis() > deadline) {
+            logger.warn("Warm-up abandoned after " + warmUpTimeout + "s");
+            break;
+          }
+          if (loaded >= limit || sessions.getSize() >= capacity || !stream.hasNext()) {
+            result = WarmUpState.COMPLETED;
+            break;
+          }
+          final SessionData data = stream.next();
+          ++scanned;
+          final long now = System.currentTimeMillis();
+          if (data.getExpiryTime() > now && warmUp(data, now)) {
+            ++loaded;
+            Metrics.counter(Metrics.WARM_UP_LOADED).inc();
+          }
+          final long wait = startNanos + scanned * nanosPerSession - System.nanoTime();
+          if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+          }
+        }
+      }
+      catch (InterruptedException ex) {
+        logger.info("Warm-up interrupted");
+      }
+      catch (Exception ex) {
+        logger.warn("Warm-up failed", ex);
+      }
+      finally {
+        if (stream != null) {
+          try {
+            stream.close();
+          }
+          catch (Exception ex) {
+            logger.debug("Could not close warm-up scan", ex);
+          }
+        }
+      }
+      if (WarmUpState.ABANDONED.equals(result)) {
+        Metrics.counter(Metrics.WARM_UP_ABANDONED).inc();
+      }
+      Metrics.time(Metrics.WARM_UP, startNanos);
+      warmUpState = result;
+      logger.info("Warm-up " + result + " with " + loaded + " sessions in " + (System.currentTimeMillis() - start) +
+          "ms");
+    }
+  }
+
+  public long getSessionCacheBytes() {
+    return sessionCacheBytes;
+  }
+
+  /**
+   * Budget for the estimated size of this context's sessions in the shared session cache, 0 to only limit them by
+   * count. Sessions are weighed by the serialized size of their attributes.
+   */
+  public void setSessionCacheBytes(long sessionCacheBytes) {
+    this.sessionCacheBytes = sessionCacheBytes;
+  }
+
   protected SessionDataId getSessionDataId(String inClusterId) throws IllegalStateException {
-    return new SessionDataId(inClusterId, canonicalize(_context.getContextPath()), getVirtualHost(_context));
+    SessionDataId.Context context = dataIdContext;
+    if (context == null) {
+      context = newDataIdContext();
+    }
+    return new SessionDataId(inClusterId, context);
+  }
+
+  protected SessionDataId.Context newDataIdContext() {
+    return new SessionDataId.Context(canonicalize(_context == null ? null : _context.getContextPath()),
+                                     getVirtualHost(_context));
+  }
+
+  /**
+   * Session map streaming from the data scanner. Lookups by key read a single session, {@link #isEmpty()} stops at
+   * the first live session while {@link #size()} scans every session of the context. Iterators of the entry set
+   * close their stream once exhausted; callers stopping early should use {@link #sessionIterator()} and close it.
+   */
+  protected class StreamingSessionMap extends AbstractMap<String, Session> {
+
+    @Override
+    public Session get(Object key) {
+      if (!(key instanceof String)) {
+        return null;
+      }
+      return toSession(loadSession((String) key));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return get(key) != null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+      final SessionEntryIterator iterator = sessionIterator();
+      try {
+        return !iterator.hasNext();
+      }
+      finally {
+        iterator.close();
+      }
+    }
+
+    /**
+     * Iterate the live sessions of the context, the iterator has to be closed unless it is exhausted
+     */
+    public SessionEntryIterator sessionIterator() {
+      return new SessionEntryIterator(streamSessionData(SessionScanCriteria.DEFAULT_CACHING));
+    }
+
+    @Override
+    public Set<Entry<String, Session>> entrySet() {
+      return new AbstractSet<Entry<String, Session>>() {
+
+        @Override
+        public Iterator<Entry<String, Session>> iterator() {
+          return sessionIterator();
+        }
+
+        @Override
+        public boolean isEmpty() {
+          return StreamingSessionMap.this.isEmpty();
+        }
+
+        /**
+         * Scans every session of the context
+         */
+        @Override
+        public int size() {
+          int size = 0;
+          final SessionDataStream stream = streamSessionData(SessionScanCriteria.DEFAULT_CACHING);
+          try {
+            while (stream.hasNext()) {
+              if (toSession(stream.next()) != null) {
+                ++size;
+              }
+            }
+          }
+          finally {
+            closeQuietly(stream);
+          }
+          return size;
+        }
+      };
+    }
+
+    protected Session toSession(SessionData data) {
+      if (data == null || data.getExpiryTime() <= System.currentTimeMillis()) {
+        return null;
+      }
+      //Listing sessions must neither count as cache hits nor keep them from being evicted
+      final Element element = sessions.getQuiet(data.getId().getInClusterId());
+      if (element != null && element.getValue() != null) {
+        return (Session) element.getValue();
+      }
+      return new Session(data);
+    }
+
+    public class SessionEntryIterator implements Iterator<Entry<String, Session>>, Closeable {
+
+      private final SessionDataStream stream;
+      private Entry<String, Session> next;
+      private boolean closed;
+
+      SessionEntryIterator(SessionDataStream stream) {
+        this.stream = stream;
+      }
+
+      @Override
+      public boolean hasNext() {
+        while (next == null && !closed && stream.hasNext()) {
+          final Session session = toSession(stream.next());
+          if (session != null) {
+            next = new SimpleImmutableEntry<String, Session>(session.getClusterId(), session);
+          }
+        }
+        if (next == null) {
+          close();
+        }
+        return next != null;
+      }
+
+      @Override
+      public void close() {
+        if (!closed) {
+          closed = true;
+          closeQuietly(stream);
+        }
+      }
+
+      @Override
+      public Entry<String, Session> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final Entry<String, Session> current = next;
+        next = null;
+        return current;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Read only view");
+      }
+    }
+  }
+
+  protected void closeQuietly(SessionDataStream stream) {
+    try {
+      stream.close();
+    }
+    catch (IOException ex) {
+      logger.warn("Could not close session data stream", ex);
+    }
   }
 
   public class Session extends AbstractSessionManager.Session {
 
     private SessionData sessionData;
     private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private final AtomicBoolean created = new AtomicBoolean(false);
+    /**
+     * When the session was read by warm-up, which makes it as fresh as a reload at that time
+     */
+    private volatile long loadedAt;
 
     public Session(HttpServletRequest request) {
       super(request);
@@ -325,32 +1658,92 @@ public class SmartSessionManager extends AbstractSessionManager {
     Session(long accessed, SessionData sessionData) {
       super(sessionData.getCreated(), accessed, sessionData.getId().getInClusterId());
       this.sessionData = sessionData;
-      this.sessionData.setLastNode(getIdManager().getWorkerName());
       _attributes.putAll(sessionData.getAttributeMap());
       access(accessed);
     }
 
     @Override
     protected void didActivate() {
+      resolveAttributes(false);
       super.didActivate();
     }
 
     @Override
     protected void willPassivate() {
+      resolveAttributes(false);
       super.willPassivate();
     }
 
+    boolean isOwnedBy(SmartSessionManager manager) {
+      return SmartSessionManager.this == manager;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      final Object value = super.getAttribute(name);
+      if (value instanceof SerializedAttribute) {
+        return resolveAttribute(name, (SerializedAttribute) value);
+      }
+      return value;
+    }
+
+    @Override
+    public void invalidate() throws IllegalStateException {
+      //Binding listeners have to be notified with the actual values
+      resolveAttributes(true);
+      super.invalidate();
+    }
+
+    /**
+     * Decode the still serialized attributes, all of them or only those that might be session listeners
+     */
+    protected synchronized void resolveAttributes(boolean all) {
+      for (Map.Entry<String, Object> attribute : _attributes.entrySet()) {
+        final Object value = attribute.getValue();
+        if (value instanceof SerializedAttribute && (all || !((SerializedAttribute) value).isPlainValue())) {
+          attribute.setValue(((SerializedAttribute) value).getValue());
+        }
+      }
+    }
+
+    protected synchronized Object resolveAttribute(String name, SerializedAttribute attribute) {
+      final Object value = attribute.getValue();
+      if (_attributes.get(name) == attribute) {
+        _attributes.put(name, value);
+      }
+      return value;
+    }
+
+    /**
+     * Attribute listeners are told the previous value of a replaced or removed attribute, so it has to be decoded
+     */
+    private void resolveReplaced(String name) {
+      final Object old;
+      synchronized (this) {
+        old = _attributes.get(name);
+      }
+      if (old instanceof SerializedAttribute && (_sessionAttributeListeners != null || !((SerializedAttribute) old).
+          isPlainValue())) {
+        resolveAttribute(name, (SerializedAttribute) old);
+      }
+    }
+
     @Override
     protected void complete() {
       super.complete();
       if (dirty.get()) {
         willPassivate();
-        lock.lock();
-        try {
-          updateSession(this);
-        }
-        finally {
-          lock.unlock();
+        renewLease(sessionData);
+        final SessionWriteBehindQueue queue = writeBehindQueue;
+        if (queue == null || !queue.offer(sessionData)) {
+          final String clusterId = getClusterId();
+          locks.lock(clusterId);
+          try {
+            updateSession(this);
+          }
+          finally {
+            locks.unlock(clusterId);
+          }
         }
         didActivate();
         dirty.compareAndSet(true, false);
@@ -364,6 +1757,7 @@ public class SmartSessionManager extends AbstractSessionManager {
 
     @Override
     public void setAttribute(String name, Object value) {
+      resolveReplaced(name);
       super.setAttribute(name, value);
       sessionData.setAttribute(name, value);
       dirty.compareAndSet(false, true);
@@ -371,6 +1765,7 @@ public class SmartSessionManager extends AbstractSessionManager {
 
     @Override
     public void removeAttribute(String name) {
+      resolveReplaced(name);
       super.removeAttribute(name);
       sessionData.removeAttribute(name);
       dirty.compareAndSet(false, true);
@@ -384,10 +1779,9 @@ public class SmartSessionManager extends AbstractSessionManager {
     @Override
     protected final void access(long time) {
       super.access(time);
-      sessionData.setLastAccessed(sessionData.getAccessed());
-      sessionData.setAccessed(time);
-      sessionData.setExpiryTime(_maxIdleMs < 0 ? DEFAULT_EXPIRY_TIME : (time + _maxIdleMs));
-      if ((sessionData.getAccessed() - sessionData.getLastSaved()) >= (getSaveInterval() * 1000)) {
+      final SessionData.State state = sessionData.access(time, _maxIdleMs < 0 ? DEFAULT_EXPIRY_TIME :
+          (time + _maxIdleMs));
+      if ((state.getAccessed() - state.getLastSaved()) >= (getSaveInterval() * 1000)) {
         dirty.compareAndSet(false, true);
       }
     }
@@ -398,6 +1792,18 @@ public class SmartSessionManager extends AbstractSessionManager {
     }
   }
 
+  private static class SessionWeigher implements WeightedCacheEvictor.Weigher {
+
+    @Override
+    public long weigh(Element element) {
+      final Object value = element.getObjectValue();
+      if (value instanceof Session) {
+        return SESSION_OVERHEAD_BYTES + ((Session) value).sessionData.getEstimatedSize();
+      }
+      return SESSION_OVERHEAD_BYTES;
+    }
+  }
+
   private String getVirtualHost(ContextHandler.Context context) {
     String vhost = "0.0.0.0";
 
@@ -0,0 +1,112 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed size table of locks where a key is always mapped to the same lock. Different keys usually end up on
+ * different stripes so operations on different sessions do not block each other, while memory stays bounded by the
+ * number of stripes no matter how many session ids come and go. When given a metric name the time spent waiting for
+ * and holding the locks is recorded as histograms.
+ *
+ * @author imyousuf
+ */
+public class StripedLock {
+
+  public static final int DEFAULT_STRIPES = 256;
+  private final ReentrantLock[] locks;
+  private final long[] acquiredAt;
+  private final int mask;
+  private final String waitMetric;
+  private final String holdMetric;
+
+  public StripedLock() {
+    this(DEFAULT_STRIPES);
+  }
+
+  public StripedLock(int stripes) {
+    this(stripes, null);
+  }
+
+  public StripedLock(int stripes, String metricName) {
+    if (stripes <= 0) {
+      throw new IllegalArgumentException("Stripes must be positive");
+    }
+    int size = 1;
+    while (size < stripes) {
+      size <<= 1;
+    }
+    locks = new ReentrantLock[size];
+    for (int i = 0; i < size; ++i) {
+      locks[i] = new ReentrantLock();
+    }
+    mask = size - 1;
+    acquiredAt = new long[size];
+    waitMetric = metricName == null ? null : metricName + Metrics.LOCK_WAIT_SUFFIX;
+    holdMetric = metricName == null ? null : metricName + Metrics.LOCK_HOLD_SUFFIX;
+  }
+
+  public ReentrantLock getLock(Object key) {
+    return locks[indexFor(key)];
+  }
+
+  public void lock(Object key) {
+    final int index = indexFor(key);
+    final ReentrantLock lock = locks[index];
+    if (waitMetric == null) {
+      lock.lock();
+      return;
+    }
+    final long start = System.nanoTime();
+    lock.lock();
+    final long acquired = System.nanoTime();
+    Metrics.histogram(waitMetric).update(acquired - start);
+    if (lock.getHoldCount() == 1) {
+      //Only guarded by the lock itself, read back by the same thread on its outermost unlock
+      acquiredAt[index] = acquired;
+    }
+  }
+
+  public void unlock(Object key) {
+    final int index = indexFor(key);
+    final ReentrantLock lock = locks[index];
+    if (holdMetric != null && lock.getHoldCount() == 1) {
+      Metrics.histogram(holdMetric).update(System.nanoTime() - acquiredAt[index]);
+    }
+    lock.unlock();
+  }
+
+  public int getStripes() {
+    return locks.length;
+  }
+
+  protected int indexFor(Object key) {
+    if (key == null) {
+      return 0;
+    }
+    int h = key.hashCode();
+    //Spread the bits so that keys differing only in higher bits do not collide
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return h & mask;
+  }
+}
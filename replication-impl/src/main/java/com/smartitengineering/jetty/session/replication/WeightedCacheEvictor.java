@@ -0,0 +1,256 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import com.smartitengineering.jetty.session.replication.metrics.Gauge;
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+
+/**
+ * Keeps the estimated size of a cache's entries within a byte budget, on top of the cache's own element count limit.
+ * When over budget it samples a few entries and removes the one with the lowest hits per byte, discounted by how long
+ * it has been idle, so that large and cold entries go first while small or frequently used ones stay.
+ * <p>
+ * Several evictors may share one cache, each keeping only the entries it {@link #accepts(Element) accepts} within its
+ * own budget; they then need distinct names so that their gauges do not collide.
+ *
+ * @author imyousuf
+ */
+public class WeightedCacheEvictor extends CacheEventListenerAdapter {
+
+  public static final int DEFAULT_SAMPLE_SIZE = 8;
+
+  /**
+   * Estimates the bytes retained by a cache entry.
+   */
+  public interface Weigher {
+
+    long weigh(Element element);
+  }
+  private final Ehcache cache;
+  private final String prefix;
+  private final long budget;
+  private final int sampleSize;
+  private final Weigher weigher;
+  private final ConcurrentMap<Object, Long> weights = new ConcurrentHashMap<Object, Long>();
+  private final AtomicLong totalWeight = new AtomicLong();
+  private Iterator<Object> hand;
+
+  public WeightedCacheEvictor(Ehcache cache, long budget, Weigher weigher) {
+    this(cache, budget, DEFAULT_SAMPLE_SIZE, weigher);
+  }
+
+  public WeightedCacheEvictor(Ehcache cache, long budget, int sampleSize, Weigher weigher) {
+    this(cache, null, budget, sampleSize, weigher);
+  }
+
+  /**
+   * @param name Distinguishes the metrics of this evictor from those of other evictors on the same cache, may be null
+   */
+  public WeightedCacheEvictor(Ehcache cache, String name, long budget, int sampleSize, Weigher weigher) {
+    if (cache == null || weigher == null) {
+      throw new IllegalArgumentException("Cache and weigher are required");
+    }
+    if (budget <= 0) {
+      throw new IllegalArgumentException("Budget has to be positive");
+    }
+    this.cache = cache;
+    this.prefix = "cache." + cache.getName() + "." + (name == null ? "" : name + ".");
+    this.budget = budget;
+    this.sampleSize = sampleSize > 0 ? sampleSize : DEFAULT_SAMPLE_SIZE;
+    this.weigher = weigher;
+  }
+
+  public void register() {
+    cache.getCacheEventNotificationService().registerListener(this);
+    Metrics.getRegistry().register(prefix + "weightBytes", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getTotalWeight();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "budgetBytes", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return budget;
+      }
+    });
+  }
+
+  public void unregister() {
+    cache.getCacheEventNotificationService().unregisterListener(this);
+    Metrics.getRegistry().unregister(prefix + "weightBytes");
+    Metrics.getRegistry().unregister(prefix + "budgetBytes");
+    weights.clear();
+    totalWeight.set(0);
+  }
+
+  public long getBudget() {
+    return budget;
+  }
+
+  public long getTotalWeight() {
+    return totalWeight.get();
+  }
+
+  /**
+   * Weigh an entry again after it changed in place, and evict if that took the cache over budget
+   */
+  public void update(Object key) {
+    final Element element = cache.getQuiet(key);
+    if (element != null) {
+      notifyElementUpdated(cache, element);
+    }
+  }
+
+  @Override
+  public void notifyElementPut(Ehcache cache, Element element) {
+    if (!accepts(element)) {
+      return;
+    }
+    Metrics.histogram(prefix + "entryBytes").update(weigh(element));
+    enforce();
+  }
+
+  @Override
+  public void notifyElementUpdated(Ehcache cache, Element element) {
+    if (!accepts(element)) {
+      forget(element.getObjectKey());
+      return;
+    }
+    weigh(element);
+    enforce();
+  }
+
+  @Override
+  public void notifyElementRemoved(Ehcache cache, Element element) {
+    forget(element.getObjectKey());
+  }
+
+  @Override
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    forget(element.getObjectKey());
+  }
+
+  @Override
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    forget(element.getObjectKey());
+  }
+
+  @Override
+  public void notifyRemoveAll(Ehcache cache) {
+    weights.clear();
+    totalWeight.set(0);
+  }
+
+  /**
+   * Whether this evictor weighs and may evict the entry; entries it does not accept are left to the cache's own limit
+   */
+  protected boolean accepts(Element element) {
+    return true;
+  }
+
+  protected long weigh(Element element) {
+    final long weight = weigher.weigh(element);
+    final Long previous = weights.put(element.getObjectKey(), weight);
+    totalWeight.addAndGet(weight - (previous == null ? 0 : previous.longValue()));
+    return weight;
+  }
+
+  protected void forget(Object key) {
+    final Long previous = weights.remove(key);
+    if (previous != null) {
+      totalWeight.addAndGet(-previous.longValue());
+    }
+  }
+
+  protected void enforce() {
+    if (totalWeight.get() <= budget) {
+      return;
+    }
+    synchronized (this) {
+      while (totalWeight.get() > budget && !weights.isEmpty()) {
+        final Element victim = selectVictim();
+        if (victim == null) {
+          return;
+        }
+        final Long weight = weights.get(victim.getObjectKey());
+        evict(victim);
+        forget(victim.getObjectKey());
+        Metrics.counter(prefix + "weightEvictions").inc();
+        Metrics.counter(prefix + "weightEvictedBytes").add(weight == null ? 0 : weight.longValue());
+      }
+    }
+  }
+
+  /**
+   * Pick the entry with the least value out of the next few entries, moving round the cache like a clock hand
+   */
+  protected Element selectVictim() {
+    final long now = System.currentTimeMillis();
+    Element victim = null;
+    double lowest = Double.MAX_VALUE;
+    int visited = 0;
+    boolean restarted = false;
+    while (visited < sampleSize) {
+      if (hand == null || !hand.hasNext()) {
+        if (restarted) {
+          break;
+        }
+        hand = weights.keySet().iterator();
+        restarted = true;
+        if (!hand.hasNext()) {
+          break;
+        }
+      }
+      final Object key = hand.next();
+      final Element element = cache.getQuiet(key);
+      if (element == null || !accepts(element)) {
+        forget(key);
+        continue;
+      }
+      ++visited;
+      final double value = value(element, weigh(element), now);
+      if (value < lowest) {
+        lowest = value;
+        victim = element;
+      }
+    }
+    return victim;
+  }
+
+  protected double value(Element element, long weight, long now) {
+    final long lastUsed = Math.max(element.getLastAccessTime(), element.getCreationTime());
+    final double idleSeconds = Math.max(0, now - lastUsed) / 1000d;
+    return (element.getHitCount() + 1d) / (Math.max(1, weight) * (1d + idleSeconds));
+  }
+
+  protected void evict(Element element) {
+    cache.remove(element.getObjectKey());
+  }
+}
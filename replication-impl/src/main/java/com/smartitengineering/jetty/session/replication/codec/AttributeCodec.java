@@ -0,0 +1,35 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.codec;
+
+import com.smartitengineering.jetty.session.replication.AttributeDecoder;
+
+/**
+ * Converts a single session attribute value to and from the bytes kept by the session store. Every encoded value has
+ * to start with a format header byte so that codecs can tell their own payload apart from those written by other
+ * codecs.
+ * Implementations must be thread safe.
+ *
+ * @author imyousuf
+ */
+public interface AttributeCodec extends AttributeDecoder {
+
+  byte[] encode(Object value);
+}
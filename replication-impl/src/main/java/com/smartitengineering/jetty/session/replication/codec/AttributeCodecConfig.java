@@ -0,0 +1,85 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.codec;
+
+import java.util.Properties;
+
+/**
+ * Attribute codec settings read from the DI properties, shared by the persistence modules so that every store
+ * encodes sessions alike.
+ *
+ * @author imyousuf
+ */
+public class AttributeCodecConfig {
+
+  public static final String ATTRIBUTE_CODEC_PROP = "com.smartitengineering.jetty.session.replication.attributeCodec";
+  public static final String COMPRESSION_PROP = "com.smartitengineering.jetty.session.replication.compression";
+  public static final String COMPRESSION_THRESHOLD_PROP =
+      "com.smartitengineering.jetty.session.replication.compression.threshold";
+  public static final String COMPRESSION_LEVEL_PROP =
+      "com.smartitengineering.jetty.session.replication.compression.level";
+  private final Class<? extends AttributeCodec> codecClass;
+  private final CompressingAttributeCodec.Compression compression;
+  private final int compressionThreshold, compressionLevel;
+
+  public AttributeCodecConfig(Properties properties) {
+    final String codecClassName = properties.getProperty(ATTRIBUTE_CODEC_PROP, CompactAttributeCodec.class.getName());
+    try {
+      codecClass = Class.forName(codecClassName.trim()).asSubclass(AttributeCodec.class);
+    }
+    catch (Exception ex) {
+      throw new IllegalArgumentException("Invalid attribute codec " + codecClassName, ex);
+    }
+    compression = CompressingAttributeCodec.Compression.valueOf(properties.getProperty(COMPRESSION_PROP, "NONE").trim().
+        toUpperCase());
+    compressionThreshold = Integer.parseInt(properties.getProperty(COMPRESSION_THRESHOLD_PROP, String.valueOf(
+        CompressingAttributeCodec.DEFAULT_THRESHOLD)).trim());
+    compressionLevel = Integer.parseInt(properties.getProperty(COMPRESSION_LEVEL_PROP, "-1").trim());
+  }
+
+  /**
+   * Codec encoding the attributes, wrapped by the compressing codec
+   */
+  public Class<? extends AttributeCodec> getCodecClass() {
+    return codecClass;
+  }
+
+  public CompressingAttributeCodec.Compression getCompression() {
+    return compression;
+  }
+
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * Create the compressing codec with its metrics registered
+   */
+  public CompressingAttributeCodec newCompressingCodec(AttributeCodec delegate) {
+    final CompressingAttributeCodec codec = new CompressingAttributeCodec(delegate, compression, compressionThreshold,
+                                                                          compressionLevel);
+    codec.registerMetrics();
+    return codec;
+  }
+}
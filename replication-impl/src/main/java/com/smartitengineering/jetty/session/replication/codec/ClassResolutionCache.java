@@ -0,0 +1,60 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.codec;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches class lookups per class loader. Both the loaders and the classes are weakly referenced so that a web
+ * application being undeployed is not pinned in memory by the cache.
+ *
+ * @author imyousuf
+ */
+public class ClassResolutionCache {
+
+  private final Map<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>> caches =
+      new WeakHashMap<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>>();
+
+  public Class<?> resolve(String name, ClassLoader loader) throws ClassNotFoundException {
+    final ConcurrentMap<String, WeakReference<Class<?>>> cache = getCache(loader);
+    WeakReference<Class<?>> ref = cache.get(name);
+    Class<?> clazz = ref == null ? null : ref.get();
+    if (clazz == null) {
+      clazz = Class.forName(name, false, loader);
+      cache.put(name, new WeakReference<Class<?>>(clazz));
+    }
+    return clazz;
+  }
+
+  private ConcurrentMap<String, WeakReference<Class<?>>> getCache(ClassLoader loader) {
+    synchronized (caches) {
+      ConcurrentMap<String, WeakReference<Class<?>>> cache = caches.get(loader);
+      if (cache == null) {
+        cache = new ConcurrentHashMap<String, WeakReference<Class<?>>>();
+        caches.put(loader, cache);
+      }
+      return cache;
+    }
+  }
+}
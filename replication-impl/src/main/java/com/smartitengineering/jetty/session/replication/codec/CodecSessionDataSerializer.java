@@ -0,0 +1,127 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.codec;
+
+import com.smartitengineering.jetty.session.replication.SerializedAttribute;
+import com.smartitengineering.jetty.session.replication.SessionData;
+import com.smartitengineering.jetty.session.replication.SessionDataId;
+import com.smartitengineering.jetty.session.replication.SessionDataSerializer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serializes session data with the attribute codec used for the session data table. Attributes are kept in their
+ * encoded form when read back, so they are only decoded once accessed after the session was promoted on heap.
+ *
+ * @author imyousuf
+ */
+public class CodecSessionDataSerializer implements SessionDataSerializer {
+
+  private static final byte FORMAT_VERSION = 1;
+  private final AttributeCodec codec;
+
+  public CodecSessionDataSerializer(AttributeCodec codec) {
+    this.codec = codec;
+  }
+
+  @Override
+  public byte[] serialize(SessionData data) throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    final DataOutputStream output = new DataOutputStream(bytes);
+    output.writeByte(FORMAT_VERSION);
+    final byte[] id = data.getId().getBytes();
+    output.writeInt(id.length);
+    output.write(id);
+    final SessionData.State state = data.getState();
+    output.writeUTF(state.getLastNode());
+    output.writeLong(state.getCreated());
+    output.writeLong(state.getAccessed());
+    output.writeLong(state.getLastAccessed());
+    output.writeLong(state.getMaxIdleMs());
+    output.writeLong(state.getCookieSet());
+    output.writeLong(state.getLastSaved());
+    output.writeLong(state.getExpiryTime());
+    output.writeLong(state.getLeaseExpiry());
+    final Long version = data.getVersion();
+    output.writeLong(version == null ? -1 : version.longValue());
+    final Map attributes = new HashMap(data.getAttributeMap());
+    output.writeInt(attributes.size());
+    for (Object entry : attributes.entrySet()) {
+      final Map.Entry attribute = (Map.Entry) entry;
+      final Object value = attribute.getValue();
+      final byte[] encoded;
+      if (value instanceof SerializedAttribute && !((SerializedAttribute) value).isDecoded()) {
+        encoded = ((SerializedAttribute) value).getData();
+      }
+      else {
+        encoded = codec.encode(SerializedAttribute.resolve(value));
+      }
+      output.writeUTF(String.valueOf(attribute.getKey()));
+      output.writeInt(encoded.length);
+      output.write(encoded);
+    }
+    output.flush();
+    return bytes.toByteArray();
+  }
+
+  @Override
+  public SessionData deserialize(byte[] bytes) throws Exception {
+    final DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+    final byte format = input.readByte();
+    if (format != FORMAT_VERSION) {
+      throw new IllegalArgumentException("Unknown session data format " + format);
+    }
+    final byte[] idBytes = new byte[input.readInt()];
+    input.readFully(idBytes);
+    final SessionDataId id = new SessionDataId();
+    //Reads up to the end of the stream it is given
+    id.readExternal(new DataInputStream(new ByteArrayInputStream(idBytes)));
+    final SessionData data = new SessionData(id, input.readUTF());
+    data.setCreated(input.readLong());
+    data.setAccessed(input.readLong());
+    data.setLastAccessed(input.readLong());
+    data.setMaxIdleMs(input.readLong());
+    data.setCookieSet(input.readLong());
+    data.setLastSaved(input.readLong());
+    data.setExpiryTime(input.readLong());
+    data.setLeaseExpiry(input.readLong());
+    final long version = input.readLong();
+    data.setVersion(version < 0 ? null : Long.valueOf(version));
+    final int size = input.readInt();
+    final Map attributes = new HashMap(size);
+    final Map<String, Integer> sizes = new HashMap<String, Integer>(size);
+    for (int i = 0; i < size; ++i) {
+      final String name = input.readUTF();
+      final byte[] encoded = new byte[input.readInt()];
+      input.readFully(encoded);
+      attributes.put(name, new SerializedAttribute(encoded, codec));
+      sizes.put(name, encoded.length);
+    }
+    data.setAttributeMap(attributes);
+    for (Map.Entry<String, Integer> attributeSize : sizes.entrySet()) {
+      data.setAttributeSize(attributeSize.getKey(), attributeSize.getValue());
+    }
+    return data;
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang.SerializationException;
+
+/**
+ * Compact binary attribute codec. Strings, boxed primitives, byte arrays and dates are written with a one byte type
+ * tag followed by their raw value; further types can be registered with a {@link TypeHandler}. Any other value is
+ * handed to the Java serialization codec, which is also used to read its payloads and legacy rows.
+ *
+ * @author imyousuf
+ */
+public class CompactAttributeCodec implements AttributeCodec {
+
+  public static final byte FORMAT_COMPACT = 0x01;
+  public static final int MIN_CUSTOM_TAG = 64;
+  private static final byte TAG_NULL = 0;
+  private static final byte TAG_STRING = 1;
+  private static final byte TAG_INTEGER = 2;
+  private static final byte TAG_LONG = 3;
+  private static final byte TAG_BOOLEAN = 4;
+  private static final byte TAG_DOUBLE = 5;
+  private static final byte TAG_FLOAT = 6;
+  private static final byte TAG_SHORT = 7;
+  private static final byte TAG_BYTE = 8;
+  private static final byte TAG_CHARACTER = 9;
+  private static final byte TAG_BYTE_ARRAY = 10;
+  private static final byte TAG_DATE = 11;
+  private static final int HEADER_LENGTH = 2;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private final AttributeCodec fallback;
+  private final Map<Class<?>, Registration> typeRegistry = new ConcurrentHashMap<Class<?>, Registration>();
+  private final Registration[] tagRegistry = new Registration[256];
+
+  public CompactAttributeCodec() {
+    this(new JavaSerializationAttributeCodec());
+  }
+
+  public CompactAttributeCodec(AttributeCodec fallback) {
+    this.fallback = fallback;
+  }
+
+  /**
+   * Register a handler for a type not known to this codec. The tag is persisted with every value so it must never be
+   * reused for a different type once data has been written.
+   */
+  public synchronized void register(int tag, Class<?> type, TypeHandler handler) {
+    if (tag < MIN_CUSTOM_TAG || tag > 255) {
+      throw new IllegalArgumentException("Custom tags must be between " + MIN_CUSTOM_TAG + " and 255");
+    }
+    if (tagRegistry[tag] != null) {
+      throw new IllegalArgumentException("Tag " + tag + " already registered");
+    }
+    final Registration registration = new Registration((byte) tag, handler);
+    tagRegistry[tag] = registration;
+    typeRegistry.put(type, registration);
+  }
+
+  @Override
+  public byte[] encode(Object value) {
+    if (value == null) {
+      return header(TAG_NULL, 0).array();
+    }
+    final Class<?> type = value.getClass();
+    if (type == String.class) {
+      final byte[] utf8 = ((String) value).getBytes(UTF_8);
+      return header(TAG_STRING, utf8.length).put(utf8).array();
+    }
+    if (type == Integer.class) {
+      return header(TAG_INTEGER, 4).putInt(((Integer) value).intValue()).array();
+    }
+    if (type == Long.class) {
+      return header(TAG_LONG, 8).putLong(((Long) value).longValue()).array();
+    }
+    if (type == Boolean.class) {
+      return header(TAG_BOOLEAN, 1).put((byte) (((Boolean) value).booleanValue() ? 1 : 0)).array();
+    }
+    if (type == Double.class) {
+      return header(TAG_DOUBLE, 8).putDouble(((Double) value).doubleValue()).array();
+    }
+    if (type == Float.class) {
+      return header(TAG_FLOAT, 4).putFloat(((Float) value).floatValue()).array();
+    }
+    if (type == Short.class) {
+      return header(TAG_SHORT, 2).putShort(((Short) value).shortValue()).array();
+    }
+    if (type == Byte.class) {
+      return header(TAG_BYTE, 1).put(((Byte) value).byteValue()).array();
+    }
+    if (type == Character.class) {
+      return header(TAG_CHARACTER, 2).putChar(((Character) value).charValue()).array();
+    }
+    if (type == byte[].class) {
+      final byte[] bytes = (byte[]) value;
+      return header(TAG_BYTE_ARRAY, bytes.length).put(bytes).array();
+    }
+    if (type == Date.class) {
+      return header(TAG_DATE, 8).putLong(((Date) value).getTime()).array();
+    }
+    final Registration registration = typeRegistry.get(type);
+    if (registration != null) {
+      return encodeCustom(registration, value);
+    }
+    return fallback.encode(value);
+  }
+
+  @Override
+  public Object decode(byte[] data) {
+    if (data == null || data.length == 0) {
+      throw new IllegalArgumentException("The byte[] must not be null or empty");
+    }
+    if (data[0] != FORMAT_COMPACT) {
+      return fallback.decode(data);
+    }
+    final ByteBuffer buffer = ByteBuffer.wrap(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+    final int tag = data[1] & 0xFF;
+    switch (tag) {
+      case TAG_NULL:
+        return null;
+      case TAG_STRING:
+        return new String(data, HEADER_LENGTH, data.length - HEADER_LENGTH, UTF_8);
+      case TAG_INTEGER:
+        return Integer.valueOf(buffer.getInt());
+      case TAG_LONG:
+        return Long.valueOf(buffer.getLong());
+      case TAG_BOOLEAN:
+        return Boolean.valueOf(buffer.get() != 0);
+      case TAG_DOUBLE:
+        return Double.valueOf(buffer.getDouble());
+      case TAG_FLOAT:
+        return Float.valueOf(buffer.getFloat());
+      case TAG_SHORT:
+        return Short.valueOf(buffer.getShort());
+      case TAG_BYTE:
+        return Byte.valueOf(buffer.get());
+      case TAG_CHARACTER:
+        return Character.valueOf(buffer.getChar());
+      case TAG_BYTE_ARRAY: {
+        byte[] bytes = new byte[data.length - HEADER_LENGTH];
+        System.arraycopy(data, HEADER_LENGTH, bytes, 0, bytes.length);
+        return bytes;
+      }
+      case TAG_DATE:
+        return new Date(buffer.getLong());
+      default:
+        return decodeCustom(tag, data);
+    }
+  }
+
+  @Override
+  public boolean isPlainValue(byte[] data) {
+    if (data == null || data.length == 0) {
+      return false;
+    }
+    if (data[0] != FORMAT_COMPACT) {
+      return fallback.isPlainValue(data);
+    }
+    return data.length >= HEADER_LENGTH && (data[1] & 0xFF) < MIN_CUSTOM_TAG;
+  }
+
+  private ByteBuffer header(byte tag, int payloadLength) {
+    return ByteBuffer.allocate(HEADER_LENGTH + payloadLength).put(FORMAT_COMPACT).put(tag);
+  }
+
+  private byte[] encodeCustom(Registration registration, Object value) {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+      baos.write(FORMAT_COMPACT);
+      baos.write(registration.tag);
+      DataOutputStream out = new DataOutputStream(baos);
+      registration.handler.write(value, out);
+      out.flush();
+      return baos.toByteArray();
+    }
+    catch (IOException ex) {
+      throw new SerializationException(ex);
+    }
+  }
+
+  private Object decodeCustom(int tag, byte[] data) {
+    final Registration registration = tagRegistry[tag];
+    if (registration == null) {
+      throw new SerializationException("No type registered for tag " + tag);
+    }
+    try {
+      return registration.handler.read(new DataInputStream(new ByteArrayInputStream(data, HEADER_LENGTH,
+                                                                                    data.length - HEADER_LENGTH)));
+    }
+    catch (IOException ex) {
+      throw new SerializationException(ex);
+    }
+  }
+
+  /**
+   * Writes and reads values of a registered type
+   */
+  public static interface TypeHandler {
+
+    void write(Object value, DataOutput output) throws IOException;
+
+    Object read(DataInput input) throws IOException;
+  }
+
+  private static class Registration {
+
+    private final byte tag;
+    private final TypeHandler handler;
+
+    Registration(byte tag, TypeHandler handler) {
+      this.tag = tag;
+      this.handler = handler;
+    }
+  }
+}
@@ -0,0 +1,312 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.codec;
+
+import com.smartitengineering.jetty.session.replication.metrics.Gauge;
+import com.smartitengineering.jetty.session.replication.metrics.Metrics;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.commons.lang.SerializationException;
+
+/**
+ * Codec decorator compressing encoded attributes larger than a threshold. Compressed payloads start with their own
+ * marker byte followed by the uncompressed length, so they can coexist with uncompressed ones and are always read
+ * back, even once compression is turned off. Deflaters, inflaters and scratch buffers are reused per thread; a scratch
+ * buffer grown for a large payload is only kept if it stays within {@link #MAX_RETAINED_BUFFER} bytes.
+ * <p>
+ * Compression and decompression time is measured as CPU time of the calling thread. Where the JVM does not support
+ * thread CPU time it falls back to wall clock time, which then includes any time the thread was not scheduled; see
+ * {@link #isCpuTimeMeasured()}.
+ *
+ * @author imyousuf
+ */
+public class CompressingAttributeCodec implements AttributeCodec {
+
+  public static final byte FORMAT_DEFLATE = 0x10;
+  public static final int DEFAULT_THRESHOLD = 1024;
+  public static final int MAX_RETAINED_BUFFER = 64 * 1024;
+  private static final int INITIAL_BUFFER = 4096;
+  private static final int HEADER_LENGTH = 5;
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+  private static final boolean CPU_TIME = enableCpuTime();
+  private final AttributeCodec delegate;
+  private final Compression compression;
+  private final int threshold;
+  private final int level;
+  private final ThreadLocal<Deflater> deflaters;
+  private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater();
+    }
+  };
+  private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+
+    @Override
+    protected byte[] initialValue() {
+      return new byte[INITIAL_BUFFER];
+    }
+  };
+  private final AtomicLong compressedCount = new AtomicLong();
+  private final AtomicLong uncompressedCount = new AtomicLong();
+  private final AtomicLong decompressedCount = new AtomicLong();
+  private final AtomicLong bytesBeforeCompression = new AtomicLong();
+  private final AtomicLong bytesAfterCompression = new AtomicLong();
+  private final AtomicLong compressionCpuNanos = new AtomicLong();
+  private final AtomicLong decompressionCpuNanos = new AtomicLong();
+
+  public CompressingAttributeCodec(AttributeCodec delegate, Compression compression, Integer threshold,
+                                   Integer level) {
+    this.delegate = delegate;
+    this.compression = compression == null ? Compression.NONE : compression;
+    this.threshold = threshold == null || threshold.intValue() < 0 ? DEFAULT_THRESHOLD : threshold.intValue();
+    this.level = level == null ? Deflater.DEFAULT_COMPRESSION : level.intValue();
+    this.deflaters = new ThreadLocal<Deflater>() {
+
+      @Override
+      protected Deflater initialValue() {
+        return new Deflater(CompressingAttributeCodec.this.level);
+      }
+    };
+  }
+
+  @Override
+  public byte[] encode(Object value) {
+    final byte[] encoded = delegate.encode(value);
+    if (compression == Compression.NONE || encoded.length < threshold) {
+      uncompressedCount.incrementAndGet();
+      return encoded;
+    }
+    final long start = currentNanos();
+    final Deflater deflater = deflaters.get();
+    deflater.reset();
+    deflater.setInput(encoded);
+    deflater.finish();
+    byte[] buffer = buffers.get();
+    int length = HEADER_LENGTH;
+    while (!deflater.finished()) {
+      if (length == buffer.length) {
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        if (buffer.length <= MAX_RETAINED_BUFFER) {
+          buffers.set(buffer);
+        }
+      }
+      length += deflater.deflate(buffer, length, buffer.length - length);
+    }
+    compressionCpuNanos.addAndGet(currentNanos() - start);
+    if (length >= encoded.length) {
+      //Not worth it, keep the uncompressed form
+      uncompressedCount.incrementAndGet();
+      return encoded;
+    }
+    ByteBuffer.wrap(buffer).put(FORMAT_DEFLATE).putInt(encoded.length);
+    final byte[] compressed = Arrays.copyOf(buffer, length);
+    compressedCount.incrementAndGet();
+    bytesBeforeCompression.addAndGet(encoded.length);
+    bytesAfterCompression.addAndGet(compressed.length);
+    return compressed;
+  }
+
+  @Override
+  public Object decode(byte[] data) {
+    if (data == null || data.length == 0 || data[0] != FORMAT_DEFLATE) {
+      return delegate.decode(data);
+    }
+    final long start = currentNanos();
+    final int length = ByteBuffer.wrap(data, 1, 4).getInt();
+    final byte[] encoded = new byte[length];
+    final Inflater inflater = inflaters.get();
+    inflater.reset();
+    inflater.setInput(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+    try {
+      int read = 0;
+      while (read < length && !inflater.finished()) {
+        final int count = inflater.inflate(encoded, read, length - read);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        read += count;
+      }
+      if (read != length) {
+        throw new SerializationException("Truncated compressed attribute, expected " + length + " got " + read);
+      }
+    }
+    catch (DataFormatException ex) {
+      throw new SerializationException(ex);
+    }
+    decompressionCpuNanos.addAndGet(currentNanos() - start);
+    decompressedCount.incrementAndGet();
+    return delegate.decode(encoded);
+  }
+
+  @Override
+  public boolean isPlainValue(byte[] data) {
+    //Compressed payloads would have to be inflated to tell
+    return data != null && data.length > 0 && data[0] != FORMAT_DEFLATE && delegate.isPlainValue(data);
+  }
+
+  public Compression getCompression() {
+    return compression;
+  }
+
+  public int getThreshold() {
+    return threshold;
+  }
+
+  public long getCompressedCount() {
+    return compressedCount.get();
+  }
+
+  public long getUncompressedCount() {
+    return uncompressedCount.get();
+  }
+
+  public long getDecompressedCount() {
+    return decompressedCount.get();
+  }
+
+  public long getBytesBeforeCompression() {
+    return bytesBeforeCompression.get();
+  }
+
+  public long getBytesAfterCompression() {
+    return bytesAfterCompression.get();
+  }
+
+  /**
+   * Compressed size over uncompressed size of all compressed payloads; 1 if nothing has been compressed yet
+   */
+  public double getCompressionRatio() {
+    final long before = bytesBeforeCompression.get();
+    return before == 0 ? 1d : ((double) bytesAfterCompression.get()) / before;
+  }
+
+  /**
+   * CPU time spent deflating, or wall clock time if thread CPU time can not be measured
+   */
+  public long getCompressionCpuNanos() {
+    return compressionCpuNanos.get();
+  }
+
+  /**
+   * CPU time spent inflating, or wall clock time if thread CPU time can not be measured
+   */
+  public long getDecompressionCpuNanos() {
+    return decompressionCpuNanos.get();
+  }
+
+  /**
+   * Whether the compression times are thread CPU time rather than wall clock time
+   */
+  public static boolean isCpuTimeMeasured() {
+    return CPU_TIME;
+  }
+
+  /**
+   * Expose the counters as gauges named codec.compression.*; the compression ratio is in per mille
+   */
+  public void registerMetrics() {
+    final String prefix = Metrics.COMPRESSION_PREFIX;
+    Metrics.getRegistry().register(prefix + "compressed", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getCompressedCount();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "uncompressed", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getUncompressedCount();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "decompressed", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getDecompressedCount();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "ratioPerMille", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return Math.round(getCompressionRatio() * 1000);
+      }
+    });
+    Metrics.getRegistry().register(prefix + "compressCpuNanos", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getCompressionCpuNanos();
+      }
+    });
+    Metrics.getRegistry().register(prefix + "decompressCpuNanos", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return getDecompressionCpuNanos();
+      }
+    });
+  }
+
+  public void unregisterMetrics() {
+    final String prefix = Metrics.COMPRESSION_PREFIX;
+    Metrics.getRegistry().unregister(prefix + "compressed");
+    Metrics.getRegistry().unregister(prefix + "uncompressed");
+    Metrics.getRegistry().unregister(prefix + "decompressed");
+    Metrics.getRegistry().unregister(prefix + "ratioPerMille");
+    Metrics.getRegistry().unregister(prefix + "compressCpuNanos");
+    Metrics.getRegistry().unregister(prefix + "decompressCpuNanos");
+  }
+
+  private static long currentNanos() {
+    return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+
+  private static boolean enableCpuTime() {
+    try {
+      if (!THREADS.isCurrentThreadCpuTimeSupported()) {
+        return false;
+      }
+      if (!THREADS.isThreadCpuTimeEnabled()) {
+        THREADS.setThreadCpuTimeEnabled(true);
+      }
+      return THREADS.getCurrentThreadCpuTime() >= 0;
+    }
+    catch (Exception ex) {
+      //Unsupported or not permitted
+      return false;
+    }
+  }
+
+  public static enum Compression {
+
+    NONE, DEFLATE;
+  }
+}
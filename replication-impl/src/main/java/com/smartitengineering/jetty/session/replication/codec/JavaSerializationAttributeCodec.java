@@ -0,0 +1,145 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import org.apache.commons.lang.SerializationException;
+
+/**
+ * Attribute codec using plain Java serialization. Besides its own format it reads the header-less Java serialization
+ * streams written by earlier versions, which start with the stream magic.
+ *
+ * @author imyousuf
+ */
+public class JavaSerializationAttributeCodec implements AttributeCodec {
+
+  public static final byte FORMAT_JAVA = 0x02;
+  public static final byte LEGACY_STREAM_MAGIC = (byte) 0xAC;
+  private final ClassResolutionCache classCache;
+
+  public JavaSerializationAttributeCodec() {
+    this(new ClassResolutionCache());
+  }
+
+  public JavaSerializationAttributeCodec(ClassResolutionCache classCache) {
+    this.classCache = classCache;
+  }
+
+  @Override
+  public byte[] encode(Object value) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
+    baos.write(FORMAT_JAVA);
+    ObjectOutputStream out = null;
+    try {
+      out = new ObjectOutputStream(baos);
+      out.writeObject(value);
+      out.flush();
+      return baos.toByteArray();
+    }
+    catch (IOException ex) {
+      throw new SerializationException(ex);
+    }
+    finally {
+      try {
+        if (out != null) {
+          out.close();
+        }
+      }
+      catch (IOException ex) {
+        // ignore close exception
+      }
+    }
+  }
+
+  @Override
+  public boolean isPlainValue(byte[] data) {
+    return false;
+  }
+
+  @Override
+  public Object decode(byte[] data) {
+    if (data == null || data.length == 0) {
+      throw new IllegalArgumentException("The byte[] must not be null or empty");
+    }
+    final int offset;
+    if (data[0] == FORMAT_JAVA) {
+      offset = 1;
+    }
+    else if (data[0] == LEGACY_STREAM_MAGIC) {
+      offset = 0;
+    }
+    else {
+      throw new SerializationException("Unknown attribute format " + data[0]);
+    }
+    return deserialize(new ByteArrayInputStream(data, offset, data.length - offset));
+  }
+
+  protected Object deserialize(InputStream inputStream) {
+    ObjectInputStream in = null;
+    try {
+      // stream closed in the finally
+      in = new CachingObjectInputStream(Thread.currentThread().getContextClassLoader(), inputStream);
+      return in.readObject();
+    }
+    catch (ClassNotFoundException ex) {
+      throw new SerializationException(ex);
+    }
+    catch (IOException ex) {
+      throw new SerializationException(ex);
+    }
+    finally {
+      try {
+        if (in != null) {
+          in.close();
+        }
+      }
+      catch (IOException ex) {
+        // ignore close exception
+      }
+    }
+  }
+
+  private class CachingObjectInputStream extends ObjectInputStream {
+
+    private final ClassLoader classLoader;
+
+    CachingObjectInputStream(ClassLoader classLoader, InputStream inputStream) throws IOException {
+      super(inputStream);
+      this.classLoader = classLoader;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      try {
+        return classCache.resolve(desc.getName(), classLoader);
+      }
+      catch (ClassNotFoundException ex) {
+        //Primitive types and the like
+        return super.resolveClass(desc);
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry keeping metrics in memory.
+ *
+ * @author imyousuf
+ */
+public class DefaultMetricRegistry implements MetricRegistry {
+
+  private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+  private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+  @Override
+  public Counter counter(String name) {
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      counter = new Counter();
+      final Counter existing = counters.putIfAbsent(name, counter);
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    return counter;
+  }
+
+  @Override
+  public Histogram histogram(String name) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      histogram = new Histogram();
+      final Histogram existing = histograms.putIfAbsent(name, histogram);
+      if (existing != null) {
+        histogram = existing;
+      }
+    }
+    return histogram;
+  }
+
+  @Override
+  public void register(String name, Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  @Override
+  public void unregister(String name) {
+    gauges.remove(name);
+  }
+
+  @Override
+  public Map<String, Counter> getCounters() {
+    return Collections.unmodifiableMap(new TreeMap<String, Counter>(counters));
+  }
+
+  @Override
+  public Map<String, Histogram> getHistograms() {
+    return Collections.unmodifiableMap(new TreeMap<String, Histogram>(histograms));
+  }
+
+  @Override
+  public Map<String, Gauge> getGauges() {
+    return Collections.unmodifiableMap(new TreeMap<String, Gauge>(gauges));
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.metrics;
+
+import java.util.Map;
+
+/**
+ * Holds the named metrics of session replication. Metrics are created on first lookup and looked up again on every
+ * use, so implementations should make lookups of existing metrics cheap and allocation free.
+ *
+ * @author imyousuf
+ */
+public interface MetricRegistry {
+
+  Counter counter(String name);
+
+  Histogram histogram(String name);
+
+  void register(String name, Gauge gauge);
+
+  void unregister(String name);
+
+  Map<String, Counter> getCounters();
+
+  Map<String, Histogram> getHistograms();
+
+  Map<String, Gauge> getGauges();
+}
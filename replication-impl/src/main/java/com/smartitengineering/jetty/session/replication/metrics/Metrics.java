@@ -0,0 +1,149 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.metrics;
+
+import net.sf.ehcache.Cache;
+
+/**
+ * Entry point to the metrics of session replication and the names they are recorded under. The registry can be
+ * replaced, e.g. by one bridging to a monitoring library, before the session managers are started.
+ *
+ * @author imyousuf
+ */
+public final class Metrics {
+
+  public static final String SESSION_GET_LOCAL = "session.get.local";
+  public static final String SESSION_GET_RELOAD = "session.get.reload";
+  public static final String SESSION_GET_MISS = "session.get.miss";
+  public static final String SESSION_ID_TAKEN = "session.idTaken";
+  public static final String DATA_GET = "dao.sessionData.getById";
+  public static final String DATA_SAVE = "dao.sessionData.save";
+  public static final String DATA_UPDATE = "dao.sessionData.update";
+  public static final String DATA_UPDATE_BATCH = "dao.sessionData.updateBatch";
+  public static final String DATA_DELETE = "dao.sessionData.delete";
+  public static final String DATA_TOUCH = "dao.sessionData.touch";
+  public static final String WRITE_TOUCH = "write.touch";
+  public static final String WRITE_FULL = "write.full";
+  public static final String WRITE_TOUCH_REJECTED = "write.touchRejected";
+  public static final String WRITE_TOUCH_FAILED = "write.touchFailed";
+  public static final String ID_GET = "dao.sessionId.getById";
+  public static final String ID_SAVE = "dao.sessionId.save";
+  public static final String ID_DELETE = "dao.sessionId.delete";
+  public static final String SESSION_MANAGER_LOCK = "lock.sessionManager";
+  public static final String SESSION_ID_MANAGER_LOCK = "lock.sessionIdManager";
+  public static final String LOCK_WAIT_SUFFIX = ".waitNanos";
+  public static final String LOCK_HOLD_SUFFIX = ".holdNanos";
+  public static final String ID_FILTER_NEGATIVE = "idFilter.lookupsAvoided";
+  public static final String ID_FILTER_POSITIVE = "idFilter.lookups";
+  public static final String ID_FILTER_FALSE_POSITIVE = "idFilter.falsePositives";
+  public static final String ID_FILTER_REBUILD = "idFilter.rebuildNanos";
+  public static final String ID_FILTER_SIZE = "idFilter.ids";
+  public static final String LEASE_LOCAL = "lease.servedLocally";
+  public static final String LEASE_RENEWAL = "lease.renewals";
+  public static final String LEASE_RENEWAL_FAILED = "lease.renewalsFailed";
+  public static final String LEASE_TAKEOVER = "lease.takeovers";
+  public static final String LEASE_TAKEOVER_FAILED = "lease.takeoversFailed";
+  public static final String INVALIDATION_PUBLISHED = "invalidation.published";
+  public static final String INVALIDATION_RECEIVED = "invalidation.received";
+  public static final String INVALIDATION_DROPPED = "invalidation.dropped";
+  public static final String ATTRIBUTE_SIZE = "attribute.serializedBytes";
+  public static final String EXECUTOR_PREFIX = "executor.";
+  public static final String OFF_HEAP_PREFIX = "offHeap.";
+  public static final String LOCAL_STORE_PREFIX = "localStore.";
+  public static final String COMPRESSION_PREFIX = "codec.compression.";
+  public static final String WRITE_BEHIND_PREFIX = "writeBehind.";
+  public static final String SCAVENGER_PREFIX = "scavenger.";
+  public static final String WARM_UP = "warmUp.nanos";
+  public static final String WARM_UP_LOADED = "warmUp.loaded";
+  public static final String WARM_UP_ABANDONED = "warmUp.abandoned";
+  public static final String DRAIN = "drain.nanos";
+  public static final String DRAIN_WRITTEN = "drain.written";
+  public static final String DRAIN_TOUCHED = "drain.touched";
+  public static final String DRAIN_FAILED = "drain.failed";
+  public static final String DRAIN_DROPPED = "drain.dropped";
+  private static volatile MetricRegistry registry = new DefaultMetricRegistry();
+
+  private Metrics() {
+  }
+
+  public static MetricRegistry getRegistry() {
+    return registry;
+  }
+
+  public static void setRegistry(MetricRegistry registry) {
+    if (registry == null) {
+      throw new IllegalArgumentException("Registry can not be null");
+    }
+    Metrics.registry = registry;
+  }
+
+  public static Counter counter(String name) {
+    return registry.counter(name);
+  }
+
+  public static Histogram histogram(String name) {
+    return registry.histogram(name);
+  }
+
+  /**
+   * Record the nanoseconds elapsed since the given start
+   */
+  public static void time(String name, long startNanos) {
+    registry.histogram(name).update(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Expose hit, miss, eviction and size statistics of a cache as gauges named cache.<name>.*
+   */
+  public static void registerCache(final String name, final Cache cache) {
+    if (cache == null) {
+      return;
+    }
+    final String prefix = "cache." + name + ".";
+    registry.register(prefix + "hits", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return cache.getStatistics().getCacheHits();
+      }
+    });
+    registry.register(prefix + "misses", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return cache.getStatistics().getCacheMisses();
+      }
+    });
+    registry.register(prefix + "evictions", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return cache.getStatistics().getEvictionCount();
+      }
+    });
+    registry.register(prefix + "size", new Gauge() {
+
+      @Override
+      public long getValue() {
+        return cache.getSize();
+      }
+    });
+  }
+}
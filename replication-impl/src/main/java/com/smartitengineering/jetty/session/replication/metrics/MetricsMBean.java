@@ -0,0 +1,137 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Read only MBean exposing every metric of a registry as attributes. Counters and gauges are exposed under their
+ * name, histograms as name.count, name.mean, name.max, name.p50, name.p99 and name.p999.
+ *
+ * @author imyousuf
+ */
+public class MetricsMBean implements DynamicMBean {
+
+  private static final String[] HISTOGRAM_FIELDS = {"count", "mean", "max", "p50", "p99", "p999"};
+  private final MetricRegistry registry;
+
+  public MetricsMBean(MetricRegistry registry) {
+    this.registry = registry;
+  }
+
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    final Counter counter = registry.getCounters().get(attribute);
+    if (counter != null) {
+      return counter.getCount();
+    }
+    final Gauge gauge = registry.getGauges().get(attribute);
+    if (gauge != null) {
+      return gauge.getValue();
+    }
+    final int dot = attribute.lastIndexOf('.');
+    final Histogram histogram = dot > 0 ? registry.getHistograms().get(attribute.substring(0, dot)) : null;
+    if (histogram != null) {
+      final String field = attribute.substring(dot + 1);
+      if ("count".equals(field)) {
+        return histogram.getCount();
+      }
+      if ("mean".equals(field)) {
+        return (long) histogram.getMean();
+      }
+      if ("max".equals(field)) {
+        return histogram.getMax();
+      }
+      if ("p50".equals(field)) {
+        return histogram.getPercentile(0.5);
+      }
+      if ("p99".equals(field)) {
+        return histogram.getPercentile(0.99);
+      }
+      if ("p999".equals(field)) {
+        return histogram.getPercentile(0.999);
+      }
+    }
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    final AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      try {
+        list.add(new Attribute(attribute, getAttribute(attribute)));
+      }
+      catch (AttributeNotFoundException ex) {
+        //Skip metrics removed in the mean time
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metrics are read only");
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) {
+    throw new UnsupportedOperationException("No operations available");
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    final List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+    for (String name : registry.getCounters().keySet()) {
+      infos.add(attributeInfo(name, "Counter"));
+    }
+    for (String name : registry.getGauges().keySet()) {
+      infos.add(attributeInfo(name, "Gauge"));
+    }
+    for (Map.Entry<String, Histogram> entry : registry.getHistograms().entrySet()) {
+      for (String field : HISTOGRAM_FIELDS) {
+        infos.add(attributeInfo(entry.getKey() + "." + field, "Histogram " + field));
+      }
+    }
+    return new MBeanInfo(getClass().getName(), "Session replication metrics", infos.toArray(
+        new MBeanAttributeInfo[infos.size()]), new MBeanConstructorInfo[0], new MBeanOperationInfo[0],
+                         new MBeanNotificationInfo[0]);
+  }
+
+  private MBeanAttributeInfo attributeInfo(String name, String description) {
+    return new MBeanAttributeInfo(name, Long.class.getName(), description, true, false, false);
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrentBloomFilterTest {
+
+  @Test
+  public void testNoFalseNegatives() {
+    ConcurrentBloomFilter filter = new ConcurrentBloomFilter(1000, 0.01);
+    for (int i = 0; i < 1000; ++i) {
+      filter.put("id" + i);
+    }
+    for (int i = 0; i < 1000; ++i) {
+      Assert.assertTrue(filter.mightContain("id" + i));
+    }
+    Assert.assertEquals(1000, filter.getInsertions());
+  }
+
+  @Test
+  public void testFalsePositiveRateNearConfigured() {
+    ConcurrentBloomFilter filter = new ConcurrentBloomFilter(10000, 0.01);
+    for (int i = 0; i < 10000; ++i) {
+      filter.put("known" + i);
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; ++i) {
+      if (filter.mightContain("unknown" + i)) {
+        ++falsePositives;
+      }
+    }
+    Assert.assertTrue("False positives " + falsePositives, falsePositives < 300);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidRate() {
+    new ConcurrentBloomFilter(10, 1);
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import java.nio.ByteBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OffHeapSessionStoreTest {
+
+  private static final int RECORD_SIZE = 100;
+
+  /**
+   * Stores only the in cluster id, padded to a fixed record size
+   */
+  private static class FixedSizeSerializer implements SessionDataSerializer {
+
+    @Override
+    public byte[] serialize(SessionData data) throws Exception {
+      final byte[] id = data.getId().getInClusterId().getBytes("UTF-8");
+      return ByteBuffer.allocate(RECORD_SIZE).putInt(id.length).put(id).array();
+    }
+
+    @Override
+    public SessionData deserialize(byte[] data) throws Exception {
+      final ByteBuffer buffer = ByteBuffer.wrap(data);
+      final byte[] id = new byte[buffer.getInt()];
+      buffer.get(id);
+      return newData(new String(id, "UTF-8"));
+    }
+  }
+
+  private static SessionData newData(String id) {
+    return new SessionData(new SessionDataId(id, "/ctx", "0.0.0.0"), "node1");
+  }
+
+  @Test
+  public void testTakeRemovesRecord() {
+    OffHeapSessionStore store = new OffHeapSessionStore("test", 1000, new FixedSizeSerializer());
+    Assert.assertTrue(store.put("a", newData("a")));
+    Assert.assertEquals(RECORD_SIZE, store.getUsedBytes());
+    Assert.assertEquals("a", store.take("a").getId().getInClusterId());
+    Assert.assertNull(store.take("a"));
+    Assert.assertEquals(0, store.getUsedBytes());
+    Assert.assertEquals(0, store.getSize());
+  }
+
+  @Test
+  public void testOldestRecordsAreOverwritten() {
+    OffHeapSessionStore store = new OffHeapSessionStore("test", 350, new FixedSizeSerializer());
+    for (int i = 0; i < 5; ++i) {
+      Assert.assertTrue(store.put("s" + i, newData("s" + i)));
+    }
+    Assert.assertEquals(3, store.getSize());
+    Assert.assertTrue(store.getUsedBytes() <= store.getCapacity());
+    Assert.assertNull(store.take("s0"));
+    Assert.assertNull(store.take("s1"));
+    for (int i = 2; i < 5; ++i) {
+      Assert.assertEquals("s" + i, store.take("s" + i).getId().getInClusterId());
+    }
+  }
+
+  @Test
+  public void testReplacedRecordsAreReclaimed() {
+    OffHeapSessionStore store = new OffHeapSessionStore("test", 300, new FixedSizeSerializer());
+    for (int i = 0; i < 10; ++i) {
+      Assert.assertTrue(store.put("a", newData("a")));
+    }
+    Assert.assertTrue(store.put("b", newData("b")));
+    Assert.assertEquals(2, store.getSize());
+    Assert.assertEquals(2 * RECORD_SIZE, store.getUsedBytes());
+    Assert.assertNotNull(store.take("a"));
+    Assert.assertNotNull(store.take("b"));
+  }
+
+  @Test
+  public void testRecordLargerThanCapacityIsRejected() {
+    OffHeapSessionStore store = new OffHeapSessionStore("test", RECORD_SIZE - 1, new FixedSizeSerializer());
+    Assert.assertFalse(store.put("a", newData("a")));
+    Assert.assertEquals(0, store.getSize());
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import org.apache.commons.codec.binary.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SessionDataIdTest {
+
+  @Test
+  public void testBinaryRoundTrip() throws Exception {
+    SessionDataId id = new SessionDataId("abc123", "/my:app", "0.0.0.0");
+    byte[] bytes = write(id);
+    Assert.assertEquals(SessionDataId.BINARY_MARKER, bytes[0]);
+    SessionDataId read = read(bytes);
+    Assert.assertEquals(id, read);
+    Assert.assertFalse(read.isLegacyEncoded());
+    Assert.assertArrayEquals(bytes, read.getBytes());
+  }
+
+  @Test
+  public void testSharedContext() throws Exception {
+    SessionDataId.Context context = new SessionDataId.Context("_ctx", "host");
+    SessionDataId id = new SessionDataId("xyz", context);
+    Assert.assertEquals(new SessionDataId("xyz", "_ctx", "host"), id);
+    Assert.assertArrayEquals(new SessionDataId("xyz", "_ctx", "host").getBytes(), id.getBytes());
+  }
+
+  @Test
+  public void testLegacyKeyIsRead() throws Exception {
+    SessionDataId read = read(StringUtils.getBytesUtf8("abc:_ctx:host"));
+    Assert.assertEquals(new SessionDataId("abc", "_ctx", "host"), read);
+    Assert.assertTrue(read.isLegacyEncoded());
+    Assert.assertEquals("abc:_ctx:host", StringUtils.newStringUtf8(write(read)));
+  }
+
+  @Test
+  public void testOrderingFollowsClusterId() {
+    SessionDataId a = new SessionDataId("a", "_z", "z");
+    SessionDataId b = new SessionDataId("b", "_a", "a");
+    Assert.assertTrue(a.compareTo(b) < 0);
+    Assert.assertTrue(b.compareTo(a) > 0);
+    Assert.assertEquals(0, a.compareTo(new SessionDataId("a", "_z", "z")));
+  }
+
+  @Test
+  public void testOrderingIsConsistentWithEquals() throws Exception {
+    SessionDataId legacy = read(StringUtils.getBytesUtf8("abc:_ctx:host"));
+    SessionDataId binary = new SessionDataId("abc", "_ctx", "host");
+    Assert.assertEquals(binary, legacy);
+    Assert.assertEquals(0, legacy.compareTo(binary));
+    Assert.assertEquals(0, binary.compareTo(legacy));
+    Assert.assertTrue(new SessionDataId(null, "_ctx", "host").compareTo(new SessionDataId("", "_ctx", "host")) < 0);
+  }
+
+  @Test
+  public void testOverlongIdIsRejected() throws Exception {
+    SessionDataId longest = new SessionDataId(repeat(SessionDataId.MAX_LENGTH), "_ctx", "host");
+    Assert.assertEquals(longest, read(write(longest)));
+    try {
+      new SessionDataId(repeat(SessionDataId.MAX_LENGTH + 1), "_ctx", "host").getBytes();
+      Assert.fail("Overlong id encoded");
+    }
+    catch (IllegalArgumentException ex) {
+      //expected
+    }
+  }
+
+  private static String repeat(int length) {
+    final StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; ++i) {
+      builder.append('a');
+    }
+    return builder.toString();
+  }
+
+  private static byte[] write(SessionDataId id) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    id.writeExternal(new DataOutputStream(out));
+    return out.toByteArray();
+  }
+
+  private static SessionDataId read(byte[] bytes) throws Exception {
+    SessionDataId id = new SessionDataId();
+    id.readExternal(new DataInputStream(new ByteArrayInputStream(bytes)));
+    return id;
+  }
+}
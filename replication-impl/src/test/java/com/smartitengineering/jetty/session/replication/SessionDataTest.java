@@ -0,0 +1,158 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SessionDataTest {
+
+  private SessionData newData() {
+    return new SessionData(new SessionDataId("abc", "/ctx", "0.0.0.0"), "node1");
+  }
+
+  @Test
+  public void testAccessMovesPreviousAccessTime() {
+    SessionData data = newData();
+    data.setAccessed(100);
+    SessionData.State state = data.access(200, 300);
+    Assert.assertEquals(200, state.getAccessed());
+    Assert.assertEquals(100, state.getLastAccessed());
+    Assert.assertEquals(300, state.getExpiryTime());
+    Assert.assertSame(state, data.getState());
+  }
+
+  @Test
+  public void testSnapshotIsNotChangedByLaterWrites() {
+    SessionData data = newData();
+    data.setLastNode("node1");
+    SessionData.State before = data.getState();
+    data.setLastNode("node2");
+    data.setLeaseExpiry(10);
+    Assert.assertEquals("node1", before.getLastNode());
+    Assert.assertEquals(0, before.getLeaseExpiry());
+    Assert.assertEquals("node2", data.getLastNode());
+    Assert.assertEquals(10, data.getLeaseExpiry());
+    SessionData.State saved = data.markSaved(50);
+    Assert.assertEquals(50, saved.getLastSaved());
+    Assert.assertEquals("node2", saved.getLastNode());
+  }
+
+  @Test
+  public void testTakingOverInMemoryKeepsStoredLastNode() {
+    SessionData data = newData();
+    data.setLastNode("node2");
+    Assert.assertEquals("node2", data.getLastNode());
+    Assert.assertEquals("node1", data.getStoredLastNode());
+  }
+
+  @Test
+  public void testConcurrentAccessKeepsFieldsConsistent() throws Exception {
+    final SessionData data = newData();
+    final AtomicBoolean inconsistent = new AtomicBoolean();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; ++i) {
+      threads[i] = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; ++j) {
+            SessionData.State state = data.access(j, j + 1000);
+            if (state.getExpiryTime() != state.getAccessed() + 1000) {
+              inconsistent.set(true);
+            }
+            state = data.getState();
+            if (state.getExpiryTime() != state.getAccessed() + 1000 && state.getExpiryTime() != 0) {
+              inconsistent.set(true);
+            }
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertFalse(inconsistent.get());
+  }
+
+  @Test
+  public void testMergeReportsTakenOverAttributes() {
+    SessionData data = newData();
+    data.setAttributeMap(Collections.singletonMap("a", "1"));
+    data.setAttribute("b", "2");
+    Map<String, String> persisted = new HashMap<String, String>();
+    persisted.put("b", "3");
+    persisted.put("c", "4");
+    data.mergeAttributes(persisted);
+    Assert.assertEquals("2", data.getAttrbute("b"));
+    Assert.assertEquals("4", data.getAttrbute("c"));
+    Assert.assertNull(data.getAttrbute("a"));
+    Assert.assertTrue(data.drainAttributesMerged());
+    Assert.assertFalse(data.drainAttributesMerged());
+    data.mergeAttributes(new HashMap<String, String>(persisted));
+    Assert.assertFalse(data.drainAttributesMerged());
+  }
+
+  @Test
+  public void testAttributesMarkedRemovedAreDeletedByFullWrite() {
+    SessionData data = newData();
+    data.setAttributeMap(Collections.singletonMap("a", "1"));
+    data.markAttributesRemoved(Arrays.asList("a", "b"));
+    data.markAllAttributesChanged();
+    SessionData.AttributeChanges changes = data.drainAttributeChanges();
+    Assert.assertTrue(changes.isAll());
+    Assert.assertEquals(Collections.singleton("b"), changes.getRemoved());
+  }
+
+  @Test
+  public void testMutableAttributesAreWrittenWithEveryChange() {
+    SessionData data = newData();
+    SerializedAttribute bean = new SerializedAttribute(new byte[]{1}, new AttributeDecoder() {
+
+      @Override
+      public Object decode(byte[] bytes) {
+        return new StringBuilder("bean");
+      }
+
+      @Override
+      public boolean isPlainValue(byte[] bytes) {
+        return false;
+      }
+    });
+    Map<String, Object> loaded = new HashMap<String, Object>();
+    loaded.put("bean", bean);
+    loaded.put("name", "value");
+    data.setAttributeMap(loaded);
+    Assert.assertFalse(data.hasMutableAttributes());
+    Assert.assertTrue(data.drainAttributeChanges().getChanged().isEmpty());
+    ((StringBuilder) bean.getValue()).append(" changed in place");
+    Assert.assertTrue(data.hasMutableAttributes());
+    Assert.assertEquals(Collections.singleton("bean"), data.drainAttributeChanges().getChanged());
+    Assert.assertFalse(SessionData.isMutable(Integer.valueOf(1)));
+    Assert.assertTrue(SessionData.isMutable(new ArrayList<String>()));
+  }
+}
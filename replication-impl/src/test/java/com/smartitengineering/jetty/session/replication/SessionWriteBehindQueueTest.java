@@ -0,0 +1,118 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import com.smartitengineering.dao.common.CommonWriteDao;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SessionWriteBehindQueueTest {
+
+  private static final CommonWriteDao<SessionData> NO_WRITER = new CommonWriteDao<SessionData>() {
+
+    @Override
+    public void save(SessionData... states) {
+    }
+
+    @Override
+    public void update(SessionData... states) {
+    }
+
+    @Override
+    public void delete(SessionData... states) {
+    }
+  };
+
+  @Test
+  public void testCancelWhileRejectedTouchInFlight() throws Exception {
+    //Stands in for the stripe lock the session manager holds while removing a session
+    final ReentrantLock sessionLock = new ReentrantLock();
+    final CountDownLatch touching = new CountDownLatch(1);
+    final CountDownLatch releaseTouch = new CountDownLatch(1);
+    final AtomicInteger rejections = new AtomicInteger();
+    final SessionWriteBehindQueue queue = new SessionWriteBehindQueue(NO_WRITER) {
+
+      @Override
+      protected void touchRejected(SessionData data) {
+        sessionLock.lock();
+        try {
+          rejections.incrementAndGet();
+        }
+        finally {
+          sessionLock.unlock();
+        }
+      }
+    };
+    queue.setTouchWriter(new SessionTouchWriter() {
+
+      @Override
+      public boolean touch(SessionData data) {
+        touching.countDown();
+        try {
+          releaseTouch.await();
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        return false;
+      }
+    });
+    final SessionData data = new SessionData(new SessionDataId("abc", "/ctx", "0.0.0.0"), "node1");
+    //Only sessions without attribute changes are touched
+    data.drainAttributeChanges();
+    Assert.assertTrue(queue.offer(data));
+    final Thread flusher = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        queue.flush();
+      }
+    });
+    flusher.start();
+    Assert.assertTrue(touching.await(5, TimeUnit.SECONDS));
+    final Thread remover = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        sessionLock.lock();
+        try {
+          queue.cancel(data.getId());
+        }
+        finally {
+          sessionLock.unlock();
+        }
+      }
+    });
+    remover.start();
+    while (!sessionLock.isLocked()) {
+      Thread.sleep(1);
+    }
+    releaseTouch.countDown();
+    remover.join(5000);
+    flusher.join(5000);
+    Assert.assertFalse(remover.isAlive());
+    Assert.assertFalse(flusher.isAlive());
+    Assert.assertEquals(1, rejections.get());
+  }
+}
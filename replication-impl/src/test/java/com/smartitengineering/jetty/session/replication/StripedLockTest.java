@@ -0,0 +1,79 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StripedLockTest {
+
+  @Test
+  public void testStripesRoundedToPowerOfTwo() {
+    Assert.assertEquals(256, new StripedLock().getStripes());
+    Assert.assertEquals(64, new StripedLock(33).getStripes());
+    Assert.assertEquals(1, new StripedLock(1).getStripes());
+  }
+
+  @Test
+  public void testSameKeySameLock() {
+    StripedLock locks = new StripedLock(16);
+    Assert.assertSame(locks.getLock("abc"), locks.getLock(new String("abc")));
+    Assert.assertSame(locks.getLock(null), locks.getLock(null));
+  }
+
+  @Test
+  public void testDifferentStripesDoNotBlock() throws Exception {
+    final StripedLock locks = new StripedLock(1024);
+    String first = "a", second = "b";
+    while (locks.getLock(first) == locks.getLock(second)) {
+      second = second + "b";
+    }
+    final String other = second;
+    locks.lock(first);
+    try {
+      final CountDownLatch latch = new CountDownLatch(1);
+      Thread thread = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+          locks.lock(other);
+          try {
+            latch.countDown();
+          }
+          finally {
+            locks.unlock(other);
+          }
+        }
+      });
+      thread.start();
+      Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+    finally {
+      locks.unlock(first);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidStripes() {
+    new StripedLock(0);
+  }
+}
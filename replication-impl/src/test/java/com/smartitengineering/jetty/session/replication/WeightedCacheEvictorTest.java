@@ -0,0 +1,120 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WeightedCacheEvictorTest {
+
+  private CacheManager manager;
+  private Cache cache;
+  private WeightedCacheEvictor evictor;
+
+  @Before
+  public void setUp() {
+    manager = new CacheManager();
+    cache = new Cache("weighted", 1000, false, true, 0, 0);
+    manager.addCache(cache);
+    evictor = new WeightedCacheEvictor(cache, 3000, new WeightedCacheEvictor.Weigher() {
+
+      @Override
+      public long weigh(Element element) {
+        return ((Long) element.getObjectValue()).longValue();
+      }
+    });
+    evictor.register();
+  }
+
+  @After
+  public void tearDown() {
+    evictor.unregister();
+    manager.shutdown();
+  }
+
+  @Test
+  public void testBudgetIsKept() {
+    for (int i = 0; i < 10; ++i) {
+      cache.put(new Element("k" + i, Long.valueOf(1000)));
+    }
+    Assert.assertTrue(evictor.getTotalWeight() <= 3000);
+    Assert.assertEquals(3, cache.getSize());
+  }
+
+  @Test
+  public void testLargeEntryGoesBeforeSmallHotOnes() {
+    cache.put(new Element("small1", Long.valueOf(100)));
+    cache.put(new Element("small2", Long.valueOf(100)));
+    cache.get("small1");
+    cache.get("small2");
+    cache.put(new Element("large", Long.valueOf(2500)));
+    cache.put(new Element("medium", Long.valueOf(500)));
+    Assert.assertNull(cache.get("large"));
+    Assert.assertNotNull(cache.get("small1"));
+    Assert.assertNotNull(cache.get("small2"));
+    Assert.assertNotNull(cache.get("medium"));
+    Assert.assertEquals(700, evictor.getTotalWeight());
+  }
+
+  @Test
+  public void testRemovedEntriesAreForgotten() {
+    cache.put(new Element("a", Long.valueOf(1000)));
+    cache.put(new Element("a", Long.valueOf(500)));
+    Assert.assertEquals(500, evictor.getTotalWeight());
+    cache.remove("a");
+    Assert.assertEquals(0, evictor.getTotalWeight());
+  }
+
+  @Test
+  public void testOnlyAcceptedEntriesAreWeighed() {
+    final WeightedCacheEvictor.Weigher weigher = new WeightedCacheEvictor.Weigher() {
+
+      @Override
+      public long weigh(Element element) {
+        return ((Long) element.getObjectValue()).longValue();
+      }
+    };
+    final WeightedCacheEvictor own = new WeightedCacheEvictor(cache, "own", 1500, 8, weigher) {
+
+      @Override
+      protected boolean accepts(Element element) {
+        return element.getObjectKey().toString().startsWith("own");
+      }
+    };
+    own.register();
+    try {
+      cache.put(new Element("own1", Long.valueOf(1000)));
+      cache.put(new Element("other1", Long.valueOf(1000)));
+      Assert.assertEquals(1000, own.getTotalWeight());
+      cache.put(new Element("own2", Long.valueOf(1000)));
+      Assert.assertEquals(1000, own.getTotalWeight());
+      Assert.assertNotNull(cache.get("other1"));
+      Assert.assertEquals(2, cache.getSize());
+    }
+    finally {
+      own.unregister();
+    }
+  }
+}
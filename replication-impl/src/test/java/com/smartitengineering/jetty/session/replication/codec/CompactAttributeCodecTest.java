@@ -0,0 +1,77 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.apache.commons.lang.SerializationUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactAttributeCodecTest {
+
+  private final CompactAttributeCodec codec = new CompactAttributeCodec();
+
+  @Test
+  public void testKnownTypesRoundTrip() {
+    Object[] values = new Object[]{"user-1", "", Integer.valueOf(-5), Long.valueOf(Long.MAX_VALUE), Boolean.TRUE,
+                                   Double.valueOf(1.5d), Float.valueOf(2.5f), Short.valueOf((short) 3),
+                                   Byte.valueOf((byte) 4), Character.valueOf('x'), new Date(1000l)};
+    for (Object value : values) {
+      byte[] encoded = codec.encode(value);
+      Assert.assertEquals(CompactAttributeCodec.FORMAT_COMPACT, encoded[0]);
+      Assert.assertEquals(value, codec.decode(encoded));
+    }
+    Assert.assertNull(codec.decode(codec.encode(null)));
+    Assert.assertTrue(Arrays.equals(new byte[]{1, 2, 3}, (byte[]) codec.decode(codec.encode(new byte[]{1, 2, 3}))));
+  }
+
+  @Test
+  public void testFallbackAndLegacy() {
+    List<String> list = new ArrayList<String>(Arrays.asList("a", "b"));
+    byte[] encoded = codec.encode(list);
+    Assert.assertEquals(JavaSerializationAttributeCodec.FORMAT_JAVA, encoded[0]);
+    Assert.assertEquals(list, codec.decode(encoded));
+    Assert.assertEquals(list, codec.decode(SerializationUtils.serialize(list)));
+  }
+
+  @Test
+  public void testCustomType() {
+    CompactAttributeCodec custom = new CompactAttributeCodec();
+    custom.register(64, StringBuilder.class, new CompactAttributeCodec.TypeHandler() {
+
+      @Override
+      public void write(Object value, DataOutput output) throws IOException {
+        output.writeUTF(value.toString());
+      }
+
+      @Override
+      public Object read(DataInput input) throws IOException {
+        return new StringBuilder(input.readUTF());
+      }
+    });
+    Assert.assertEquals("abc", custom.decode(custom.encode(new StringBuilder("abc"))).toString());
+  }
+}
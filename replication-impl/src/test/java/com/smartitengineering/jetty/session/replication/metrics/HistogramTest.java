@@ -0,0 +1,57 @@
+/*
+ *
+ * This module intended to be used for session replication of Jetty via HBase
+ * and later will be cached via Ehcache
+ *
+ * Copyright (C) 2010  Imran M Yousuf (imyousuf@smartitengineering.com)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package com.smartitengineering.jetty.session.replication.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+  @Test
+  public void testEmpty() {
+    Histogram histogram = new Histogram();
+    Assert.assertEquals(0, histogram.getCount());
+    Assert.assertEquals(0, histogram.getPercentile(0.99));
+    Assert.assertEquals(0, histogram.getMean(), 0);
+  }
+
+  @Test
+  public void testPercentilesAreBucketUpperBounds() {
+    Histogram histogram = new Histogram();
+    for (int i = 0; i < 99; ++i) {
+      histogram.update(100);
+    }
+    histogram.update(5000);
+    Assert.assertEquals(100, histogram.getCount());
+    Assert.assertEquals(5000, histogram.getMax());
+    Assert.assertEquals(127, histogram.getPercentile(0.5));
+    Assert.assertEquals(127, histogram.getPercentile(0.99));
+    Assert.assertEquals(5000, histogram.getPercentile(1));
+    Assert.assertEquals(149, histogram.getMean(), 0.001);
+  }
+
+  @Test
+  public void testNegativeValuesCountAsZero() {
+    Histogram histogram = new Histogram();
+    histogram.update(-5);
+    Assert.assertEquals(0, histogram.getSum());
+    Assert.assertEquals(1, histogram.getCount());
+  }
+}